@@ -54,21 +54,13 @@ sub main() {
         retError("error: cmd is required parameter");
     }
 
-    # load ECSCM object
+    # find the promoted ECSCM project
     my $proj_prop = "/plugins/ECSCM/projectName";
     my $proj = $::ec->getProperty("$proj_prop")->findvalue('//value')->string_value;
     if (!defined $proj || "$proj" eq "" ) {
         retError("Could not find promoted ECSCM plugin");
     }
-    my $prop = "/projects/$proj/scm_driver/ECSCM::Base::Cfg";
-    if (!ElectricCommander::PropMod::loadPerlCodeFromProperty($::ec,$prop)) {
-        retError("Could not load $prop");
-    }
-
-    $prop = "/projects/$proj/scm_driver/ECSCM::Base::Driver";
-    if (!ElectricCommander::PropMod::loadPerlCodeFromProperty($::ec,$prop)) {
-        retError("Could not load $prop");
-    }
+    $::gProj = $proj;
 
     # ---------------------------------------------------------------
     # Dispatch operation
@@ -86,24 +78,288 @@ sub main() {
 }
 
 
+#############################################
+# loadECSCM
+#
+# Load the ECSCM::Base::Cfg and ::Driver code
+# from properties. Only commands that have to
+# read the configurations need it.
+#############################################
+sub loadECSCM {
+    return if ($::gECSCMLoaded);
+
+    my $prop = "/projects/$::gProj/scm_driver/ECSCM::Base::Cfg";
+    if (!ElectricCommander::PropMod::loadPerlCodeFromProperty($::ec,$prop)) {
+        retError("Could not load $prop");
+    }
+
+    $prop = "/projects/$::gProj/scm_driver/ECSCM::Base::Driver";
+    if (!ElectricCommander::PropMod::loadPerlCodeFromProperty($::ec,$prop)) {
+        retError("Could not load $prop");
+    }
+    $::gECSCMLoaded = 1;
+}
+
 #############################################
 # getCfgList
 #
 # Return the list of configurations from ECSCM
+#
+# The list is served from scm_cfgs_cache as
+# long as its cachedRevision matches the
+# revision counter that CreateConfiguration
+# and DeleteConfiguration bump. Pass refresh=1
+# to force a rebuild. offset, limit and prefix
+# select a page of the list.
 #############################################
 sub getCfgList {
 
-    my $ecscm = new ECSCM::Base::Cfg($::ec,"");
+    my $cachePath = "/projects/$::gProj/scm_cfgs_cache";
+    my %cache = readCfgListCache($cachePath);
+    my $revision = $cache{revision} || 0;
+
+    my $status;
+    my @records;
+    my %writes;
+    if (!$::opts->{refresh}
+        && defined $cache{cfgList}
+        && defined $cache{cachedRevision}
+        && $cache{cachedRevision} eq "$revision") {
+        $status = "hit";
+        @records = decodeCfgRecords($cache{cfgList});
+    }
+    else {
+        $status = "miss";
+        @records = fetchCfgRecords();
+
+        # Store the list along with the revision it was built from. If a
+        # configuration was created or deleted in the meantime the revision
+        # has moved on and the next request rebuilds again.
+        %writes = (
+            cfgList        => encodeCfgRecords(@records),
+            cachedRevision => "$revision");
+    }
 
-    my %cfgs = $ecscm->getRows();
+    # count hits and misses
+    my $counter = ($status eq "hit") ? "hits" : "misses";
+    my ($count, $error) = updateCfgListCache($cachePath, $counter, %writes);
+    $cache{$counter} = $count if (defined $count);
 
     # print results as XML block
+    my ($page, $pageXml) = pageCfgRecords(@records);
+    my $xml = cfgListXml(@$page) . $pageXml;
+    $xml .= "<cache>\n";
+    $xml .= "     <status>$status</status>\n";
+    $xml .= "     <revision>$revision</revision>\n";
+    $xml .= "     <hits>"   . ($cache{hits}   || 0) . "</hits>\n";
+    $xml .= "     <misses>" . ($cache{misses} || 0) . "</misses>\n";
+    $xml .= "     <error>" . xmlQuote($error) . "</error>\n" if (defined $error);
+    $xml .= "</cache>\n";
+    printXML($xml);
+    exit 0;
+}
+
+#############################################
+# updateCfgListCache
+#
+# Write the given cache properties and bump
+# the hit or miss counter in one transaction,
+# so that the counter only moves when the
+# cache could be written
+#
+# Returns the new value of the counter, or
+# undef and the error
+#############################################
+sub updateCfgListCache {
+    my ($cachePath, $counter, %writes) = @_;
+
+    my $batch = $::ec->newBatch("single");
+    foreach my $name (sort keys %writes) {
+        $batch->setProperty("$cachePath/$name", $writes{$name});
+    }
+    my $countId = $batch->incrementProperty("$cachePath/$counter", 1);
+    my $xPath = $batch->submit();
+
+    if (!defined $xPath || !$xPath->exists("//response[\@requestId='$countId']")) {
+        my $error = defined $xPath ? $xPath->findvalue('//error/message')->string_value : "";
+        $error = "the request failed" if ($error eq "");
+        return (undef, "Could not update $cachePath: $error");
+    }
+    return ($xPath->findvalue("//response[\@requestId='$countId']/property/value")->string_value);
+}
+
+#############################################
+# readCfgListCache
+#
+# Read the whole cache sheet in one request
+#############################################
+sub readCfgListCache {
+    my $cachePath = shift;
+
+    my %cache;
+    my $xPath = $::ec->getProperties({path => $cachePath});
+    my $nodeset = $xPath->find('//response/propertySheet/property');
+    foreach my $node ($nodeset->get_nodelist) {
+        my $name  = $xPath->findvalue('propertyName', $node)->string_value;
+        my $value = $xPath->findvalue('value', $node)->string_value;
+        $cache{$name} = $value;
+    }
+    return %cache;
+}
+
+#############################################
+# fetchCfgRecords
+#
+# Read the whole scm_cfgs sheet with a single
+# recursive getProperties call and return one
+# [name, plugin, description] record for each
+# configuration, sorted by name
+#############################################
+sub fetchCfgRecords {
+
+    my $xPath = $::ec->getProperties({
+        path    => "/projects/$::gProj/scm_cfgs",
+        recurse => 1 });
+
+    my @records;
+    my $nodeset = $xPath->find('//response/propertySheet/property[propertySheet]');
+    foreach my $node ($nodeset->get_nodelist) {
+        my $cfg = $xPath->findvalue('propertyName', $node)->string_value;
+
+        my %cols;
+        my $colset = $xPath->find('propertySheet/property', $node);
+        foreach my $col ($colset->get_nodelist) {
+            my $name = $xPath->findvalue('propertyName', $col)->string_value;
+            $cols{$name} = $xPath->findvalue('value', $col)->string_value;
+        }
+
+        # createCfg keeps the description on the row itself; some plugins
+        # also store it as a column
+        my $desc = $cols{description};
+        if (!defined $desc) {
+            $desc = $xPath->findvalue('description', $node)->string_value;
+        }
+        push @records, [$cfg, $cols{scmPlugin}, $desc];
+    }
+    return sort { $a->[0] cmp $b->[0] } @records;
+}
+
+#############################################
+# fetchPromotedPlugins
+#
+# Return the set of promoted plugin keys using
+# a single getPlugins call
+#############################################
+sub fetchPromotedPlugins {
+
+    my %promoted;
+    my $xPath = $::ec->getPlugins();
+    my $nodeset = $xPath->find('//response/plugin');
+    foreach my $node ($nodeset->get_nodelist) {
+        my $flag = $xPath->findvalue('promoted', $node)->string_value;
+        next if ($flag eq "" || $flag eq "0");
+        my $key = $xPath->findvalue('pluginKey', $node)->string_value;
+        $promoted{$key} = 1;
+    }
+    return %promoted;
+}
+
+#############################################
+# encodeCfgRecords / decodeCfgRecords
+#
+# The cached list holds one configuration per
+# line: name, plugin and description separated
+# by tabs
+#############################################
+sub encodeCfgRecords {
+    my @records = @_;
+
+    my $text = "";
+    foreach my $record (@records) {
+        my @fields = map {
+            my $field = defined $_ ? "$_" : "";
+            $field =~ s/\\/\\\\/g;
+            $field =~ s/\t/\\t/g;
+            $field =~ s/\n/\\n/g;
+            $field
+        } @$record;
+        $text .= join("\t", @fields) . "\n";
+    }
+    return $text;
+}
+
+sub decodeCfgRecords {
+    my $text = shift;
+
+    my @records;
+    foreach my $line (split(/\n/, $text)) {
+        next if ($line eq "");
+        my @fields = map {
+            my $field = $_;
+            $field =~ s/\\(.)/$1 eq "t" ? "\t" : $1 eq "n" ? "\n" : $1/ge;
+            $field
+        } split(/\t/, $line, -1);
+        push @records, \@fields;
+    }
+    return @records;
+}
+
+#############################################
+# pageCfgRecords
+#
+# Apply the optional prefix, offset and limit
+# parameters to a sorted record list. Returns
+# the records of the requested page and a
+# <page> block describing it; the block is
+# left out when no page was asked for.
+#############################################
+sub pageCfgRecords {
+    my @records = @_;
+
+    my $prefix = $::opts->{prefix};
+    if (defined $prefix && "$prefix" ne "") {
+        @records = grep { index($_->[0], $prefix) == 0 } @records;
+    }
+
+    my $offset = $::opts->{offset};
+    my $limit  = $::opts->{limit};
+    if (!defined $offset && !defined $limit) {
+        return (\@records, "");
+    }
+
+    $offset = 0 if (!defined $offset || "$offset" eq "");
+    $limit  = 0 if (!defined $limit  || "$limit"  eq "");
+    if ($offset !~ /^\d+$/ || $limit !~ /^\d+$/) {
+        retError("offset and limit must be non-negative integers");
+    }
+
+    # a limit of 0 means everything from offset on
+    my $total = scalar(@records);
+    my $end = ($limit > 0 && $offset + $limit < $total) ? $offset + $limit : $total;
+    my @page = ($offset < $end) ? @records[$offset .. $end - 1] : ();
+
+    my $xml = "";
+    $xml .= "<page>\n";
+    $xml .= "     <offset>$offset</offset>\n";
+    $xml .= "     <limit>$limit</limit>\n";
+    $xml .= "     <total>$total</total>\n";
+    $xml .= "     <more>" . ($end < $total ? 1 : 0) . "</more>\n";
+    $xml .= "</page>\n";
+    return (\@page, $xml);
+}
+
+#############################################
+# cfgListXml
+#
+# Format configuration records as a <cfgs> block
+#############################################
+sub cfgListXml {
+    my @records = @_;
+
     my $xml = "";
     $xml .= "<cfgs>\n";
-    foreach my $cfg (keys %cfgs) {
-        my $scm = new ECSCM::Base::Cfg($::ec,$cfg);
-        my $name = $scm->getSCMPluginName();
-        my $desc = eval { $ecscm->getCol("$cfg/description") };
+    foreach my $record (@records) {
+        my ($cfg, $name, $desc) = @$record;
         $xml .= "  <cfg>\n";
         $xml .= "     <name>$cfg</name>\n";
         $xml .= "     <plugin>" . xmlQuote($name) . "</plugin>\n";
@@ -111,73 +367,58 @@ sub getCfgList {
         $xml .= "  </cfg>\n";
     }
     $xml .= "</cfgs>\n";
-    printXML($xml);
-    exit 0;
+    return $xml;
 }
 
 #############################################
 # getImplementingCfgs
 #
 # Return the list of configurations which
-# implement the given method
+# implement the given method. Accepts the same
+# paging parameters as getCfgList.
 #############################################
 sub getImplementingCfgs {
 
-    my $xml = "";
     if (!defined $::opts->{method}) {
         retError("No method for getImplementCfgs");
         exit 1;
     }
 
-    # fetch all cfgs
+    # fetch all cfgs and the promoted plugins up front
+    my @records = fetchCfgRecords();
+    my %promoted = fetchPromotedPlugins();
+
+    loadECSCM();
     my $ecscm = new ECSCM::Base::Driver($::ec,"");
-    my %cfgs = $ecscm->getCfg()->getRows();
 
-    # print out results
-    my $implentingCache = ();
-    $xml .= "<cfgs>\n";
-    foreach my $cfg (keys %cfgs) {
-        
-        # load each cfg and get its plugin name
-        my $scm = new ECSCM::Base::Cfg($::ec,$cfg);
-        my $scmPluginName = $scm->getSCMPluginName();
+    # keep the cfgs whose SCM driver implements the given method;
+    # cache the answers as we go
+    my %implementingCache;
+    my @implementing;
+    foreach my $record (@records) {
+        my ($cfg, $scmPluginName) = @$record;
 
         # make sure a promoted version of the plugin exists
-        my $ver = $::ec->getPlugin($scmPluginName)->findvalue('//pluginVersion');
-        if (!defined $ver || "$ver" eq "") {
-            next;
-        }
+        next if (!$promoted{$scmPluginName});
 
-        # determine whether the cfg's SCM driver implements the given method;
-        # cache the answers as we go
-        my $isImplemented;
-        my $cachedAnswer = $implementingCache->{$scmPluginName};
-        
-        if (defined $cachedAnswer) {
-            $isImplemented = $cachedAnswer;
-        } else {
+        if (!defined $implementingCache{$scmPluginName}) {
             # load the specific SCM driver to determine if it implements the given method
-            my $mod = $ecscm->load_driver("$scmPluginName") ;
-            $scm_new = new $mod($ec, $cfg);
-            $isImplemented = $scm_new->isImplemented($opts->{method});
-            
-            # cache the answer for the next time we see this plugin
-            $implementingCache->{$scmPluginName} = $isImplemented;
+            my $isImplemented = 0;
+            my $mod = $ecscm->load_driver("$scmPluginName");
+            if (defined $mod) {
+                my $scm_new = new $mod($::ec, $cfg);
+                $isImplemented = $scm_new->isImplemented($::opts->{method});
+            }
+            $implementingCache{$scmPluginName} = $isImplemented;
         }
-        
+
         # return both the cfg name and its plugin name
-        if ($isImplemented == 1) {
-            my $scmPluginDesc = eval { $ecscm->getCol("$cfg/description") };
-
-            $xml .= "<cfg>\n";
-            $xml .= "     <name>$cfg</name>\n";
-            $xml .= "     <plugin>" . xmlQuote($scmPluginName) . "</plugin>\n";
-            $xml .= "     <desc>" . xmlQuote($scmPluginDesc) . "</desc>\n";
-            $xml .= "</cfg>\n";
+        if ($implementingCache{$scmPluginName} == 1) {
+            push @implementing, $record;
         }
     }
-    $xml .= "</cfgs>\n";
-    printXML($xml);
+    my ($page, $pageXml) = pageCfgRecords(@implementing);
+    printXML(cfgListXml(@$page) . $pageXml);
     exit 0;
 }
 
@@ -0,0 +1,293 @@
+#!/usr/bin/env perl
+###############################################################################
+#
+# cfgListBench.pl
+#
+# Measures the latency of the ecscm.cgi getCfgList and getImplementingCfgs
+# commands against a stubbed Commander server holding 10, 100, 1000 and 5000
+# SCM configurations, and counts the round trips each command makes.
+#
+# Run it with the cfgListBench task of the specs build, or with ec-perl from
+# the top of the source tree:
+#
+#     ec-perl specs/benchmarks/cfgListBench.pl [iterations] [sizes...]
+#
+# The perlUnit task makes one short run of it.
+#
+# Only ElectricCommander itself is stubbed; PropMod, Util, CGI and XML::XPath
+# come from the ec-perl installation. The stub serves the base Cfg and Driver
+# modules straight from src/main/resources/project.
+#
+# Copyright (c) 2016 Electric Cloud, Inc.
+# All rights reserved
+###############################################################################
+
+use strict;
+use warnings;
+use File::Basename;
+use File::Spec;
+use File::Temp qw(tempdir);
+use Time::HiRes qw(time);
+
+my $gTop        = File::Spec->rel2abs(dirname(__FILE__) . "/../..");
+my $gIterations = shift(@ARGV) || 5;
+my @gSizes      = @ARGV ? @ARGV : (10, 100, 1000, 5000);
+
+my @gCommands = (
+    ["getCfgList (rebuild)", "cmd=getCfgList&refresh=1"],
+    ["getCfgList (cached)",  "cmd=getCfgList"],
+    ["getImplementingCfgs",  "cmd=getImplementingCfgs&method=getSCMTag"],
+);
+
+# -----------------------------------------------------------------------------
+# main
+# -----------------------------------------------------------------------------
+
+sub main {
+    my $dir = tempdir(CLEANUP => 1);
+    writeStub($dir);
+
+    printf("%-8s %-24s %10s %10s %8s\n",
+        "configs", "command", "avg ms", "max ms", "trips");
+    foreach my $size (@gSizes) {
+        my $state = "$dir/state-$size";
+        foreach my $command (@gCommands) {
+            my ($label, $query) = @$command;
+            my ($total, $max, $trips) = (0, 0, 0);
+            foreach my $i (1 .. $gIterations) {
+                my ($elapsed, $calls) = runCgi($dir, $state, $size, $query);
+                $total += $elapsed;
+                $max = $elapsed if ($elapsed > $max);
+                $trips = $calls;
+            }
+            printf("%-8d %-24s %10.1f %10.1f %8d\n", $size, $label,
+                1000 * $total / $gIterations, 1000 * $max, $trips);
+        }
+    }
+}
+
+# -----------------------------------------------------------------------------
+# runCgi
+#
+# Run ecscm.cgi once as a GET request and return the elapsed wall time and
+# the number of Commander requests it made.
+# -----------------------------------------------------------------------------
+
+sub runCgi {
+    my ($dir, $state, $size, $query) = @_;
+
+    local $ENV{PERL5LIB}          = join(":", $dir, $ENV{PERL5LIB} || ());
+    local $ENV{REQUEST_METHOD}    = "GET";
+    local $ENV{QUERY_STRING}      = $query;
+    local $ENV{ECSCM_BENCH_TOP}   = $gTop;
+    local $ENV{ECSCM_BENCH_CFGS}  = $size;
+    local $ENV{ECSCM_BENCH_STATE} = $state;
+    local $ENV{ECSCM_BENCH_CALLS} = "$dir/calls";
+
+    my $start = time();
+    my $output = `"$^X" -x "$gTop/cgi-bin/ecscm.cgi"`;
+    my $elapsed = time() - $start;
+    if ($? != 0 || $output =~ m{<error>(.*)</error>}s) {
+        die "ecscm.cgi $query failed: " . ($1 || "exit status $?") . "\n";
+    }
+
+    open(my $fh, "<", "$dir/calls") or die "Cannot read call count: $!\n";
+    my $calls = <$fh>;
+    close($fh);
+    return ($elapsed, $calls + 0);
+}
+
+# -----------------------------------------------------------------------------
+# writeStub
+#
+# Write the stub ElectricCommander module. It generates the scm_cfgs sheet on
+# the fly, keeps anything the CGI writes in a state file so the cache
+# survives between runs, and records its call count when the process exits.
+# -----------------------------------------------------------------------------
+
+sub writeStub {
+    my ($dir) = @_;
+
+    open(my $fh, ">", "$dir/ElectricCommander.pm")
+        or die "Cannot write stub: $!\n";
+    print $fh <<'STUB';
+package ElectricCommander;
+
+use strict;
+use warnings;
+use Storable qw(nstore retrieve);
+use XML::XPath;
+
+my @PLUGINS = qw(ECSCM-BenchGit ECSCM-BenchSvn ECSCM-BenchP4);
+my $CALLS = 0;
+my %STATE = -f $ENV{ECSCM_BENCH_STATE} ? %{retrieve($ENV{ECSCM_BENCH_STATE})} : ();
+
+END {
+    nstore(\%STATE, $ENV{ECSCM_BENCH_STATE});
+    if (open(my $fh, ">", $ENV{ECSCM_BENCH_CALLS})) {
+        print $fh "$CALLS\n";
+        close($fh);
+    }
+}
+
+sub new          { return bless {}, shift; }
+sub abortOnError { return 1; }
+
+sub quote {
+    my ($text) = @_;
+    $text =~ s/&/&amp;/g;
+    $text =~ s/</&lt;/g;
+    $text =~ s/>/&gt;/g;
+    return $text;
+}
+
+sub respond {
+    my ($body) = @_;
+    $CALLS++;
+    return XML::XPath->new(xml => "<responses><response>$body</response></responses>");
+}
+
+sub property {
+    my ($name, $value) = @_;
+    return "<property><propertyName>" . quote($name) . "</propertyName>"
+        . "<value>" . quote($value) . "</value></property>";
+}
+
+sub path {
+    my ($arg) = @_;
+    return ref($arg) ? $arg->{path} : $arg;
+}
+
+sub readFile {
+    my ($file) = @_;
+    open(my $fh, "<", $file) or die "Cannot read $file: $!\n";
+    local $/;
+    my $text = <$fh>;
+    close($fh);
+    return $text;
+}
+
+sub driverCode {
+    my ($package) = @_;
+    my $src = "$ENV{ECSCM_BENCH_TOP}/src/main/resources/project";
+    return readFile("$src/ECSCMCfg.pm")    if ($package eq "ECSCM::Base::Cfg");
+    return readFile("$src/ECSCMDriver.pm") if ($package eq "ECSCM::Base::Driver");
+    if ($package =~ /^(ECSCM::\w+)::(Cfg|Driver)$/) {
+        return "package $1::$2;\n\@ISA = (ECSCM::Base::$2);\n"
+            . "sub isImplemented { return 1; }\n1;\n";
+    }
+    return "";
+}
+
+sub getProperty {
+    my ($self, $arg) = @_;
+    my $path = path($arg);
+    my $value;
+    if ($path eq "/plugins/ECSCM/projectName") {
+        $value = "ECSCM-bench";
+    } elsif ($path =~ m{/scm_driver/(.+)$}) {
+        $value = driverCode($1);
+    } else {
+        $value = $STATE{$path};
+    }
+    return respond(defined $value ? property($path =~ m{([^/]+)$}, $value) : "");
+}
+
+sub getProperties {
+    my ($self, $arg) = @_;
+    my $path = path($arg);
+    my $body = "<propertySheet>";
+    if ($path =~ m{/scm_cfgs$}) {
+        foreach my $i (1 .. $ENV{ECSCM_BENCH_CFGS}) {
+            my $plugin = $PLUGINS[$i % @PLUGINS];
+            $body .= "<property><propertyName>cfg$i</propertyName>"
+                . "<description>Configuration $i</description><propertySheet>"
+                . property("scmPlugin", $plugin)
+                . property("server", "scm$i.example.com")
+                . property("credential", "cfg$i")
+                . "</propertySheet></property>";
+        }
+    } else {
+        foreach my $key (sort keys %STATE) {
+            next if ($key !~ m{^\Q$path\E/([^/]+)$});
+            $body .= property($1, $STATE{$key});
+        }
+    }
+    return respond("$body</propertySheet>");
+}
+
+sub setProperty {
+    my ($self, $path, $value) = @_;
+    $STATE{$path} = $value;
+    return respond(property($path, $value));
+}
+
+sub incrementProperty {
+    my ($self, $path, $amount) = @_;
+    $STATE{$path} = ($STATE{$path} || 0) + $amount;
+    return respond(property($path, $STATE{$path}));
+}
+
+# A batch is one round trip. Its requests are answered in order, each in
+# a response carrying its request id.
+sub newBatch {
+    return bless {requests => []}, "ElectricCommander::Batch";
+}
+
+sub getPlugins {
+    my $body = "";
+    foreach my $plugin (@PLUGINS) {
+        $body .= "<plugin><pluginKey>$plugin</pluginKey>"
+            . "<pluginVersion>1.0</pluginVersion><promoted>1</promoted></plugin>";
+    }
+    return respond($body);
+}
+
+sub getPlugin {
+    my ($self, $key) = @_;
+    return respond("<plugin><pluginKey>$key</pluginKey>"
+        . "<pluginVersion>1.0</pluginVersion></plugin>");
+}
+
+package ElectricCommander::Batch;
+
+sub add {
+    my ($self, $request) = @_;
+    push(@{$self->{requests}}, $request);
+    return scalar @{$self->{requests}};
+}
+
+sub setProperty {
+    my ($self, $path, $value) = @_;
+    return $self->add(sub {
+        $STATE{$path} = $value;
+        return ElectricCommander::property($path, $value);
+    });
+}
+
+sub incrementProperty {
+    my ($self, $path, $amount) = @_;
+    return $self->add(sub {
+        $STATE{$path} = ($STATE{$path} || 0) + $amount;
+        return ElectricCommander::property($path, $STATE{$path});
+    });
+}
+
+sub submit {
+    my ($self) = @_;
+    $CALLS++;
+    my $body = "";
+    my $id = 0;
+    foreach my $request (@{$self->{requests}}) {
+        $id++;
+        $body .= "<response requestId=\"$id\">" . $request->() . "</response>";
+    }
+    return XML::XPath->new(xml => "<responses>$body</responses>");
+}
+
+1;
+STUB
+    close($fh);
+}
+
+main();
@@ -2,9 +2,12 @@ package com.electriccloud.specs
 
 import spock.lang.Shared
 import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
 
 class ProcessWebHookSchedulesPipelines extends Helper {
 
+    static final String DELAY_QUEUE = '/server/ECSCM/webhookDelayQueue'
+
     @Shared
     def projectName = PREFIX + ' ProcessWebHookSchedules Pipelines'
     @Shared
@@ -91,17 +94,55 @@ class ProcessWebHookSchedulesPipelines extends Helper {
         logger.info result.logs
         then: 'there is no pipeline runs'
         findPipelineRuns(projectName, pipelineName).size() == 0
-        and: 'there is schedule created in Electric Cloud project'
-        def expectedScheduleName = "$projectName-$scheduleName-Webhook-Queue"
-        assert getSchedule('Electric Cloud', expectedScheduleName)
+        and: 'the launch is queued'
+        def queued = getQueuedLaunch(projectName, scheduleName)
+        assert queued.due
+        assert queued.pipelineName == pipelineName
+        and: 'the queue schedule is enabled'
+        assert !isScheduleDisabled('Electric Cloud', 'ECSCM-WebhookQueue')
         and: 'the pipeline is launched after quiet time'
-//        This test may be unstable due to time frames
-        System.sleep((quietTime * 60 + 1) * 1000)
-        assert findPipelineRuns(projectName, pipelineName).size() == 1
+//        The queue schedule runs every minute, so the launch may come up to a minute late
+        PollingConditions poll = createPoll((quietTime + 2) * 60)
+        poll.eventually {
+            assert findPipelineRuns(projectName, pipelineName).size() == 1
+        }
+        cleanup:
+        cleanPipelineRuns(projectName, pipelineName)
+        deleteSchedule(projectName, scheduleName)
         where:
         quietTime << [1]
     }
 
+    def 'queued launch that is due is launched and the queue schedule is disabled'() {
+        setup:
+        def searchParams = [quietTime: 'true']
+        def scheduleName = PREFIX + ' WebHook Schedule Pipeline Drain'
+        def pipelineName = 'WebHook Drain'
+        loadPipeline(projectName, pipelineName, 'sleep 1')
+        loadPipelineWebhookSchedule(projectName, scheduleName, pipelineName, searchParams)
+        cleanPipelineRuns(projectName, pipelineName)
+        setScheduleParam(projectName, scheduleName, 'ec_quietTime', 60)
+        processWebHookSchedules(webhookData, searchParams)
+        assert getQueuedLaunch(projectName, scheduleName).due
+        assert findPipelineRuns(projectName, pipelineName).size() == 0
+        and: 'the queued launch is due'
+        def due = System.currentTimeMillis().intdiv(1000) - 1
+        dsl "setProperty propertyName: '$DELAY_QUEUE/$projectName/$scheduleName/due', value: '$due'"
+        when: 'the queue is drained'
+        def result = runProcedure('/plugins/ECSCM/project', 'ProcessQueuedWebhook', [:])
+        logger.info result.logs
+        then: 'the pipeline is launched'
+        assert result.outcome == 'success'
+        assert findPipelineRuns(projectName, pipelineName).size() == 1
+        and: 'the entry is removed from the queue'
+        assert !getQueuedLaunch(projectName, scheduleName)
+        and: 'the queue schedule is disabled'
+        assert isScheduleDisabled('Electric Cloud', 'ECSCM-WebhookQueue')
+        cleanup:
+        cleanPipelineRuns(projectName, pipelineName)
+        deleteSchedule(projectName, scheduleName)
+    }
+
     def 'quiet time with burst'() {
         setup:
         def searchParams = [quietTime: 'true']
@@ -133,5 +174,23 @@ class ProcessWebHookSchedulesPipelines extends Helper {
         dsl "deleteSchedule projectName: '$projectName', scheduleName: '$scheduleName'"
     }
 
+    def getQueuedLaunch(projectName, scheduleName) {
+        def queued = [:]
+        try {
+            def sheet = dsl "getProperties path: '$DELAY_QUEUE/$projectName/$scheduleName'"
+            sheet?.propertySheet?.property?.each {
+                queued[it.propertyName] = it.value
+            }
+        } catch (Throwable e) {
+            logger.debug "No queued launch for $projectName:$scheduleName: $e.message"
+        }
+        return queued
+    }
+
+    def isScheduleDisabled(projectName, scheduleName) {
+        def disabled = getSchedule(projectName, scheduleName)?.schedule?.scheduleDisabled
+        return disabled == '1' || disabled == 'true' || disabled == true
+    }
+
 
 }
@@ -0,0 +1,172 @@
+#!/usr/bin/env perl
+###############################################################################
+#
+# leaseRace.pl
+#
+# Checks that ElectricSentry::Lease hands an expired sentry lease to only one
+# of the jobs that find it expired, and that the job whose lease was taken
+# over cannot renew it back.
+#
+# The perlUnit task of the specs build runs it before the specs; to run it
+# alone, use ec-perl from the top of the source tree:
+#
+#     ec-perl specs/unit/leaseRace.pl
+#
+# The Commander server is an in-memory property store. Batches created with
+# newBatch("single") run as one transaction, as they do on the server.
+#
+# Copyright (c) 2016 Electric Cloud, Inc.
+# All rights reserved
+###############################################################################
+
+use strict;
+use warnings;
+use File::Basename;
+use File::Spec;
+use Test::More;
+
+my $gTop = File::Spec->rel2abs(dirname(__FILE__) . "/../..");
+require "$gTop/src/main/resources/project/Lease.pm";
+
+# -----------------------------------------------------------------------------
+# Stubbed Commander responses and server
+# -----------------------------------------------------------------------------
+
+package StubValue;
+use overload '""' => sub { ${$_[0]} }, fallback => 1;
+sub new          { my ($class, $value) = @_; return bless \$value, $class; }
+sub string_value { return ${$_[0]}; }
+
+package StubResponse;
+sub new { my ($class, %fields) = @_; return bless {%fields}, $class; }
+
+sub findvalue {
+    my ($self, $path) = @_;
+    return StubValue->new($self->{error} || "") if ($path eq '//error/code');
+    return StubValue->new(defined $self->{value} ? $self->{value} : "");
+}
+
+sub findnodes {
+    my ($self) = @_;
+    return map { StubValue->new($_) } @{$self->{names} || []};
+}
+
+package StubCommander;
+sub new { return bless {props => {}}, shift; }
+
+sub getProperty {
+    my ($self, $path) = @_;
+    return StubResponse->new(error => "NoSuchProperty")
+        unless (exists $self->{props}{$path});
+    return StubResponse->new(value => $self->{props}{$path});
+}
+
+sub getProperties {
+    my ($self, $args) = @_;
+    my $prefix = "$args->{path}/";
+    my @names  = map { substr($_, length $prefix) }
+        grep { index($_, $prefix) == 0 } sort keys %{$self->{props}};
+    return StubResponse->new(names => \@names);
+}
+
+sub createProperty {
+    my ($self, $path, $args) = @_;
+    return StubResponse->new(error => "DuplicatePropertyName")
+        if (exists $self->{props}{$path});
+    $self->{props}{$path} = $args->{value};
+    return StubResponse->new();
+}
+
+sub setProperty {
+    my ($self, $path, $value) = @_;
+    $self->{props}{$path} = $value;
+    return StubResponse->new();
+}
+
+sub deleteProperty {
+    my ($self, $path) = @_;
+    return StubResponse->new(error => "NoSuchProperty")
+        unless (exists $self->{props}{$path});
+    delete $self->{props}{$path};
+    return StubResponse->new();
+}
+
+sub newBatch {
+    my ($self, $mode) = @_;
+    return StubBatch->new($self, $mode);
+}
+
+package StubBatch;
+sub new {
+    my ($class, $cmdr, $mode) = @_;
+    return bless {cmdr => $cmdr, mode => $mode || "parallel", calls => []},
+        $class;
+}
+
+sub AUTOLOAD {
+    my ($self, @args) = @_;
+    (my $name = our $AUTOLOAD) =~ s/.*:://;
+    return if ($name eq "DESTROY");
+    push(@{$self->{calls}}, [$name, @args]);
+    return $#{$self->{calls}};
+}
+
+sub submit {
+    my ($self) = @_;
+    my %saved = %{$self->{cmdr}{props}};
+    foreach my $call (@{$self->{calls}}) {
+        my ($name, @args) = @$call;
+        my $response = $self->{cmdr}->$name(@args);
+        if ($response->findvalue('//error/code') ne ""
+            && $self->{mode} eq "single") {
+
+            # The transaction fails as a whole
+            $self->{cmdr}{props} = \%saved;
+            die "batch failed: " . $response->findvalue('//error/code') . "\n";
+        }
+    }
+}
+
+package main;
+
+# -----------------------------------------------------------------------------
+# Tests
+# -----------------------------------------------------------------------------
+
+my $cmdr  = StubCommander->new();
+my $lease = new ElectricSentry::Lease($cmdr, "Electric Cloud", "SentryMonitor");
+
+my ($result, $holder) = $lease->acquire("owner", "job-1", 60);
+is($result, "acquired", "a free slot is acquired");
+
+($result, $holder) = $lease->acquire("owner", "job-2", 60);
+is($result, "",      "a slot renewed in time is not taken");
+is($holder, "job-1", "the holder is reported");
+
+# job-1 stops renewing; job-2 and job-3 both read its expired lease
+my $expired = time() - 10;
+$cmdr->{props}{"$::gSentryLeasePath/Electric Cloud/SentryMonitor/owner"} =
+    "job-1 $expired";
+my ($seen2, $expires2) = $lease->holder("owner");
+my ($seen3, $expires3) = $lease->holder("owner");
+
+ok($lease->takeover("owner", $seen2, $expires2, "job-2", 60),
+    "the first job takes over the expired lease");
+ok(!$lease->takeover("owner", $seen3, $expires3, "job-3", 60),
+    "the second job that read the same expired lease does not");
+is(($lease->holder("owner"))[0], "job-2", "the first job keeps the slot");
+
+ok(!$lease->renew("owner", "job-1", 60),
+    "the job whose lease was taken over cannot renew it");
+is(($lease->holder("owner"))[0], "job-2", "the slot still belongs to job-2");
+
+ok($lease->renew("owner", "job-2", 60), "the new holder renews it");
+
+# A later expiry of job-2's lease can be taken over again
+$cmdr->{props}{"$::gSentryLeasePath/Electric Cloud/SentryMonitor/owner"} =
+    "job-2 " . (time() - 5);
+($result, $holder) = $lease->acquire("owner", "job-4", 60);
+is($result, "takeover", "an expired lease is taken over through acquire");
+is($holder, "job-4",    "by the job that asked for it");
+
+done_testing();
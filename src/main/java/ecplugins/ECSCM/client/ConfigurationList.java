@@ -10,6 +10,7 @@
 package ecplugins.ECSCM.client;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.google.gwt.http.client.Request;
@@ -51,6 +52,7 @@ public class ConfigurationList
     //~ Instance fields --------------------------------------------------------
 
     private ScmConfigList m_configList;
+    private boolean       m_hasHeaderRow;
 
     //~ Constructors -----------------------------------------------------------
 
@@ -81,10 +83,22 @@ public class ConfigurationList
                 new ChainedCallback() {
                     @Override public void onComplete()
                     {
-                        loadList();
+                        clearStatus();
                     }
                 });
 
+        // Show each page of configurations as soon as it arrives
+        loader.setPageSize(ScmConfigListLoader.DEFAULT_PAGE_SIZE);
+        loader.setPageCallback(new ScmConfigListLoader.PageCallback() {
+                @Override public void onPageArrived(List<String> configNames)
+                {
+                    addRows(configNames);
+                }
+            });
+
+        // Coming back from the edit page: descriptions may have changed
+        // without the configuration list revision being bumped
+        loader.setRefresh("1".equals(getGetParameter("refresh")));
         loader.load();
     }
 
@@ -122,16 +136,17 @@ public class ConfigurationList
         doRequest(request);
     }
 
-    private void loadList()
+    private void addRows(List<String> configNames)
     {
         ListTable listTable = getListTable();
 
-        if (!m_configList.isEmpty()) {
+        if (!m_hasHeaderRow && !configNames.isEmpty()) {
             listTable.addHeaderRow(true, "Configuration Name", "Description",
                 "Plugin");
+            m_hasHeaderRow = true;
         }
 
-        for (String configName : m_configList.getConfigNames()) {
+        for (String configName : configNames) {
 
             // Config name
             Label configNameLabel = new Label(configName);
@@ -182,8 +197,6 @@ public class ConfigurationList
             listTable.addRow(configNameLabel, configDescLabel,
                 configPluginLabel, actions);
         }
-
-        clearStatus();
     }
 
     private void waitForJob(final String jobId)
@@ -223,6 +236,7 @@ public class ConfigurationList
                         if (responseString.startsWith("Success")) {
 
                             // We're done!
+                            ScmConfigListCache.invalidate();
                             Location.reload();
                         }
                         else {
@@ -52,8 +52,11 @@ public class ConfigurationManagementFactory
                     "Edit Source Control Configuration", configName,
                     propSheetPath, formXmlPath, getPluginName());
 
+            // Ask the list to refresh its cached copy after an edit
             ((InternalFormBase) component).setDefaultRedirectToUrl(
-                createPageUrl(getPluginName(), "configurations").buildString());
+                createPageUrl(getPluginName(), "configurations")
+                    .setParameter("refresh", "1")
+                    .buildString());
         }
         else {
 
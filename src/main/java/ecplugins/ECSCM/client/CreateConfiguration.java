@@ -24,9 +24,11 @@ import com.google.gwt.user.client.ui.Anchor;
 import com.electriccloud.commander.client.domain.Property;
 import com.electriccloud.commander.client.domain.PropertySheet;
 import com.electriccloud.commander.client.requests.GetPropertiesRequest;
+import com.electriccloud.commander.client.requests.GetPropertyRequest;
 import com.electriccloud.commander.client.requests.RunProcedureRequest;
 import com.electriccloud.commander.client.responses.CommanderError;
 import com.electriccloud.commander.client.responses.DefaultRunProcedureResponseCallback;
+import com.electriccloud.commander.client.responses.PropertyCallback;
 import com.electriccloud.commander.client.responses.PropertySheetCallback;
 import com.electriccloud.commander.client.responses.RunProcedureResponse;
 import com.electriccloud.commander.gwt.client.requests.CgiRequestProxy;
@@ -37,9 +39,9 @@ import com.electriccloud.commander.gwt.client.ui.FormTable;
 import com.electriccloud.commander.gwt.client.ui.SimpleErrorBox;
 import com.electriccloud.commander.gwt.client.ui.ValuedListBox;
 import com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder;
+import com.electriccloud.commander.client.util.StringUtil;
 
 import ecinternal.client.InternalFormBase;
-import ecinternal.client.ui.CustomEditorLoader;
 
 import static com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder.createPageUrl;
 import static com.electriccloud.commander.gwt.client.util.CommanderUrlBuilder.createUrl;
@@ -59,7 +61,8 @@ public class CreateConfiguration
 
     //~ Instance fields --------------------------------------------------------
 
-    private Map<String, String> m_scmTypeMap;
+    private Map<String, String>          m_scmTypeMap;
+    private Map<String, ScmFormTemplate> m_formTemplates;
 
     //~ Constructors -----------------------------------------------------------
 
@@ -71,7 +74,8 @@ public class CreateConfiguration
                 "configurations");
 
         setDefaultRedirectToUrl(urlBuilder.buildString());
-        m_scmTypeMap = new HashMap<String, String>();
+        m_scmTypeMap    = new HashMap<String, String>();
+        m_formTemplates = new HashMap<String, ScmFormTemplate>();
     }
 
     //~ Methods ----------------------------------------------------------------
@@ -241,12 +245,71 @@ public class CreateConfiguration
         String scmPlugin = m_scmTypeMap.get(getScmTypeValue());
 
         if (!scmPlugin.isEmpty()) {
-            CustomEditorLoader loader = new CustomEditorLoader(fb, this);
+            ScmFormTemplate template = m_formTemplates.get(scmPlugin);
 
-            loader.setCustomEditorPath("/plugins/" + scmPlugin
-                    + "/project/scm_form/createConfig");
-            loader.load();
+            if (template != null) {
+                template.addRows(getUIFactory(), fb);
+            }
+            else {
+                loadCreateConfigForm(scmPlugin);
+            }
+        }
+    }
+
+    /**
+     * Fetches and parses the createConfig form of an SCM plugin the first
+     * time it is selected.
+     */
+    private void loadCreateConfigForm(final String scmPlugin)
+    {
+        GetPropertyRequest request = getRequestFactory()
+                .createGetPropertyRequest();
+
+        request.setPropertyName("/plugins/" + scmPlugin
+                + "/project/scm_form/createConfig");
+        request.setExpand(false);
+        request.setCallback(new PropertyCallback() {
+                @Override public void handleResponse(Property response)
+                {
+
+                    if (getLog().isDebugEnabled()) {
+                        getLog().debug(
+                            "Commander getProperty request returned: "
+                                + response);
+                    }
+
+                    if (response == null
+                            || StringUtil.isEmpty(response.getValue())) {
+                        addErrorMessage("No configuration form found for "
+                                + scmPlugin);
+
+                        return;
+                    }
+
+                    ScmFormTemplate template = ScmFormTemplate.parse(
+                            response.getValue());
+
+                    m_formTemplates.put(scmPlugin, template);
+
+                    // The user may have picked another type meanwhile
+                    if (scmPlugin.equals(
+                                m_scmTypeMap.get(getScmTypeValue()))) {
+                        template.addRows(getUIFactory(),
+                            (FormBuilder) getFormTable());
+                    }
+                }
+
+                @Override public void handleError(CommanderError error)
+                {
+                    addErrorMessage(error);
+                }
+            });
+
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("Issuing Commander request: " + request);
         }
+
+        doRequest(request);
     }
 
     private void parseScmTypes(PropertySheet propertySheet)
@@ -310,6 +373,7 @@ public class CreateConfiguration
                         if (responseString.startsWith("Success")) {
 
                             // We're done!
+                            ScmConfigListCache.invalidate();
                             cancel();
                         }
                         else {
@@ -9,6 +9,8 @@
 
 package ecplugins.ECSCM.client;
 
+import java.util.List;
+
 import com.google.gwt.user.client.ui.HasValue;
 import com.google.gwt.user.client.ui.TextBox;
 
@@ -90,22 +92,32 @@ public abstract class CustomEditorPortalBase
                 m_scmImplementedMethod, this, new ChainedCallback() {
                     @Override public void onComplete()
                     {
-                        m_configList.populateConfigListBox(
-                            m_configurationTypeElement);
-
-                        // Select the first option by default
-                        if (m_configurationTypeElement.getItemCount() > 0) {
-                            String firstOption =
-                                m_configurationTypeElement.getItemText(0);
-
-                            m_configurationTypeElement.setValue(firstOption);
-                        }
 
                         // Clear the status now that loading is complete
                         clearStatus();
                     }
                 });
 
+        loader.setPageSize(ScmConfigListLoader.DEFAULT_PAGE_SIZE);
+        loader.setPageCallback(new ScmConfigListLoader.PageCallback() {
+                @Override public void onPageArrived(List<String> configNames)
+                {
+                    boolean firstPage =
+                        m_configurationTypeElement.getItemCount() == 0;
+
+                    m_configList.populateConfigListBox(
+                        m_configurationTypeElement, configNames);
+
+                    // Select the first option by default
+                    if (firstPage
+                            && m_configurationTypeElement.getItemCount() > 0) {
+                        String firstOption =
+                            m_configurationTypeElement.getItemText(0);
+
+                        m_configurationTypeElement.setValue(firstOption);
+                    }
+                }
+            });
         loader.load();
     }
 
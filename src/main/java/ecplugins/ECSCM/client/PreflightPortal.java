@@ -10,6 +10,7 @@
 package ecplugins.ECSCM.client;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import com.google.gwt.event.logical.shared.ValueChangeEvent;
@@ -108,7 +109,10 @@ public class PreflightPortal
                 "apf_driver", this, new ChainedCallback() {
                     @Override public void onComplete()
                     {
-                        m_configList.populateConfigListBox(getScmConfig());
+
+                        // Editors arrive after the last page; show the
+                        // parameters of a configuration picked meanwhile
+                        renderPreflightParams();
 
                         // Clear the status now that loading is complete
                         clearStatus();
@@ -116,6 +120,14 @@ public class PreflightPortal
                 });
 
         loader.setEditorName("preflight");
+        loader.setPageSize(ScmConfigListLoader.DEFAULT_PAGE_SIZE);
+        loader.setPageCallback(new ScmConfigListLoader.PageCallback() {
+                @Override public void onPageArrived(List<String> configNames)
+                {
+                    m_configList.populateConfigListBox(getScmConfig(),
+                        configNames);
+                }
+            });
         loader.load();
     }
 
@@ -211,7 +223,12 @@ public class PreflightPortal
         String scmConfigValue = getScmConfig().getValue();
 
         if (!StringUtil.isEmpty(scmConfigValue)) {
-            fb.addRowsWithXml(m_configList.getEditorDefinition(scmConfigValue));
+            ScmFormTemplate template = m_configList.getFormTemplate(
+                    scmConfigValue);
+
+            if (template != null) {
+                template.addRows(getUIFactory(), fb);
+            }
         }
     }
 
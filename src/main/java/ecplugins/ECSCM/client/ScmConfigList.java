@@ -9,6 +9,8 @@
 
 package ecplugins.ECSCM.client;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,10 +35,15 @@ public class ScmConfigList
 
     //~ Instance fields --------------------------------------------------------
 
-    private final Map<String, ScmConfigInfo> m_configInfo        =
+    private final Map<String, ScmConfigInfo>   m_configInfo        =
         new TreeMap<String, ScmConfigInfo>();
-    private final Map<String, String>        m_editorDefinitions =
+    private final Map<String, String>          m_editorDefinitions =
         new HashMap<String, String>();
+    private final Map<String, ScmFormTemplate> m_formTemplates     =
+        new HashMap<String, ScmFormTemplate>();
+    private final List<String>                 m_lastPage          =
+        new ArrayList<String>();
+    private boolean                            m_hasMorePages;
 
     //~ Methods ----------------------------------------------------------------
 
@@ -62,21 +69,44 @@ public class ScmConfigList
         Node       configListNode = getNodeByName(responseNode, "cfgs");
         List<Node> configNodes    = getNodesByName(configListNode, "cfg");
 
+        m_lastPage.clear();
+
         for (Node configNode : configNodes) {
             String configName   = getNodeValueByName(configNode, "name");
             String configPlugin = getNodeValueByName(configNode, "plugin");
             String configDesc   = getNodeValueByName(configNode, "desc");
 
             addConfig(configName, configPlugin, configDesc);
+            m_lastPage.add(configName);
         }
 
+        // A paged response says whether more pages follow
+        Node pageNode = getNodeByName(responseNode, "page");
+
+        m_hasMorePages = pageNode != null
+                && "1".equals(getNodeValueByName(pageNode, "more"));
+
         return null;
     }
 
     public void populateConfigListBox(ValuedListBox lb)
+    {
+        populateConfigListBox(lb, m_configInfo.keySet());
+    }
+
+    /**
+     * Appends the given configurations to a list box, e.g. the ones returned
+     * by {@link #getLastPage()}.
+     *
+     * @param  lb           the list box to append to
+     * @param  configNames  names of configurations in this list
+     */
+    public void populateConfigListBox(
+            ValuedListBox      lb,
+            Collection<String> configNames)
     {
 
-        for (String configName : m_configInfo.keySet()) {
+        for (String configName : configNames) {
             lb.addItem(configName);
         }
     }
@@ -119,6 +149,55 @@ public class ScmConfigList
         return m_editorDefinitions.get(m_configInfo.get(configName).m_plugin);
     }
 
+    /**
+     * Returns the configurations added by the last call to {@link
+     * #parseResponse(String)}, in the order the server sent them.
+     *
+     * @return  the configuration names of the last page
+     */
+    public List<String> getLastPage()
+    {
+        return m_lastPage;
+    }
+
+    /**
+     * @return  true if the last parsed response was a page of a longer list
+     */
+    public boolean hasMorePages()
+    {
+        return m_hasMorePages;
+    }
+
+    /**
+     * Gets the parsed form of the editor defined for a particular SCM type.
+     * The editor XML is parsed the first time a configuration of that type
+     * asks for it.
+     *
+     * @param   configName  a valid SCM configuration name on the commander
+     *                      system
+     *
+     * @return  a form template, or null if no editor has been loaded for the
+     *          configuration's plugin
+     */
+    public ScmFormTemplate getFormTemplate(String configName)
+    {
+        String          configPlugin = m_configInfo.get(configName).m_plugin;
+        ScmFormTemplate template     = m_formTemplates.get(configPlugin);
+
+        if (template == null) {
+            String editorDefinition = m_editorDefinitions.get(configPlugin);
+
+            if (editorDefinition == null) {
+                return null;
+            }
+
+            template = ScmFormTemplate.parse(editorDefinition);
+            m_formTemplates.put(configPlugin, template);
+        }
+
+        return template;
+    }
+
     public boolean isEmpty()
     {
         return m_configInfo.isEmpty();
@@ -133,6 +212,7 @@ public class ScmConfigList
             String editorDefiniton)
     {
         m_editorDefinitions.put(configPlugin, editorDefiniton);
+        m_formTemplates.remove(configPlugin);
     }
 
     //~ Inner Classes ----------------------------------------------------------
@@ -0,0 +1,284 @@
+
+// ScmConfigListCache.java --
+//
+// ScmConfigListCache.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2016 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gwt.storage.client.Storage;
+
+/**
+ * Session wide cache of the SCM configuration lists and editor definitions
+ * loaded by {@link ScmConfigListLoader}.
+ *
+ * <p>Entries are kept in memory and, where the browser supports it, in the
+ * session storage so that they survive switching between Commander pages.
+ * Entries expire after {@link #DEFAULT_TIME_TO_LIVE} milliseconds and are
+ * dropped by {@link #invalidate()} whenever a configuration is created,
+ * edited or deleted.</p>
+ */
+public class ScmConfigListCache
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+    private static final String KEY_PREFIX    = "ECSCM.scmConfigList.";
+    private static final String LIST_PREFIX   = KEY_PREFIX + "list.";
+    private static final String EDITOR_PREFIX = KEY_PREFIX + "editor.";
+
+    private static final Map<String, String> s_entries    =
+        new HashMap<String, String>();
+    private static long                      s_timeToLive =
+        DEFAULT_TIME_TO_LIVE;
+
+    //~ Constructors -----------------------------------------------------------
+
+    private ScmConfigListCache() { }
+
+    //~ Methods ----------------------------------------------------------------
+
+    /**
+     * Drops every cached list and editor definition.
+     */
+    public static void invalidate()
+    {
+        s_entries.clear();
+
+        Storage storage = Storage.getSessionStorageIfSupported();
+
+        if (storage == null) {
+            return;
+        }
+
+        List<String> keys = new ArrayList<String>();
+
+        for (int i = 0; i < storage.getLength(); i++) {
+            String key = storage.key(i);
+
+            if (key != null && key.startsWith(KEY_PREFIX)) {
+                keys.add(key);
+            }
+        }
+
+        for (String key : keys) {
+            storage.removeItem(key);
+        }
+    }
+
+    static String getEditorDefinition(
+            String configPlugin,
+            String editorName)
+    {
+        return get(EDITOR_PREFIX + editorName + "." + configPlugin);
+    }
+
+    static void putEditorDefinition(
+            String configPlugin,
+            String editorName,
+            String editorDefinition)
+    {
+        put(EDITOR_PREFIX + editorName + "." + configPlugin,
+            editorDefinition);
+    }
+
+    /**
+     * Copies a cached configuration list into the given list.
+     *
+     * @param   implementedMethod  the method the configurations implement, if
+     *                             any
+     * @param   editorName         the editor loaded along with the list, if
+     *                             any
+     * @param   configList         the list to fill
+     *
+     * @return  false if nothing usable was cached for this method and
+     *          editor, in which case the list is left untouched
+     */
+    static boolean restore(
+            String        implementedMethod,
+            String        editorName,
+            ScmConfigList configList)
+    {
+        String value = get(constructListKey(implementedMethod, editorName));
+
+        if (value == null) {
+            return false;
+        }
+
+        List<String[]> configs = new ArrayList<String[]>();
+
+        for (String line : value.split("\n")) {
+
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = line.split("\t", -1);
+
+            if (fields.length != 3) {
+
+                // Written by a different version; load the list again
+                return false;
+            }
+
+            configs.add(fields);
+        }
+
+        for (String[] fields : configs) {
+            configList.addConfig(unescape(fields[0]), unescape(fields[1]),
+                unescape(fields[2]));
+        }
+
+        return true;
+    }
+
+    static void store(
+            String        implementedMethod,
+            String        editorName,
+            ScmConfigList configList)
+    {
+        StringBuilder value = new StringBuilder();
+
+        for (String configName : configList.getConfigNames()) {
+            value.append(escape(configName))
+                 .append('\t')
+                 .append(escape(configList.getConfigPlugin(configName)))
+                 .append('\t')
+                 .append(escape(configList.getConfigDescription(configName)))
+                 .append('\n');
+        }
+
+        put(constructListKey(implementedMethod, editorName),
+            value.toString());
+    }
+
+    /**
+     * Overrides the time to live of new and existing entries. Used by tests.
+     *
+     * @param  timeToLive  milliseconds an entry stays valid
+     */
+    static void setTimeToLive(long timeToLive)
+    {
+        s_timeToLive = timeToLive;
+    }
+
+    private static String constructListKey(
+            String implementedMethod,
+            String editorName)
+    {
+        return LIST_PREFIX + (implementedMethod == null ? "" : implementedMethod)
+            + "." + (editorName == null ? "" : editorName);
+    }
+
+    private static String escape(String value)
+    {
+
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("\\", "\\\\")
+                    .replace("\t", "\\t")
+                    .replace("\n", "\\n");
+    }
+
+    /**
+     * Returns the value of an entry that has not expired yet. Entries are
+     * stored as the time they were written, a newline, and the value.
+     */
+    private static String get(String key)
+    {
+        String entry = s_entries.get(key);
+
+        if (entry == null) {
+            Storage storage = Storage.getSessionStorageIfSupported();
+
+            if (storage != null) {
+                entry = storage.getItem(key);
+            }
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        int newline = entry.indexOf('\n');
+
+        if (newline < 0) {
+            return null;
+        }
+
+        long written;
+
+        try {
+            written = Long.parseLong(entry.substring(0, newline));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - written >= s_timeToLive) {
+            return null;
+        }
+
+        s_entries.put(key, entry);
+
+        return entry.substring(newline + 1);
+    }
+
+    private static void put(
+            String key,
+            String value)
+    {
+        String entry = System.currentTimeMillis() + "\n" + value;
+
+        s_entries.put(key, entry);
+
+        Storage storage = Storage.getSessionStorageIfSupported();
+
+        if (storage != null) {
+
+            try {
+                storage.setItem(key, entry);
+            }
+            catch (RuntimeException e) {
+
+                // Over quota: keep the in-memory copy only
+                storage.removeItem(key);
+            }
+        }
+    }
+
+    private static String unescape(String value)
+    {
+        StringBuilder result = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+
+                c = next == 't'
+                    ? '\t'
+                    : next == 'n'
+                        ? '\n'
+                        : next;
+            }
+
+            result.append(c);
+        }
+
+        return result.toString();
+    }
+}
@@ -41,11 +41,24 @@ public class ScmConfigListLoader
     extends Loader
 {
 
+    //~ Static fields/initializers ---------------------------------------------
+
+    /**
+     * Page size used by the portals, small enough for the first page to
+     * render right away on installations with thousands of configurations.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 200;
+
     //~ Instance fields --------------------------------------------------------
 
     private ScmConfigList   m_configList;
     private CgiRequestProxy m_cgiRequestProxy;
     private String          m_implementedMethod;
+    private boolean         m_refresh;
+    private String          m_prefix;
+    private int             m_pageSize;
+    private int             m_offset;
+    private PageCallback    m_pageCallback;
 
     /**
      * Editor means custom form xml that has been defined on a plugin. This
@@ -87,6 +100,33 @@ public class ScmConfigListLoader
      * Caller must invoke this function to start loading process.
      */
     @Override public void load()
+    {
+        m_offset = 0;
+
+        if (m_refresh) {
+
+            // The list is known to have changed
+            ScmConfigListCache.invalidate();
+        }
+        else if (StringUtil.isEmpty(m_prefix)
+                && ScmConfigListCache.restore(m_implementedMethod,
+                    m_editorName, m_configList)) {
+
+            // Served from the session cache as a single page
+            if (m_pageCallback != null) {
+                m_pageCallback.onPageArrived(new ArrayList<String>(
+                        m_configList.getConfigNames()));
+            }
+
+            finishLoad();
+
+            return;
+        }
+
+        loadConfigs(constructCgiParams());
+    }
+
+    Map<String, String> constructCgiParams()
     {
         Map<String, String> cgiParams = new HashMap<String, String>();
 
@@ -98,7 +138,21 @@ public class ScmConfigListLoader
             cgiParams.put("method", m_implementedMethod);
         }
 
-        loadConfigs(cgiParams);
+        // Only the first page needs to rebuild the server side cache
+        if (m_refresh && m_offset == 0) {
+            cgiParams.put("refresh", "1");
+        }
+
+        if (!StringUtil.isEmpty(m_prefix)) {
+            cgiParams.put("prefix", m_prefix);
+        }
+
+        if (m_pageSize > 0) {
+            cgiParams.put("offset", Integer.toString(m_offset));
+            cgiParams.put("limit", Integer.toString(m_pageSize));
+        }
+
+        return cgiParams;
     }
 
     static String constructEditorRequestId(String pluginName)
@@ -178,16 +232,28 @@ public class ScmConfigListLoader
                             }
                             else {
 
-                                if (StringUtil.isEmpty(m_editorName)
-                                        || m_configList.isEmpty()) {
+                                if (m_pageCallback != null) {
+                                    m_pageCallback.onPageArrived(
+                                        m_configList.getLastPage());
+                                }
 
-                                    // We're done!
-                                    if (m_callback != null) {
-                                        m_callback.onComplete();
-                                    }
+                                if (m_pageSize > 0
+                                        && m_configList.hasMorePages()) {
+
+                                    // Fetch the next page
+                                    m_offset += m_pageSize;
+                                    loadConfigs(constructCgiParams());
                                 }
                                 else {
-                                    loadEditors();
+
+                                    // A filtered list is not the whole list
+                                    if (StringUtil.isEmpty(m_prefix)) {
+                                        ScmConfigListCache.store(
+                                            m_implementedMethod, m_editorName,
+                                            m_configList);
+                                    }
+
+                                    finishLoad();
                                 }
                             }
                         }
@@ -212,6 +278,24 @@ public class ScmConfigListLoader
         }
     }
 
+    /**
+     * Loads the editors, if any were asked for, once the list is complete.
+     */
+    private void finishLoad()
+    {
+
+        if (StringUtil.isEmpty(m_editorName) || m_configList.isEmpty()) {
+
+            // We're done!
+            if (m_callback != null) {
+                m_callback.onComplete();
+            }
+        }
+        else {
+            loadEditors();
+        }
+    }
+
     private void loadEditors()
     {
 
@@ -223,7 +307,18 @@ public class ScmConfigListLoader
         for (String configName : m_configList.getConfigNames()) {
             String configPlugin = m_configList.getConfigPlugin(configName);
 
-            if (configPlugins.add(configPlugin)) {
+            if (!configPlugins.add(configPlugin)) {
+                continue;
+            }
+
+            String editorDefinition = ScmConfigListCache.getEditorDefinition(
+                    configPlugin, m_editorName);
+
+            if (editorDefinition != null) {
+                m_configList.setEditorDefinition(configPlugin,
+                    editorDefinition);
+            }
+            else {
                 GetPropertyRequest getPropertyRequest = constructEditorRequest(
                         m_editorName, configPlugin);
 
@@ -233,6 +328,16 @@ public class ScmConfigListLoader
             }
         }
 
+        if (requests.isEmpty()) {
+
+            // Every editor was cached
+            if (m_callback != null) {
+                m_callback.onComplete();
+            }
+
+            return;
+        }
+
         m_requestManager.doRequest(new ChainedCallback() {
                 @Override public void onComplete()
                 {
@@ -255,6 +360,52 @@ public class ScmConfigListLoader
         m_cgiRequestProxy = cgiRequestProxy;
     }
 
+    /**
+     * Set the callback that is told about every page of configurations as it
+     * arrives. The {@link ChainedCallback} passed to the constructor is still
+     * called once all pages and editors have been loaded.
+     *
+     * @param  pageCallback  a {@link PageCallback}
+     */
+    public void setPageCallback(PageCallback pageCallback)
+    {
+        m_pageCallback = pageCallback;
+    }
+
+    /**
+     * Fetch the list in pages of the given size. Call this function before
+     * calling {@link #load()}.
+     *
+     * @param  pageSize  the number of configurations per request, or 0 to
+     *                   fetch the whole list with a single request
+     */
+    public void setPageSize(int pageSize)
+    {
+        m_pageSize = pageSize;
+    }
+
+    /**
+     * Only load configurations whose name starts with the given prefix. Call
+     * this function before calling {@link #load()}.
+     *
+     * @param  prefix  a configuration name prefix
+     */
+    public void setPrefix(String prefix)
+    {
+        m_prefix = prefix;
+    }
+
+    /**
+     * Ask the CGI script to rebuild its cached configuration list instead of
+     * serving it. Call this function before calling {@link #load()}.
+     *
+     * @param  refresh  true to bypass the server side cache
+     */
+    public void setRefresh(boolean refresh)
+    {
+        m_refresh = refresh;
+    }
+
     /**
      * Set the editor name. Call this function before calling {@link #load()}.
      *
@@ -267,6 +418,24 @@ public class ScmConfigListLoader
         m_editorName = editorName;
     }
 
+    //~ Inner Interfaces -------------------------------------------------------
+
+    /**
+     * Callback for each page of configurations loaded by a {@link
+     * ScmConfigListLoader}.
+     */
+    public interface PageCallback
+    {
+
+        //~ Methods ------------------------------------------------------------
+
+        /**
+         * @param  configNames  the configurations added to the {@link
+         *                      ScmConfigList} by this page, in list order
+         */
+        void onPageArrived(List<String> configNames);
+    }
+
     //~ Inner Classes ----------------------------------------------------------
 
     public class EditorLoaderCallback
@@ -313,6 +482,8 @@ public class ScmConfigListLoader
 
                 if (!StringUtil.isEmpty(value)) {
                     m_configList.setEditorDefinition(m_configPlugin, value);
+                    ScmConfigListCache.putEditorDefinition(m_configPlugin,
+                        m_editorName, value);
 
                     return;
                 }
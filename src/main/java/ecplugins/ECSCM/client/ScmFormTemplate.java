@@ -0,0 +1,381 @@
+// ScmFormTemplate.java --
+//
+// ScmFormTemplate.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2016 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.gwt.event.logical.shared.ValueChangeEvent;
+import com.google.gwt.event.logical.shared.ValueChangeHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
+import com.google.gwt.user.client.ui.CheckBox;
+import com.google.gwt.user.client.ui.Composite;
+import com.google.gwt.user.client.ui.HasValue;
+import com.google.gwt.user.client.ui.PasswordTextBox;
+import com.google.gwt.user.client.ui.TextArea;
+import com.google.gwt.user.client.ui.TextBox;
+import com.google.gwt.user.client.ui.Widget;
+import com.google.gwt.xml.client.Document;
+import com.google.gwt.xml.client.Node;
+import com.google.gwt.xml.client.XMLParser;
+
+import com.electriccloud.commander.gwt.client.ui.FormBuilder;
+import com.electriccloud.commander.gwt.client.ui.UIFactory;
+import com.electriccloud.commander.gwt.client.ui.ValuedListBox;
+
+import static com.electriccloud.commander.gwt.client.util.XmlUtil.getNodeByName;
+import static com.electriccloud.commander.gwt.client.util.XmlUtil.getNodeValueByName;
+import static com.electriccloud.commander.gwt.client.util.XmlUtil.getNodesByName;
+
+/**
+ * An editor form definition that has been parsed once and can be added to
+ * any number of {@link FormBuilder}s without parsing it again.
+ *
+ * <p>Entry, textarea, password, checkbox, select and credential elements are
+ * read into an {@link ElementRow} when the template is parsed, and adding
+ * the template to a form only creates fresh widgets for them. Consecutive
+ * elements of any other type, or without a type, are kept as an XML
+ * fragment built at parse time and handed to {@link
+ * FormBuilder#addRowsWithXml(String)}, so that they behave exactly as
+ * before.</p>
+ */
+public class ScmFormTemplate
+{
+
+    //~ Static fields/initializers ---------------------------------------------
+
+    private static int s_parseCount;
+
+    //~ Instance fields --------------------------------------------------------
+
+    private final List<Row> m_rows;
+
+    //~ Constructors -----------------------------------------------------------
+
+    private ScmFormTemplate(List<Row> rows)
+    {
+        m_rows = Collections.unmodifiableList(rows);
+    }
+
+    //~ Methods ----------------------------------------------------------------
+
+    /**
+     * Adds a fresh set of rows for this form to the given form builder.
+     *
+     * @param  uiFactory  the factory to create Commander widgets with
+     * @param  fb         the form builder to add rows to
+     */
+    public void addRows(
+            UIFactory   uiFactory,
+            FormBuilder fb)
+    {
+
+        for (Row row : m_rows) {
+            row.addTo(uiFactory, fb);
+        }
+    }
+
+    /**
+     * Parses a form XML definition as stored in scm_form.
+     *
+     * @param   formXml  a form XML definition
+     *
+     * @return  the parsed template
+     */
+    public static ScmFormTemplate parse(String formXml)
+    {
+        s_parseCount++;
+
+        Document      document     = XMLParser.parse(formXml);
+        Node          editorNode   = getNodeByName(document, "editor");
+        List<Node>    elementNodes = getNodesByName(editorNode, "formElement");
+        List<Row>     rows         = new ArrayList<Row>();
+        StringBuilder fragment     = null;
+
+        for (Node elementNode : elementNodes) {
+            String type = getNodeValueByName(elementNode, "type");
+
+            if (ElementRow.handles(type)) {
+
+                if (fragment != null) {
+                    rows.add(new XmlRows(fragment.append("</editor>")
+                                                 .toString()));
+                    fragment = null;
+                }
+
+                rows.add(new ElementRow(type, elementNode));
+            }
+            else {
+
+                if (fragment == null) {
+                    fragment = new StringBuilder("<editor>");
+                }
+
+                fragment.append(elementNode.toString());
+            }
+        }
+
+        if (fragment != null) {
+            rows.add(new XmlRows(fragment.append("</editor>")
+                                         .toString()));
+        }
+
+        return new ScmFormTemplate(rows);
+    }
+
+    /**
+     * @return  the number of form definitions parsed so far. Used by tests.
+     */
+    static int getParseCount()
+    {
+        return s_parseCount;
+    }
+
+    /**
+     * Form XML flags are written either as "1" or as "true".
+     */
+    private static boolean isTrue(String value)
+    {
+        return "1".equals(value) || "true".equalsIgnoreCase(value);
+    }
+
+    //~ Inner Interfaces -------------------------------------------------------
+
+    private interface Row
+    {
+
+        //~ Methods ------------------------------------------------------------
+
+        void addTo(
+                UIFactory   uiFactory,
+                FormBuilder fb);
+    }
+
+    //~ Inner Classes ----------------------------------------------------------
+
+    /**
+     * One form element of a type this template builds itself, read once from
+     * the form XML.
+     */
+    private static class ElementRow
+        implements Row
+    {
+
+        //~ Static fields/initializers -----------------------------------------
+
+        private static final List<String> s_types = Arrays.asList("entry",
+                "textarea", "password", "checkbox", "select", "credential");
+
+        //~ Instance fields ----------------------------------------------------
+
+        private final String       m_type;
+        private final boolean      m_required;
+        private final String       m_label;
+        private final String       m_property;
+        private final String       m_documentation;
+        private final String       m_value;
+        private final String       m_checkedValue;
+        private final String       m_uncheckedValue;
+        private final List<String> m_optionNames  = new ArrayList<String>();
+        private final List<String> m_optionValues = new ArrayList<String>();
+
+        //~ Constructors -------------------------------------------------------
+
+        ElementRow(
+                String type,
+                Node   elementNode)
+        {
+            m_type          = type;
+            m_required      = isTrue(getNodeValueByName(elementNode,
+                        "required"));
+            m_label         = getNodeValueByName(elementNode, "label");
+            m_property      = getNodeValueByName(elementNode, "property");
+            m_documentation = getNodeValueByName(elementNode,
+                    "documentation");
+
+            if ("checkbox".equals(type)) {
+                m_checkedValue   = valueOrDefault(elementNode, "checkedValue",
+                        "1");
+                m_uncheckedValue = valueOrDefault(elementNode,
+                        "uncheckedValue", "0");
+                m_value          = isTrue(getNodeValueByName(elementNode,
+                            "initiallyChecked"))
+                    ? m_checkedValue
+                    : m_uncheckedValue;
+            }
+            else {
+                m_checkedValue   = null;
+                m_uncheckedValue = null;
+                m_value          = getNodeValueByName(elementNode, "value");
+            }
+
+            for (Node optionNode : getNodesByName(elementNode, "option")) {
+                String name  = getNodeValueByName(optionNode, "name");
+                String value = getNodeValueByName(optionNode, "value");
+
+                m_optionNames.add(name);
+                m_optionValues.add(value == null
+                        ? name
+                        : value);
+            }
+        }
+
+        //~ Methods ------------------------------------------------------------
+
+        @Override public void addTo(
+                UIFactory   uiFactory,
+                FormBuilder fb)
+        {
+            fb.addRow(m_required, m_label, m_documentation, m_property,
+                m_value, createWidget(uiFactory));
+        }
+
+        private Widget createWidget(UIFactory uiFactory)
+        {
+
+            if ("textarea".equals(m_type)) {
+                return new TextArea();
+            }
+            else if ("password".equals(m_type)) {
+                return new PasswordTextBox();
+            }
+            else if ("checkbox".equals(m_type)) {
+                return new CheckBoxValue(m_checkedValue, m_uncheckedValue);
+            }
+            else if ("select".equals(m_type)) {
+                ValuedListBox listBox = uiFactory.createValuedListBox();
+
+                for (int i = 0; i < m_optionNames.size(); i++) {
+                    listBox.addItem(m_optionNames.get(i),
+                        m_optionValues.get(i));
+                }
+
+                return listBox;
+            }
+            else if ("credential".equals(m_type)) {
+                return uiFactory.createCredentialEditor();
+            }
+
+            return new TextBox();
+        }
+
+        /**
+         * @return  whether elements of the given type are built by this
+         *          class rather than by {@link FormBuilder#addRowsWithXml}
+         */
+        static boolean handles(String type)
+        {
+            return s_types.contains(type);
+        }
+
+        private static String valueOrDefault(
+                Node   elementNode,
+                String name,
+                String defaultValue)
+        {
+            String value = getNodeValueByName(elementNode, name);
+
+            return value == null
+                ? defaultValue
+                : value;
+        }
+    }
+
+    /**
+     * Form elements that {@link FormBuilder} builds from XML itself.
+     */
+    private static class XmlRows
+        implements Row
+    {
+
+        //~ Instance fields ----------------------------------------------------
+
+        private final String m_xml;
+
+        //~ Constructors -------------------------------------------------------
+
+        XmlRows(String xml)
+        {
+            m_xml = xml;
+        }
+
+        //~ Methods ------------------------------------------------------------
+
+        @Override public void addTo(
+                UIFactory   uiFactory,
+                FormBuilder fb)
+        {
+            fb.addRowsWithXml(m_xml);
+        }
+    }
+
+    /**
+     * A check box whose form value is the element's checked or unchecked
+     * value rather than "true" or "false".
+     */
+    private static class CheckBoxValue
+        extends Composite
+        implements HasValue<String>
+    {
+
+        //~ Instance fields ----------------------------------------------------
+
+        private final CheckBox m_checkBox = new CheckBox();
+        private final String   m_checkedValue;
+        private final String   m_uncheckedValue;
+
+        //~ Constructors -------------------------------------------------------
+
+        CheckBoxValue(
+                String checkedValue,
+                String uncheckedValue)
+        {
+            m_checkedValue   = checkedValue;
+            m_uncheckedValue = uncheckedValue;
+            m_checkBox.addValueChangeHandler(
+                new ValueChangeHandler<Boolean>() {
+                    @Override public void onValueChange(
+                            ValueChangeEvent<Boolean> event)
+                    {
+                        ValueChangeEvent.fire(CheckBoxValue.this, getValue());
+                    }
+                });
+            initWidget(m_checkBox);
+        }
+
+        //~ Methods ------------------------------------------------------------
+
+        @Override public HandlerRegistration addValueChangeHandler(
+                ValueChangeHandler<String> handler)
+        {
+            return addHandler(handler, ValueChangeEvent.getType());
+        }
+
+        @Override public String getValue()
+        {
+            return m_checkBox.getValue()
+                ? m_checkedValue
+                : m_uncheckedValue;
+        }
+
+        @Override public void setValue(String value)
+        {
+            setValue(value, false);
+        }
+
+        @Override public void setValue(
+                String  value,
+                boolean fireEvents)
+        {
+            m_checkBox.setValue(m_checkedValue.equals(value), fireEvents);
+        }
+    }
+}
@@ -141,6 +141,7 @@ sub createCfg {
         return undef;
     }
     $self->{_name} = "$cfg";
+    $self->touchCfgList();
     return $cfg;
 }
 
@@ -150,7 +151,20 @@ sub createCfg {
 ####################################################################
 sub deleteCfg {
     my ($self, $cfg) = @_;
-    return $self->delRol("$cfg");
+    my $ret = $self->delRol("$cfg");
+    $self->touchCfgList();
+    return $ret;
+}
+
+####################################################################
+# touchCfgList
+#    Bump the revision of the configuration list so that the copy
+#    cached by ecscm.cgi is rebuilt on the next request
+####################################################################
+sub touchCfgList {
+    my ($self) = @_;
+    $self->getCmdr()->incrementProperty(
+        "/plugins/ECSCM/project/scm_cfgs_cache/revision", 1);
 }
 
 ####################################################################
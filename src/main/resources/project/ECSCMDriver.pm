@@ -17,6 +17,8 @@ use File::Spec;
 use File::stat;
 use File::Temp;
 use IO::File;
+use IO::Select;
+use POSIX ();
 use Time::Local;
 use HTML::Entities ();
 use utf8;
@@ -245,6 +247,27 @@ sub exitHandler()
 #           passwordStart
 #           passwordLength
 #           IgnoreError       optional parameter - if present and non-zero, don't die
+#           OnLine            optional code ref - stream the output, calling it
+#                             with each line as the command prints it
+#           OutputHandle      optional file handle - stream the output to it
+#           LogLimit          optional - with LogResult, the most bytes of
+#                             streamed output to log (default 1 MB)
+#           Timeout           optional - seconds the command may run, 0 for no
+#                             limit. Defaults to the commandTimeout setting
+#                             of the SCM configuration. Cut short by the
+#                             deadline set with setCommandDeadline.
+#           KillGrace         optional - seconds between asking a timed out
+#                             command to stop and killing it (default 10)
+#
+#  When streaming, the output is not kept in memory: the result is ""
+#  instead of the output, and only the tail of the output is printed if
+#  the command fails.
+#
+#  A command that runs longer than its timeout is stopped along with every
+#  process it started. RunCommand then prints "Error: Timeout (n seconds)
+#  from RunCommand." and returns undef, even with IgnoreError, or fails
+#  with DieOnError. CommandTimedOut tells the caller it happened. Timeouts
+#  are not supported on Windows.
 #
 #   NOTE:
 #
@@ -278,6 +301,16 @@ sub RunCommand {
     my $bHidePassword   = "$options->{HidePassword}";
     my $input           = "$options->{input}";
     my $replacements    = $options->{Replacements};
+    my $bStream         = $options->{OnLine} || $options->{OutputHandle};
+    my $timeout         = defined $options->{Timeout}
+        ? $options->{Timeout} : $self->getCommandTimeout();
+    if ($self->{_commandDeadline}) {
+        my $left = $self->{_commandDeadline} - time();
+        $left = 1 if ($left < 1);
+        $timeout = $left if ($timeout == 0 || $left < $timeout);
+    }
+    $timeout = 0 if ($^O eq 'MSWin32' || $ENV{ECSCM_SIMULATE_RUNCOMMAND});
+    $self->{_commandTimedOut} = 0;
 
     # Redirect errors according to the "dieOnError" option.
 
@@ -323,8 +356,12 @@ sub RunCommand {
     # the input to the pipe.  Otherwise, just run the command.
 
     my $commandResult;
+    my $bTimedOut = 0;
 
-    if ($ENV{ECSCM_SIMULATE_RUNCOMMAND}) {
+    if ($bStream || $timeout > 0) {
+        ($commandResult, $bTimedOut) =
+            $self->StreamCommand($commandLine, $input, $options, $timeout);
+    } elsif ($ENV{ECSCM_SIMULATE_RUNCOMMAND}) {
         $commandResult =  $self->SimulateRunCommand($commandLine);
     } elsif (defined($input) && length($input) > 0) {
         my (undef, $outputName) =
@@ -344,6 +381,21 @@ sub RunCommand {
         $commandResult = `$commandLine`;
     }
 
+    if ($bTimedOut) {
+        $self->{_commandTimedOut} = 1;
+        unlink($errorFile) if (defined $errorFile);
+        my $message = "Command \""
+            . $self->makeReplacements($printableCommandLine, $replacements)
+            . "\" timed out after $timeout seconds";
+        $self->error("$message\n") if ($bDieOnError);
+        warn "Error: Timeout ($timeout seconds) from RunCommand.";
+        print "$message\n";
+        if (defined $commandResult && $commandResult ne "") {
+            print $self->makeReplacements($commandResult, $replacements) . "\n";
+        }
+        return undef;
+    }
+
     # process return
     if ($? && !$bIgnoreError) {
         my $exit = $? >> 8;
@@ -368,8 +420,8 @@ sub RunCommand {
         }
     }
 
-    # Log the result
-    if ($bLogResult) {
+    # Log the result (streamed output was logged as it came)
+    if ($bLogResult && !$bStream) {
         my $printableResult = $commandResult;
         chomp($printableResult);
         $printableResult =~ s/\n/\n           : /g unless ($bCleanLog);
@@ -378,7 +430,211 @@ sub RunCommand {
     }
 
     # Return the result
-    return $commandResult;
+    return $bStream ? "" : $commandResult;
+}
+
+
+#-------------------------------------------------------------------------
+#  StreamCommand - Run a command for RunCommand, handing its output to the
+#  OnLine callback and the OutputHandle a line at a time
+#
+#  Without OnLine and OutputHandle the output is collected instead, for a
+#  command that only has a timeout.
+#
+#  The command runs in its own process group, so that it can be stopped
+#  with everything it started when it overruns the timeout.
+#
+#  Returns
+#       the output, or when streaming the last 64 KB of it
+#       1 if the command timed out
+#-------------------------------------------------------------------------
+$ECSCM::Base::Driver::gStreamLogLimit = 1024 * 1024;
+$ECSCM::Base::Driver::gStreamTailSize = 64 * 1024;
+$ECSCM::Base::Driver::gKillGrace = 10;
+
+sub StreamCommand {
+
+    my ($self, $commandLine, $input, $options, $timeout) = @_;
+
+    my $replacements = $options->{Replacements};
+    my $collect = !($options->{OnLine} || $options->{OutputHandle});
+    my $logLimit = defined $options->{LogLimit}
+        ? $options->{LogLimit} : $ECSCM::Base::Driver::gStreamLogLimit;
+    my $logged = 0;
+    my $output = "";
+    my $handleLine = sub {
+        my ($line) = @_;
+
+        if ($collect) {
+            $output .= $line;
+            return;
+        }
+
+        $options->{OnLine}->($line) if ($options->{OnLine});
+        print {$options->{OutputHandle}} $line if ($options->{OutputHandle});
+
+        if ($options->{LogResult} && $logged <= $logLimit) {
+            my $printable = $self->makeReplacements($line, $replacements);
+            $logged += length($line);
+            if ($logged > $logLimit) {
+                print " Log Result: ... the rest of the output is not logged\n";
+            } else {
+                chomp($printable);
+                print " Log Result: $printable\n";
+            }
+        }
+
+        $output .= $line;
+        if (length($output) > 2 * $ECSCM::Base::Driver::gStreamTailSize) {
+            $output = substr($output, -$ECSCM::Base::Driver::gStreamTailSize);
+        }
+    };
+
+    local $| = 1;
+    my $timedOut = 0;
+    if ($ENV{ECSCM_SIMULATE_RUNCOMMAND}) {
+        my $result = $self->SimulateRunCommand($commandLine);
+        $handleLine->("$1") while ($result =~ m/([^\n]*\n|[^\n]+$)/g);
+    } else {
+        # Standard input comes from a file, so that the output can be read
+        # from the pipe while the command runs
+        my $inputName;
+        if (defined($input) && length($input) > 0) {
+            my $inputFile;
+            ($inputFile, $inputName) = File::Temp::tempfile("ecin_XXXXXX",
+                DIR => File::Spec->tmpdir);
+            print $inputFile $input;
+            close($inputFile);
+            $commandLine .= " <\"$inputName\"";
+        }
+
+        my $pipe;
+        if ($^O eq 'MSWin32') {
+            open($pipe, "-|", $commandLine)
+                or $self->error("Cannot run command: $!");
+            while (my $line = <$pipe>) {
+                $handleLine->($line);
+            }
+            close($pipe);
+        } else {
+            my $pid = open($pipe, "-|");
+            $self->error("Cannot run command: $!") unless (defined $pid);
+            if ($pid == 0) {
+                setpgrp(0, 0);
+                exec("/bin/sh", "-c", $commandLine) or POSIX::_exit(127);
+            }
+            $timedOut = $self->ReadCommandOutput($pipe, $timeout, $handleLine);
+            $self->StopCommand($pid, $options->{KillGrace}) if ($timedOut);
+            close($pipe);
+        }
+        unlink($inputName) if (defined $inputName);
+    }
+
+    if (!$collect && length($output) > $ECSCM::Base::Driver::gStreamTailSize) {
+        $output = substr($output, -$ECSCM::Base::Driver::gStreamTailSize);
+    }
+    return ($output, $timedOut);
+}
+
+#-------------------------------------------------------------------------
+#  ReadCommandOutput - Read a command's output a line at a time until it
+#  ends or the timeout is over
+#
+#  Returns 1 if the timeout is over
+#-------------------------------------------------------------------------
+sub ReadCommandOutput {
+
+    my ($self, $pipe, $timeout, $handleLine) = @_;
+
+    # Read bytes so that the deadline can be checked between reads; the
+    # lines are decoded the way the open pragma decodes backticks
+    binmode($pipe);
+    my $deadline = $timeout > 0 ? time() + $timeout : 0;
+    my $select = IO::Select->new($pipe);
+    my $buffer = "";
+    my $timedOut = 0;
+    while (1) {
+        if ($deadline) {
+            my $left = $deadline - time();
+            if ($left <= 0) {
+                $timedOut = 1;
+                last;
+            }
+            next unless ($select->can_read($left));
+        }
+        my $read = sysread($pipe, $buffer, 65536, length($buffer));
+        last unless ($read);
+
+        my $start = 0;
+        while ((my $end = index($buffer, "\n", $start)) >= 0) {
+            my $line = substr($buffer, $start, $end - $start + 1);
+            utf8::decode($line);
+            $handleLine->($line);
+            $start = $end + 1;
+        }
+        substr($buffer, 0, $start, "");
+    }
+    if ($buffer ne "") {
+        utf8::decode($buffer);
+        $handleLine->($buffer);
+    }
+    return $timedOut;
+}
+
+#-------------------------------------------------------------------------
+#  StopCommand - Stop the process group of a command that timed out: ask
+#  it to terminate, and kill it if it is still there after the grace time
+#-------------------------------------------------------------------------
+sub StopCommand {
+
+    my ($self, $pid, $grace) = @_;
+
+    $grace = $ECSCM::Base::Driver::gKillGrace unless (defined $grace);
+    kill('TERM', -$pid);
+    my $waited = 0;
+    while ($waited < $grace) {
+        last if (kill(0, -$pid) == 0);
+        sleep(1);
+        $waited++;
+    }
+    kill('KILL', -$pid);
+}
+
+#-------------------------------------------------------------------------
+#  CommandTimedOut - 1 if the last RunCommand stopped its command because
+#  it ran longer than its timeout
+#-------------------------------------------------------------------------
+sub CommandTimedOut {
+    my ($self) = @_;
+    return $self->{_commandTimedOut} ? 1 : 0;
+}
+
+#-------------------------------------------------------------------------
+#  setCommandDeadline - Make RunCommand stop every command still running at
+#  the given time, whatever its Timeout. 0 clears the deadline.
+#-------------------------------------------------------------------------
+sub setCommandDeadline {
+    my ($self, $deadline) = @_;
+    $self->{_commandDeadline} = $deadline;
+}
+
+#-------------------------------------------------------------------------
+#  getCommandTimeout - The default timeout of RunCommand, in seconds,
+#  from the commandTimeout setting of the SCM configuration
+#-------------------------------------------------------------------------
+sub getCommandTimeout {
+    my ($self) = @_;
+
+    if (!defined $self->{_commandTimeout}) {
+        my $timeout = 0;
+        my $cfg = $self->getCfg();
+        if (defined $cfg && defined $cfg->getName() && $cfg->getName() ne "") {
+            eval { $timeout = $cfg->get("commandTimeout"); };
+        }
+        $self->{_commandTimeout} =
+            (defined $timeout && $timeout =~ /^\d+$/) ? $timeout : 0;
+    }
+    return $self->{_commandTimeout};
 }
 
 
@@ -1440,6 +1696,8 @@ sub apf_createDirectories {
 #   isImplemented   - used to determine what functionality an
 #                     SCM plugin has implemented
 #   getSCMTag       - used by CI server ElectricSentry
+#   getSCMTagProbeArgs - optional, lets ElectricSentry share one
+#                     getSCMTag call between schedules
 #   checkoutCode    - used to checkout code
 #   apf_driver      - used for preflight
 #   cpf_driver      - used for preflight
@@ -1466,6 +1724,24 @@ sub getSCMTag {
     return (undef,undef);
 }
 
+####################################################################
+# getSCMTagProbeArgs
+#
+# Return the names of the getSCMTag arguments that select what is
+# polled, e.g. the depot path or the branch. ElectricSentry calls
+# getSCMTag once for all schedules with the same SCM configuration
+# and the same values of these arguments, and passes the arguments
+# of one of them. Only declare them if getSCMTag depends on nothing
+# else, LASTATTEMPTED included.
+#
+# The default, an empty list, polls every schedule on its own.
+####################################################################
+sub getSCMTagProbeArgs {
+    my ($self) = @_;
+
+    return ();
+}
+
 ####################################################################
 # code checkout for snapshot
 ####################################################################
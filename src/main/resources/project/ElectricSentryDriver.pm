@@ -14,9 +14,16 @@ use ElectricCommander;
 use Cwd;
 use XML::XPath;
 use Time::Local;
+use Time::HiRes;
 use File::Basename;
+use File::Path ();
+use File::Spec;
 use HTTP::Date(qw {str2time time2str time2iso time2isoz});
 use Data::Dumper;
+use File::Temp ();
+use POSIX ();
+use Storable ();
+use JSON ();
 
 if ( !defined ECSCM::Base::Driver ) {
     require ECSCM::Base::Driver;
@@ -48,6 +55,26 @@ if ( !defined ElectricSentry::JobCfg ) {
     require ElectricSentry::JobCfg;
 }
 
+# /server/ECSCM/sentryScheduleIndex/schedules/proj/sched
+if ( !defined ElectricSentry::ScheduleIndex ) {
+    require ElectricSentry::ScheduleIndex;
+}
+
+# /server/ECSCM/sentryWorkQueue/proj/sched
+if ( !defined ElectricSentry::WorkQueue ) {
+    require ElectricSentry::WorkQueue;
+}
+
+# /server/ECSCM/sentryShards/sentryProj/sentrySched
+if ( !defined ElectricSentry::ShardRing ) {
+    require ElectricSentry::ShardRing;
+}
+
+# /server/ECSCM/sentryLease/sentryProj/sentrySched
+if ( !defined ElectricSentry::Lease ) {
+    require ElectricSentry::Lease;
+}
+
 ####################################################################
 # Object constructor for ElectricSentry::Driver
 #
@@ -113,13 +140,15 @@ sub logging {
 }
 
 #-------------------------------------------------------------------------
-# Display debugging info
+# Display debugging info and take the lease of this sentry schedule
 #-------------------------------------------------------------------------
 sub setup {
     my $self = shift;
 
     # Display the environment for the log
     $self->PrintEnv();
+
+    $self->AcquireLease();
 }
 
 #-------------------------------------------------------------------------
@@ -127,29 +156,99 @@ sub setup {
 #  Enumerate all of the schedules in all of the projects to find the ones that
 #  are enabled to be auto-run by Sentry
 #
+#  The schedules found are kept in the schedule index
+#  (ElectricSentry::ScheduleIndex). Most runs only read the index and scan
+#  the schedules modified since the last run; every IndexReconcileCycles
+#  runs, or when RebuildIndex is set, all schedules are scanned again and
+#  the index is rebuilt from what was found.
+#
+#  In event mode (SentryMode) only the schedules in the work queue
+#  (ElectricSentry::WorkQueue) are monitored, except every EventPollCycles
+#  runs, when all of them are.
+#
+#  In shard mode (ShardMode "auto") the projectList parameter is not used.
+#  The sentry schedules of the project that are in shard mode share all
+#  schedules, and each monitors the ones it owns in the
+#  ElectricSentry::ShardRing.
+#
+#  A cycle that started while the previous one holds the lease monitors
+#  nothing, or as a guest only the schedules the previous one did not
+#  claim (see AcquireLease).
 #
 #-------------------------------------------------------------------------
 sub findSentrySchedules {
     my $self = shift;
 
+    my ( $role, $holder ) = $self->GetLeaseRole();
+    if ( $role eq "skip" ) {
+        print "Sentry job $holder is still running, "
+          . "this cycle does not monitor any schedules\n";
+        return;
+    }
+
     my $projectListParameter = "";
     my @projectList          = ();
     my @projectFilter        = ();
     my @filter               = ();
+    my %timing = ( index => 0, find => 0, get => 0, process => 0, save => 0 );
+    my $requests = 0;
+
+    # Read the Sentry settings and the schedule index
+    my $start = Time::HiRes::time();
+    my ( $sentryProjectName, $sentryScheduleName ) =
+      $self->ECSentryGetProjectAndScheduleNames();
+    my $gCfg =
+      new ElectricSentry::GlobalCfg( $self->getCmdr(), $sentryProjectName,
+        $sentryScheduleName );
+    my %settings = $gCfg->getAll();
+    my $jCfg =
+      new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID}, "",
+        "" );
+    $jCfg->setCompact( $settings{CompactJobState} );
+    my $shardMode = $self->IsShardMode( $settings{ShardMode} );
+    my $index = new ElectricSentry::ScheduleIndex( $self->getCmdr() );
+    my ( $indexExists, $indexed ) = $index->getAll();
+    $timing{index} = Time::HiRes::time() - $start;
+    $requests += 3;
+
+    # Decide whether this run rebuilds the index from a full scan
+    my $cycle = $settings{IndexCycle};
+    $cycle = 0 unless ( defined $cycle && $cycle =~ /^\d+$/ );
+    my $reconcileCycles = $settings{IndexReconcileCycles};
+    $reconcileCycles = $::gSentryIndexReconcileCycles
+      unless ( defined $reconcileCycles && $reconcileCycles =~ /^\d+$/ );
+    my $watermark = $settings{IndexWatermark};
+    my $rebuild   = "";
+    if ( !$indexExists ) {
+        $rebuild = "the schedule index does not exist yet";
+    }
+    elsif ( defined $settings{RebuildIndex} && $settings{RebuildIndex} ne "" ) {
+        $rebuild = "a rebuild was requested";
+    }
+    elsif ( !defined $watermark || $watermark eq "" ) {
+        $rebuild = "this instance has not scanned the schedules yet";
+    }
+    elsif ( $reconcileCycles <= 1 || $cycle % $reconcileCycles == 0 ) {
+        $rebuild = "it is reconciled every $reconcileCycles runs";
+    }
 
     # Check for a parameter to the procedure that defines a list of projects
     #   Note - this is retrieved, rather than passed on the command line because
     #          it can be multi-line
-    my ( $success, $xPath ) =
-      $self->getECSCM()
-      ->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 },
-        "getProperty", "/myCall/projectList",
-        { "jobStepId" => $ENV{COMMANDER_JOBSTEPID} } );
-    if ($success) {
-        $projectListParameter = $xPath->findvalue('//value');
+    if ( !$shardMode ) {
+        my ( $success, $xPath ) =
+          $self->getECSCM()
+          ->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 },
+            "getProperty", "/myCall/projectList",
+            { "jobStepId" => $ENV{COMMANDER_JOBSTEPID} } );
+        if ($success) {
+            $projectListParameter = $xPath->findvalue('//value');
+        }
+        $requests++;
     }
 
     #  Split the parameter into projects and add them to a list of filters
+    my %inScope = ();
     for my $projectName ( split( "\n", $projectListParameter ) ) {
         push(
             @projectFilter,
@@ -159,10 +258,12 @@ sub findSentrySchedules {
                 "operand1"     => $projectName
             }
         );
+        $inScope{$projectName} = 1;
         print "Scanning schedules for project '$projectName'\n";
     }
 
     # Create a filter to look for all the projects if there are any
+    my %excluded = ();
     if ( scalar @projectFilter ) {
         push(
             @filter,
@@ -172,13 +273,29 @@ sub findSentrySchedules {
             }
         );
     }
+    elsif ($shardMode) {
+        print "*** This Sentry instance is in shard mode ***\n";
+        print "\tThis instance monitors its share of the Projects of all Sentry instances in shard mode\n";
+    }
     else {
 
         # If the project list is empty, this is the default instance
-        # Get the names of projects to exclude
+        # Get the names of projects to exclude. They only change when
+        # another Sentry schedule is edited, so they are looked up again
+        # when the index is rebuilt.
         print "*** This is the Default Sentry instance ***\n";
         print "\tThis instance should monitor all Projects not monitored by any other Sentry instance\n";
-        @projectList = $self->findNonDefaultProjects();
+        if ( $rebuild || !defined $settings{NonDefaultProjects} ) {
+            @projectList = $self->findNonDefaultProjects();
+            $gCfg->setNonDefaultProjects( join( "\n", @projectList ) );
+        }
+        else {
+            @projectList = grep { $_ ne "" }
+              split( "\n", $settings{NonDefaultProjects} );
+            print "Excluding projects monitored by other Sentry instances: "
+              . join( ", ", @projectList ) . "\n"
+              if ( scalar @projectList );
+        }
 
         #  Split the parameter into projects and add them to a list of filters
         if ( scalar @projectList ) {
@@ -191,6 +308,7 @@ sub findSentrySchedules {
                         "operand1"     => $projectName
                     }
                 );
+                $excluded{$projectName} = 1;
             }
 
             # Create a filter that excludes all of the non-default projects
@@ -209,20 +327,277 @@ sub findSentrySchedules {
         }
     }
 
-    # Retrieve all schedules from the specified projects
+    # Start from the indexed schedules of this instance
+    my %monitored = ();
+    foreach my $projectName ( keys %$indexed ) {
+        next if ( scalar keys %inScope && !$inScope{$projectName} );
+        next if ( $excluded{$projectName} );
+        foreach my $scheduleName ( keys %{ $indexed->{$projectName} } ) {
+            $monitored{$projectName}{$scheduleName} =
+              $indexed->{$projectName}{$scheduleName};
+        }
+    }
+
+    # Either scan every schedule of this instance, or only the ones that
+    # were created or modified since the last scan
+    my @scanFilter = @filter;
+    if ($rebuild) {
+        print "Rebuilding the schedule index: $rebuild\n";
+        %monitored = ();
+    }
+    else {
+        push(
+            @scanFilter,
+            {
+                "propertyName" => "modifyTime",
+                "operator"     => "greaterOrEqual",
+                "operand1"     => $watermark
+            }
+        );
+        print "Reading the schedule index, "
+          . "checking schedules modified since $watermark\n";
+    }
+    my @found =
+      $self->scanSchedules( \@scanFilter, \%timing, \$requests );
+
+    # Bring the index up to date with the schedules that were found
+    my %seen       = ();
+    my $updates    = 0;
+    my $newestTime = $watermark;
+    foreach my $schedule (@found) {
+        my $projectName  = $schedule->{project};
+        my $scheduleName = $schedule->{schedule};
+        my $triggered =
+          ( defined $schedule->{settings}{TriggerFlag}
+              && $schedule->{settings}{TriggerFlag} eq "$::gTriggerValue" );
+        $seen{$projectName}{$scheduleName} = 1;
+        $newestTime = $schedule->{modifyTime}
+          if ( !defined $newestTime || $schedule->{modifyTime} gt $newestTime );
+
+        my $entry = $indexed->{$projectName}{$scheduleName};
+        if ($triggered) {
+            $monitored{$projectName}{$scheduleName} = $schedule->{settings};
+            if ( !$index->isSameEntry( $entry, $schedule->{settings} ) ) {
+                $index->putEntry( $projectName, $scheduleName,
+                    $schedule->{settings} );
+                $updates++;
+            }
+        }
+        else {
+            delete $monitored{$projectName}{$scheduleName};
+            if ( defined $entry ) {
+                $index->removeEntry( $projectName, $scheduleName );
+                $updates++;
+            }
+        }
+    }
+
+    # A full scan also drops the entries of schedules that no longer exist
+    if ($rebuild) {
+        foreach my $projectName ( keys %$indexed ) {
+            next if ( scalar keys %inScope && !$inScope{$projectName} );
+            next if ( $excluded{$projectName} );
+            foreach my $scheduleName ( keys %{ $indexed->{$projectName} } ) {
+                next if ( $seen{$projectName}{$scheduleName} );
+                $index->removeEntry( $projectName, $scheduleName );
+                $updates++;
+            }
+        }
+        $index->markBuilt();
+        $gCfg->setRebuildIndex("")
+          if ( defined $settings{RebuildIndex} && $settings{RebuildIndex} ne "" );
+    }
+    $gCfg->setIndexCycle( $cycle + 1 );
+    $gCfg->setIndexWatermark($newestTime)
+      if ( defined $newestTime && $newestTime ne ""
+        && ( !defined $watermark || $newestTime ne $watermark ) );
+
+    # In shard mode only the schedules this instance owns are monitored
+    my %others = ();
+    if ($shardMode) {
+        my $ring =
+          new ElectricSentry::ShardRing( $self->getCmdr(), $sentryProjectName,
+            $sentryScheduleName, $settings{ShardTimeoutMinutes} );
+        $ring->heartbeat();
+        my @members = $ring->refresh();
+        my $total   = 0;
+        my $owned   = 0;
+        foreach my $projectName ( keys %monitored ) {
+            foreach my $scheduleName ( keys %{ $monitored{$projectName} } ) {
+                $total++;
+                if ( $ring->isMine( $projectName, $scheduleName ) ) {
+                    $owned++;
+                    next;
+                }
+                delete $monitored{$projectName}{$scheduleName};
+                $others{$projectName}{$scheduleName} = 1;
+            }
+        }
+        $ring->setSchedules($owned);
+        $requests += 3;
+        print "Shard mode: this instance owns $owned of $total schedules, "
+          . "shared by "
+          . scalar @members
+          . " instances (@members)\n";
+    }
+
+    # A guest cycle leaves the schedules claimed by the cycle that holds
+    # the lease alone
+    if ( $role eq "guest" ) {
+        my %claimed =
+          new ElectricSentry::JobCfg( $self->getCmdr(), $holder, "", "" )
+          ->getAllSchedules();
+        my $count = 0;
+        foreach my $entry ( values %claimed ) {
+            my $projectName  = $entry->{project};
+            my $scheduleName = $entry->{schedule};
+            next unless ( exists $monitored{$projectName}{$scheduleName} );
+            delete $monitored{$projectName}{$scheduleName};
+            $others{$projectName}{$scheduleName} = 1;
+            $count++;
+        }
+        $requests++;
+        print "Leaving $count schedules to sentry job $holder\n";
+    }
+
+    # In event mode only the schedules with queued events are looked at,
+    # except on the runs that poll every schedule
+    if ( $self->IsEventMode( $settings{SentryMode} ) ) {
+        my $pollCycles = $settings{EventPollCycles};
+        $pollCycles = $::gSentryEventPollCycles
+          unless ( defined $pollCycles && $pollCycles =~ /^\d+$/ );
+        my $queue  = new ElectricSentry::WorkQueue( $self->getCmdr() );
+        my %queued = $queue->getAll();
+        $requests++;
+        if ( $pollCycles > 0 && $cycle % $pollCycles == 0 ) {
+            print "Event mode: polling every schedule on this run\n";
+        }
+        else {
+            my %all = %monitored;
+            %monitored = ();
+            foreach my $projectName ( keys %queued ) {
+                next if ( scalar keys %inScope && !$inScope{$projectName} );
+                next if ( $excluded{$projectName} );
+                foreach my $scheduleName ( keys %{ $queued{$projectName} } ) {
+                    next if ( $others{$projectName}{$scheduleName} );
+                    if ( exists $all{$projectName}{$scheduleName} ) {
+                        $monitored{$projectName}{$scheduleName} =
+                          $all{$projectName}{$scheduleName};
+                    }
+                    else {
+
+                        # No longer a CI schedule
+                        $queue->remove( $projectName, $scheduleName );
+                    }
+                }
+            }
+            print "Event mode: looking at the schedules with queued events\n";
+        }
+    }
+
+    # Save the Project & Schedule, along with a default value that
+    # can be changed in later steps to prevent execution
+    my $numMonitored = 0;
+    my $saveStart    = Time::HiRes::time();
+    foreach my $projectName ( sort keys %monitored ) {
+        foreach my $scheduleName ( sort keys %{ $monitored{$projectName} } ) {
+
+            # Skip schedule names with unsupported characters
+            my $specialCharacterString = "";
+            if ( $scheduleName =~ /\// ) {
+                $specialCharacterString = "'/'";
+            }
+            elsif ( $scheduleName =~ /\[|\]/ ) {
+                $specialCharacterString = "'[' or ']'";
+            }
+
+            if ($specialCharacterString) {
+                $self->getECSCM()
+                  ->issueWarningMsg(
+"*** Skipping schedule - '$scheduleName' in project '$projectName'\n"
+                      . "    It contains an unsupported special character ($specialCharacterString)"
+                  );
+                next;
+            }
+
+            print
+"Monitoring schedule - '$scheduleName' in project '$projectName'\n";
+            $self->SaveProjectandSchedule( $projectName, $scheduleName,
+                "SentrySchedule" );
+
+            # Keep the settings later steps need with the job
+            my $settings = $monitored{$projectName}{$scheduleName};
+            new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID},
+                $projectName, $scheduleName )
+              ->setSetting( "runDuplicates",
+                defined $settings->{runDuplicates}
+                ? $settings->{runDuplicates}
+                : "" );
+            $numMonitored++;
+        }
+    }
+    $requests += $jCfg->flush();
+    $timing{save} = Time::HiRes::time() - $saveStart;
+
+    # Report where discovery spent its time
+    $self->CountMetric( "scanned",      scalar @found );
+    $self->CountMetric( "monitored",    $numMonitored );
+    $self->CountMetric( "indexUpdates", $updates );
+    $self->CountMetric( "requests",     $requests );
+    printf( "Discovery: scanned %d schedules in %d requests, "
+          . "monitoring %d, %d index updates\n",
+        scalar @found, $requests, $numMonitored, $updates );
+    printf( "    schedule index   %8.3fs\n", $timing{index} );
+    printf( "    findObjects      %8.3fs\n", $timing{find} );
+    printf( "    getObjects       %8.3fs\n", $timing{get} );
+    printf( "    trigger checks   %8.3fs\n", $timing{process} );
+    printf( "    saving schedules %8.3fs\n", $timing{save} );
+}
+
+#-------------------------------------------------------------------------
+#   scanSchedules
+#
+#   Retrieve the schedules matching a filter, along with their Sentry
+#   settings, so that the trigger flag can be tested without another
+#   request per schedule.
+#
+# Arguments:
+#      filter   - reference to the findObjects filter
+#      timing   - reference to the discovery timing hash
+#      requests - reference to the discovery request count
+#
+# Results:
+#      A list of hash refs with project, schedule, modifyTime and settings
+#
+#-------------------------------------------------------------------------
+sub scanSchedules {
+    my ( $self, $filter, $timing, $requests ) = @_;
+
     my $retrieveChunkSize = 1000;
     $retrieveChunkSize = $ENV{SENTRY_FINDCHUNKSIZE}
       if ( defined $ENV{SENTRY_FINDCHUNKSIZE} );
+    my @select = (
+        {
+            "propertyName" => "ec_customEditorData",
+            "recurse"      => 1
+        }
+    );
+
+    my @schedules    = ();
     my $numProcessed = 0;
+    my $start        = Time::HiRes::time();
     my ( $success, $xPath ) = $self->getECSCM()->InvokeCommander(
         { SuppressLog => 1 },
         "findObjects",
         "schedule",
         {
-            filter     => \@filter,
-            numObjects => $retrieveChunkSize
+            filter     => $filter,
+            numObjects => $retrieveChunkSize,
+            select     => \@select
         }
     );
+    $timing->{find} += Time::HiRes::time() - $start;
+    $$requests++;
 
     # Build a list of all object IDs
     my @allSchedulesList = ();
@@ -243,53 +618,69 @@ sub findSentrySchedules {
             $endingIndex = $totalCount - 1 if ( $endingIndex >= $totalCount );
             my @objectList =
               @allSchedulesList[ $startingIndex .. $endingIndex ];
+            $start = Time::HiRes::time();
             ( $success, $xPath ) =
               $self->getECSCM()->InvokeCommander( { SuppressLog => 1 },
-                "getObjects", { objectId => \@objectList } );
+                "getObjects", { objectId => \@objectList, select => \@select } );
+            $timing->{get} += Time::HiRes::time() - $start;
+            $$requests++;
         }
 
         # Process the current chunk of objects
-        my $scheduleNodeset = $xPath->find('//response/object/schedule');
-        foreach my $node ( $scheduleNodeset->get_nodelist ) {
-
-            my $projectName  = $xPath->findvalue( 'projectName',  $node );
-            my $scheduleName = $xPath->findvalue( 'scheduleName', $node );
-            $numProcessed++;
-
-            # Look for the special trigger property
-            my $tCfg =
-              new ElectricSentry::TriggerCfg( $self->getCmdr(), $projectName,
-                $scheduleName );
-            my $bTriggerFlag = $tCfg->isSetTriggerFlag();
-            if ($bTriggerFlag) {
-
-                # Skip schedule names with unsupported characters
-                my $specialCharacterString = "";
-                if ( $scheduleName =~ /\// ) {
-                    $specialCharacterString = "'/'";
-                }
-                elsif ( $scheduleName =~ /\[|\]/ ) {
-                    $specialCharacterString = "'[' or ']'";
+        my $chunkStart    = Time::HiRes::time();
+        my $chunkCount    = 0;
+        my $objectNodeset = $xPath->find('//response/object[schedule]');
+        foreach my $node ( $objectNodeset->get_nodelist ) {
+            my %settings = $self->getSelectedSettings( $xPath, $node );
+            push(
+                @schedules,
+                {
+                    project => $xPath->findvalue( 'schedule/projectName', $node )
+                      ->string_value,
+                    schedule =>
+                      $xPath->findvalue( 'schedule/scheduleName', $node )
+                      ->string_value,
+                    modifyTime =>
+                      $xPath->findvalue( 'schedule/modifyTime', $node )
+                      ->string_value,
+                    settings => \%settings
                 }
+            );
+            $chunkCount++;
+        }
+        $timing->{process} += Time::HiRes::time() - $chunkStart;
 
-                if ($specialCharacterString) {
-                    $self->getECSCM()
-                      ->issueWarningMsg(
-"*** Skipping schedule - '$scheduleName' in project '$projectName'\n"
-                          . "    It contains an unsupported special character ($specialCharacterString)"
-                      );
-                    next;
-                }
+        # Guard against a chunk that returned nothing
+        last if ( $chunkCount == 0 );
+        $numProcessed += $chunkCount;
+    }
+    return @schedules;
+}
 
-                # Save the Project & Schedule, along with a default value that
-                # can be changed in later steps to prevent execution
-                print
-"Monitoring schedule - '$scheduleName' in project '$projectName'\n";
-                $self->SaveProjectandSchedule( $projectName, $scheduleName,
-                    "SentrySchedule" );
-            }
-        }
+#-------------------------------------------------------------------------
+#   getSelectedSettings
+#
+#   Return the Sentry settings (ec_customEditorData) of a schedule that
+#   were returned with it by a findObjects or getObjects call using select
+#
+# Arguments:
+#      xPath - the response
+#      node  - the response/object node of the schedule
+#
+#-------------------------------------------------------------------------
+sub getSelectedSettings {
+    my ( $self, $xPath, $node ) = @_;
+
+    my %settings;
+    my $propertyNodeset = $xPath->find(
+        'property[propertyName="ec_customEditorData"]/propertySheet/property',
+        $node );
+    foreach my $propertyNode ( $propertyNodeset->get_nodelist ) {
+        my $name  = $xPath->findvalue( 'propertyName', $propertyNode );
+        my $value = $xPath->findvalue( 'value',        $propertyNode );
+        $settings{"$name"} = "$value";
     }
+    return %settings;
 }
 
 #-------------------------------------------------------------------------
@@ -410,6 +801,9 @@ sub findNonDefaultProjects() {
 #  Eliminate from the execution list any Schedules that have an
 #  associated running job
 #
+#  Only jobs and pipeline runs of the schedules that are still runnable are
+#  looked up, a chunk of schedules per query, a page of objects at a time.
+#
 #  NOTE - Possible settings for job status are
 #           pending
 #           runnable
@@ -417,88 +811,159 @@ sub findNonDefaultProjects() {
 #           completed
 #         We want to eliminate all but completed
 #-------------------------------------------------------------------------
+
+# how many schedules go into one findObjects filter, and how many objects
+# are returned per page
+$::gSentryRunningChunkSize = 100;
+$::gSentryRunningPageSize  = 500;
+
 sub checkforRunningJobs {
     my $self = shift;
-    my $nodeset;
 
-    # Get all running (or nearly running) tasks and build a list of them
-    # limiting to 100 jobs
+    $self->RenewLease();
+
+    my $jCfg =
+      new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID}, "",
+        "" );
+    my %sched = $jCfg->getAllSchedules();
+
+    # Only the schedules that are runnable need to be checked
+    my @entries = grep { $sched{$_}{value} eq "SentrySchedule" }
+      sort keys %sched;
+    my $scheduleCount = scalar @entries;
     my %runningSchedules;
-    my @filterList;
-    push(
-        @filterList,
-        {
-            "propertyName" => "status",
-            "operator"     => "notEqual",
-            "operand1"     => "completed"
-        }
-    );
-    my ( $success, $xPath ) =
-      $self->getECSCM()
-      ->InvokeCommander( { SuppressLog => 1 },
-        "findObjects", "job", { filter => \@filterList } );
+    my %scanned = ( job => 0, flowRuntime => 0 );
+    my $requests = 0;
 
-    $nodeset = $xPath->find('//job');
-    foreach my $node ( $nodeset->get_nodelist ) {
-        my $projectName  = $xPath->findvalue( 'projectName',  $node );
-        my $scheduleName = $xPath->findvalue( 'scheduleName', $node );
-        my $key          = "$projectName/$scheduleName";
-        $runningSchedules{$key} = 1;
-    }
+    while ( my @chunk = splice( @entries, 0, $::gSentryRunningChunkSize ) ) {
+
+        # Group the schedules of the chunk by project
+        my %schedulesByProject;
+        foreach my $entry (@chunk) {
+            push(
+                @{ $schedulesByProject{ $sched{$entry}{project} } },
+                $sched{$entry}{schedule}
+            );
+        }
 
+        # Get the running (or nearly running) jobs of these schedules
+        my @jobFilter;
+        my @runtimeFilter;
+        foreach my $projectName ( sort keys %schedulesByProject ) {
+            my @scheduleNames = @{ $schedulesByProject{$projectName} };
+            push(
+                @jobFilter,
+                {
+                    "operator" => "and",
+                    "filter"   => [
+                        {
+                            "propertyName" => "projectName",
+                            "operator"     => "equals",
+                            "operand1"     => $projectName
+                        },
+                        {
+                            "operator" => "or",
+                            "filter"   => [
+                                map {
+                                    {
+                                        "propertyName" => "scheduleName",
+                                        "operator"     => "equals",
+                                        "operand1"     => $_
+                                    }
+                                } @scheduleNames
+                            ]
+                        }
+                    ]
+                }
+            );
 
-    # Checking for pipelines
-    @filterList = ();
-    push(
-        @filterList,
-        {
-            "propertyName" => "completed",
-            "operator"     => "notEqual",
-            "operand1"     => "1"
+            # A pipeline run refers to its schedule by name, or by path if
+            # the schedule is in another project
+            foreach my $scheduleName (@scheduleNames) {
+                foreach my $liveSchedule ( $scheduleName,
+                    "/projects/$projectName/schedules/$scheduleName" )
+                {
+                    push(
+                        @runtimeFilter,
+                        {
+                            "propertyName" => "liveSchedule",
+                            "operator"     => "equals",
+                            "operand1"     => $liveSchedule
+                        }
+                    );
+                }
+            }
         }
-    );
-    my ( $success, $xPath ) =
-      $self->getECSCM()
-      ->InvokeCommander( { SuppressLog => 1 },
-        "findObjects", "flowRuntime", { filter => \@filterList } );
-    $nodeset = $xPath->find('//flowRuntime');
 
+        my @jobs = $self->findAllObjects(
+            "job",
+            [
+                {
+                    "propertyName" => "status",
+                    "operator"     => "notEqual",
+                    "operand1"     => "completed"
+                },
+                { "operator" => "or", "filter" => \@jobFilter }
+            ],
+            \$requests
+        );
+        foreach my $node (@jobs) {
+            my $projectName  = $node->findvalue('projectName');
+            my $scheduleName = $node->findvalue('scheduleName');
+            my $key          = "$projectName/$scheduleName";
+            $runningSchedules{$key} = 1;
+        }
+        $scanned{job} += scalar @jobs;
 
-    foreach my $node ( $nodeset->get_nodelist ) {
-        my $projectName  = $xPath->findvalue( 'projectName',  $node );
-        my $scheduleName = $xPath->findvalue( 'liveSchedule', $node );
-        my $key          = "$projectName/$scheduleName";
-        # If schedule and pipeline are in different projects
-        if ($scheduleName =~ m/\//) {
-            $key = $scheduleName;
-            $key =~ s/\/projects\///;
-            $key =~ s/\/schedules//;
+        # Checking for pipelines
+        my @runtimes = $self->findAllObjects(
+            "flowRuntime",
+            [
+                {
+                    "propertyName" => "completed",
+                    "operator"     => "notEqual",
+                    "operand1"     => "1"
+                },
+                { "operator" => "or", "filter" => \@runtimeFilter }
+            ],
+            \$requests
+        );
+        foreach my $node (@runtimes) {
+            my $projectName  = $node->findvalue('projectName');
+            my $scheduleName = $node->findvalue('liveSchedule');
+            my $key          = "$projectName/$scheduleName";
+            # If schedule and pipeline are in different projects
+            if ($scheduleName =~ m/\//) {
+                $key = $scheduleName;
+                $key =~ s/\/projects\///;
+                $key =~ s/\/schedules//;
+            }
+            $runningSchedules{$key} = 1;
         }
-        $runningSchedules{$key} = 1;
+        $scanned{flowRuntime} += scalar @runtimes;
     }
 
-    my $jCfg =
-      new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID}, "",
-        "" );
-    my %sched = $jCfg->getAllSchedules();
-
     foreach my $entry ( sort keys %sched ) {
         my $projectName  = $sched{$entry}{project};
         my $scheduleName = $sched{$entry}{schedule};
         my $value        = $sched{$entry}{value};
 
-
-        # get all args from trigger schedule
-        my $tCfg = new ElectricSentry::TriggerCfg( $self->getCmdr(), $projectName, $scheduleName );
-        my %config = $tCfg->getAllProps();
-        my $runDuplicates = $config{runDuplicates};
-
-
         # Only run the check for Schedules that are runnable
         if ( $value eq "SentrySchedule" ) {
             my $key = "$projectName/$scheduleName";
             if ( exists $runningSchedules{$key} ) {
 
+                # runDuplicates was saved by discovery; read it from the
+                # trigger schedule for jobs started by an older version
+                my $runDuplicates = $sched{$entry}{settings}{runDuplicates};
+                if ( !defined $runDuplicates ) {
+                    my $tCfg = new ElectricSentry::TriggerCfg( $self->getCmdr(),
+                        $projectName, $scheduleName );
+                    my %config = $tCfg->getAllProps();
+                    $runDuplicates = $config{runDuplicates};
+                    $requests++;
+                }
+
                 # Already running - Update the status
                 if (!$runDuplicates) {
                     $self->SaveProjectandSchedule( $projectName, $scheduleName, "Running" );
@@ -513,88 +978,647 @@ sub checkforRunningJobs {
             }
         }
     }
+    $requests += $jCfg->flush();
+
+    $self->CountMetric( "schedules",        $scheduleCount );
+    $self->CountMetric( "runningJobs",      $scanned{job} );
+    $self->CountMetric( "runningPipelines", $scanned{flowRuntime} );
+    $self->CountMetric( "requests",         $requests );
+    printf( "Scanned %d running jobs and %d running pipelines "
+          . "in %d requests\n",
+        $scanned{job}, $scanned{flowRuntime}, $requests );
+}
+
+#-------------------------------------------------------------------------
+#  findAllObjects
+#
+#  Run findObjects one page at a time until every matching object has
+#  been returned
+#
+#   Params:
+#       objectType          - e.g. job
+#       filter              - ref to the findObjects filter
+#       requests            - ref to a request count to increment
+#
+#   Returns:
+#       A list of the object nodes, e.g. the job elements
+#
+#-------------------------------------------------------------------------
+sub findAllObjects {
+    my ( $self, $objectType, $filter, $requests ) = @_;
+
+    my @nodes;
+    my $firstResult = 0;
+    while (1) {
+        my ( $success, $xPath ) = $self->getECSCM()->InvokeCommander(
+            { SuppressLog => 1 },
+            "findObjects",
+            $objectType,
+            {
+                filter      => $filter,
+                firstResult => $firstResult,
+                maxIds      => $::gSentryRunningPageSize,
+                numObjects  => $::gSentryRunningPageSize
+            }
+        );
+        $$requests++;
+        last unless ($success);
+
+        my @page = $xPath->findnodes("//response/object/$objectType");
+        push( @nodes, @page );
+        last if ( scalar @page < $::gSentryRunningPageSize );
+        $firstResult += scalar @page;
+    }
+    return @nodes;
 }
 
 #-------------------------------------------------------------------------
 #  Eliminate from the execution list any Schedules whose sources have not
 #  changed since the last attempt
+#
+#  Schedules whose SCM driver reports the same probe key (see
+#  getSCMTagProbeArgs in ECSCM::Base::Driver) share one getSCMTag call.
+#  With SentryParallelism above 1 the probes run in child processes, that
+#  many at a time. The results are saved in schedule order either way.
 #-------------------------------------------------------------------------
+
+# seconds a single getSCMTag probe may take, unless the CheckTimeoutSeconds
+# setting says otherwise
+$::gSentryCheckTimeout = 600;
+
 sub checkforNewSources {
     my $self = shift;
 
+    $self->RenewLease();
+
     my $jCfg =
       new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID}, "",
         "" );
     my %sched = $jCfg->getAllSchedules();
 
+    # Only run the check for Schedules that are runnable
+    my @schedules = ();
     foreach my $entry ( sort keys %sched ) {
-        my $projectName  = $sched{$entry}{project};
-        my $scheduleName = $sched{$entry}{schedule};
-        my $value        = $sched{$entry}{value};
+        next unless ( $sched{$entry}{value} eq "SentrySchedule" );
+        push( @schedules, [ $sched{$entry}{project}, $sched{$entry}{schedule} ] );
+    }
 
-        # Only run the check for Schedules that are runnable
-        if ( $value eq "SentrySchedule" ) {
-            print "Checking schedule - $projectName:$scheduleName\n";
+    # In event mode, schedules stay queued until they have nothing new or
+    # a job is started for them
+    my $queue;
+    my %queued;
+    if ( $self->IsEventMode() ) {
+        $queue  = new ElectricSentry::WorkQueue( $self->getCmdr() );
+        %queued = $queue->getAll();
+    }
 
-            my ( $bNewSource, $bQuietPeriodMet, $scmTag, $previousTag ) = eval {
-                $self->CheckOneSchedule( $projectName, $scheduleName );
-            };
+    # Read the settings of every schedule and group the schedules that
+    # poll the same repository. With PollMaxMinutes, schedules that have
+    # not changed for a while are probed less often, unless a webhook
+    # queued them.
+    my @checks = ();
+    my @probes = ();
+    my %probesByKey = ();
+    my $notDue = 0;
+    foreach my $schedule (@schedules) {
+        my ( $projectName, $scheduleName ) = @$schedule;
+        my $entry = $queued{$projectName}{$scheduleName};
+        my $touched =
+          ( defined $entry && defined $entry->{source}
+              && $entry->{source} eq "webhook" );
+        my $check = eval {
+            $self->PrepareCheck( $projectName, $scheduleName, $touched );
+        };
+        $check = { error => $@ } if ($@);
+        $check->{touched} = $touched;
+        $notDue++ if ( $check->{notDue} );
+        if ( defined $check->{key} ) {
+            my $probe = $probesByKey{ $check->{key} };
+            if ( !defined $probe ) {
+                $probe = {
+                    scmConfig => $check->{scmConfig},
+                    args      => $check->{args},
+                    owner     => "$projectName:$scheduleName",
+                    index     => scalar @probes
+                };
+                $probesByKey{ $check->{key} } = $probe;
+                push( @probes, $probe );
+            }
+            else {
+                $check->{sharedWith} = $probe->{owner};
+            }
+            $check->{probe} = $probe->{index};
+        }
+        push( @checks, $check );
+    }
 
-            if($@) {
-                print "Error checking schedule $projectName:$scheduleName: " . $@ . "\n";
+    # Run one getSCMTag probe per repository, except for the SCM
+    # configurations that keep failing
+    my ( $parallelism, $timeout ) = $self->GetCheckSettings();
+    my $probeSettings = $self->GetProbeSettings();
+    $self->LoadConfigHealth();
+    my @jobs = map {
+        my $probe = $_;
+        sub {
+            $self->SetProbeDeadline( $probe->{scmConfig}, $timeout );
+            $self->ProbeWithRetry( $probe->{scmConfig}, $probe->{args},
+                $probeSettings );
+        }
+    } @probes;
+
+    # The SCM commands are stopped at the timeout by RunCommand; a probe is
+    # only abandoned if it is still running once they had time to stop
+    my $limit = $timeout > 0 ? $timeout + $::gSentryProbeStopSeconds : 0;
+    my $start = Time::HiRes::time();
+    my @results;
+    if ( $parallelism > 1 && scalar @jobs > 1 && $^O ne "MSWin32" ) {
+        my @run = ();
+        foreach my $i ( 0 .. $#probes ) {
+            if ( $self->AllowProbe( $probes[$i]{scmConfig} ) ) {
+                push( @run, $i );
             }
             else {
+                $results[$i] = $self->SkippedProbe( $probes[$i]{scmConfig} );
+            }
+        }
+        print "Checking " . scalar @run . " repositories, "
+          . "$parallelism at a time\n";
+        my @ran =
+          $self->RunInParallel( [ map { $jobs[$_] } @run ], $parallelism,
+            $limit );
+        @results[@run] = @ran;
+    }
 
-                if ( !defined $bNewSource ) {
-                    print "Warning: An ElectricSentry schedule was skipped.\n";
-                }
-                elsif ( !$bNewSource ) {
 
-                    # No new sources - no change to status
-                    print " (nothing new)\n\n";
-                }
-                elsif ( !$bQuietPeriodMet ) {
-                    $self->SaveProjectandSchedule( $projectName, $scheduleName,
-                        "WaitingForQuiet" );
-                    print " (waiting for quiet time)\n\n";
-                }
-                else {
-                    $self->SaveProjectandSchedule( $projectName, $scheduleName,
-                        "Execute\n$scmTag\n$previousTag" );
-                    print " (ready to execute)\n\n";
-                }
+    # Report and save the results in schedule order, whatever order the
+    # probes finished in. Serial probes run as their first schedule
+    # comes up.
+    for my $i ( 0 .. $#schedules ) {
+        my ( $projectName, $scheduleName ) = @{ $schedules[$i] };
+        my $check = $checks[$i];
+        print "Checking schedule - $projectName:$scheduleName\n";
+        $self->RenewLease();
+
+        my $result;
+        if ( !defined $check->{probe} ) {
+            print $check->{note} if ( defined $check->{note} );
+            $result = { values => $check->{values}, error => $check->{error} };
+        }
+        else {
+            my $probe = $results[ $check->{probe} ];
+            if ( !defined $probe ) {
+                $probe =
+                  $self->AllowProbe( $check->{scmConfig} )
+                  ? $self->RunTimed( $limit, $jobs[ $check->{probe} ] )
+                  : $self->SkippedProbe( $check->{scmConfig} );
+                $results[ $check->{probe} ] = $probe;
+            }
+            if ( $probe->{skipped} ) {
+                print "Warning: "
+                  . $self->CircuitMessage( $check->{scmConfig} ) . "\n";
+            }
+            elsif ( defined $check->{sharedWith} ) {
+                print " (same repository as $check->{sharedWith})";
+            }
+            else {
+                print $probe->{output};
+            }
+            if ( !$probe->{skipped} && !$probe->{recorded} ) {
+                $self->RecordProbe( $check->{scmConfig}, $probe,
+                    $probeSettings );
+                $probe->{recorded} = 1;
+            }
+            $result = { values => [], error => $probe->{error} };
+            if ( $probe->{skipped} ) {
+                $result->{values} = [ undef, undef, undef, undef ];
+            }
+            elsif ( !$probe->{error} ) {
+                $result->{values} = [
+                    $self->EvaluateCheck( $check, @{ $probe->{values} } ) ];
+            }
+        }
+        my $status =
+          $self->SaveCheckResult( $projectName, $scheduleName, $result );
+        $self->SavePollStats( $projectName, $scheduleName, $check, $result )
+          if ( defined $check->{probe} );
+        $self->CountMetric($status);
+        if ( defined $queue ) {
+            my $isQueued = exists $queued{$projectName}{$scheduleName};
+            if ( $status eq "nothing" && $isQueued ) {
+                $queue->consume( $projectName, $scheduleName,
+                    $queued{$projectName}{$scheduleName}{events} );
+            }
+            elsif ( $status eq "waiting" && !$isQueued ) {
+                $queue->addEvent( $projectName, $scheduleName, "poll" );
             }
         }
     }
+    $jCfg->flush();
+    $self->FlushPollStats();
+    $self->SaveConfigHealth();
+    my $wallTime  = Time::HiRes::time() - $start;
+    my $probeTime = 0;
+    $probeTime += $_->{elapsed} foreach (@results);
+    foreach my $i ( 0 .. $#probes ) {
+        next if ( !defined $results[$i] || $results[$i]{skipped} );
+        $self->ObserveProbe( $probes[$i]{owner}, $results[$i]{elapsed} );
+    }
+    $self->CountMetric( "schedules", scalar @schedules );
+    $self->CountMetric( "probes",    scalar @probes );
+    $self->CountMetric( "notDue",    $notDue );
+
+    printf( "Checked %d schedules with %d getSCMTag calls in %.3fs wall "
+          . "time, %.3fs in getSCMTag\n",
+        scalar @schedules, scalar @probes, $wallTime, $probeTime );
+    print "$notDue schedules without recent changes were not due "
+      . "for a probe\n"
+      if ($notDue);
 }
 
 #-------------------------------------------------------------------------
-#  CheckOneSchedule
-#
-#  Check the sources tree associated and compare it with the last attempted
-#  build to detect changes.  It will determine which SCM system is
-#  configured for
-#  client view.
+#  GetCheckSettings
 #
-#   Params:
-#       projectName
-#       scheduleName
+#  Read how many probes run at once (SentryParallelism) and how long a
+#  single probe may take (CheckTimeoutSeconds) from the global Sentry
+#  settings.
 #
 #   Returns:
-#       A list containg:
-#           bNewSource          - 1 if new sources exist
-#           bQuietPeriodMet     - 1 if the last change is old enough
-#           scmTag              - a string describing the state of the
-#                                 sources in the SCM system
-#           previousTag         - the previous saved state of the SCM system
+#       parallelism, timeout in seconds (0 for no timeout)
 #
 #-------------------------------------------------------------------------
-sub CheckOneSchedule {
-    my ( $self, $projectName, $scheduleName ) = @_;
+sub GetCheckSettings {
+    my $self = shift;
 
-    my $lastAttempted = $self->GetLastAttempted( $projectName, $scheduleName );
+    my %settings = $self->GetSentrySettings();
 
-    # get all args from trigger schedule
+    my $parallelism = $settings{SentryParallelism};
+    $parallelism = 1 unless ( defined $parallelism && $parallelism =~ /^\d+$/ );
+    $parallelism = 1 if ( $parallelism < 1 );
+
+    my $timeout = $settings{CheckTimeoutSeconds};
+    $timeout = $::gSentryCheckTimeout
+      unless ( defined $timeout && $timeout =~ /^\d+$/ );
+
+    return ( $parallelism, $timeout );
+}
+
+#-------------------------------------------------------------------------
+#  GetProbeSettings
+#
+#  Read how failed probes are retried (ProbeRetries, ProbeBackoffSeconds)
+#  and when the probes of a failing SCM configuration are stopped
+#  (CircuitFailures, CircuitOpenMinutes) from the global Sentry settings.
+#
+#   Returns:
+#       A hash ref with retries, backoff, failures and openMinutes
+#
+#-------------------------------------------------------------------------
+$::gSentryProbeRetries       = 2;
+$::gSentryProbeBackoff       = 5;
+$::gSentryCircuitFailures    = 3;
+$::gSentryCircuitOpenMinutes = 15;
+
+sub GetProbeSettings {
+    my $self = shift;
+
+    my %settings = $self->GetSentrySettings();
+    my %defaults = (
+        ProbeRetries        => $::gSentryProbeRetries,
+        ProbeBackoffSeconds => $::gSentryProbeBackoff,
+        CircuitFailures     => $::gSentryCircuitFailures,
+        CircuitOpenMinutes  => $::gSentryCircuitOpenMinutes
+    );
+    foreach my $name ( keys %defaults ) {
+        $settings{$name} = $defaults{$name}
+          unless ( defined $settings{$name} && $settings{$name} =~ /^\d+$/ );
+    }
+
+    return {
+        retries     => $settings{ProbeRetries},
+        backoff     => $settings{ProbeBackoffSeconds},
+        failures    => $settings{CircuitFailures} || 1,
+        openMinutes => $settings{CircuitOpenMinutes}
+    };
+}
+
+#-------------------------------------------------------------------------
+#  GetSentrySettings
+#
+#  Read the global Sentry settings once per step
+#
+#-------------------------------------------------------------------------
+sub GetSentrySettings {
+    my $self = shift;
+
+    if ( !defined $self->{_sentrySettings} ) {
+        my ( $sentryProjectName, $sentryScheduleName ) =
+          $self->ECSentryGetProjectAndScheduleNames();
+        my $gCfg =
+          new ElectricSentry::GlobalCfg( $self->getCmdr(), $sentryProjectName,
+            $sentryScheduleName );
+        my %settings = $gCfg->getAll();
+        $self->{_sentrySettings} = \%settings;
+    }
+    return %{ $self->{_sentrySettings} };
+}
+
+#-------------------------------------------------------------------------
+#  RunTimed
+#
+#  Run a piece of work, giving up after a timeout
+#
+#   Params:
+#       timeout             - seconds, 0 for no timeout
+#       job                 - code ref returning a list of values
+#
+#   Returns:
+#       A hash ref with the values returned by the job, the error if it
+#       failed, and the seconds it took
+#
+#-------------------------------------------------------------------------
+sub RunTimed {
+    my ( $self, $timeout, $job ) = @_;
+
+    my $start  = Time::HiRes::time();
+    my @values = eval {
+        local $SIG{ALRM} = sub { die "timed out after $timeout seconds\n" };
+        alarm($timeout);
+        my @returned = $job->();
+        alarm(0);
+        @returned;
+    };
+    my $error = $@;
+    alarm(0);
+
+    return {
+        values  => \@values,
+        error   => $error,
+        elapsed => Time::HiRes::time() - $start,
+        output  => ""
+    };
+}
+
+#-------------------------------------------------------------------------
+#  RunInParallel
+#
+#  Run jobs in child processes, at most parallelism at a time. Each child
+#  has its own Commander handle and writes its log and its result to a
+#  temporary directory. A child that is still running a minute after its
+#  timeout is killed along with the commands it started.
+#
+#   Params:
+#       jobs                - ref to a list of code refs
+#       parallelism         - how many children to run at once
+#       timeout             - seconds, 0 for no timeout
+#
+#   Returns:
+#       A list of results as returned by RunTimed, in the order of jobs,
+#       each with the log output of the job
+#
+#-------------------------------------------------------------------------
+sub RunInParallel {
+    my ( $self, $jobs, $parallelism, $timeout ) = @_;
+
+    my $dir     = File::Temp::tempdir( CLEANUP => 1 );
+    my @results = ();
+    my %running = ();    # pid => [index, start time]
+    my $next    = 0;
+
+    while ( $next < scalar @$jobs || scalar keys %running ) {
+
+        # Start children until the pool is full
+        while ( $next < scalar @$jobs
+            && scalar keys %running < $parallelism )
+        {
+            my $i   = $next++;
+            my $pid = fork();
+            if ( !defined $pid ) {
+
+                # Out of processes: run this one here instead
+                $results[$i] = $self->RunTimed( $timeout, $jobs->[$i] );
+                next;
+            }
+            if ( $pid == 0 ) {
+                setpgrp( 0, 0 );
+                open( STDOUT, ">", "$dir/$i.log" );
+                open( STDERR, ">&STDOUT" );
+                $| = 1;
+                $self->reconnect();
+                my $result = $self->RunTimed( $timeout, $jobs->[$i] );
+                Storable::nstore( $result, "$dir/$i.result" );
+                POSIX::_exit(0);
+            }
+            $running{$pid} = [ $i, Time::HiRes::time() ];
+        }
+
+        # Collect the children that are done
+        my $pid = waitpid( -1, POSIX::WNOHANG() );
+        if ( $pid > 0 ) {
+            if ( defined $running{$pid} ) {
+                my ( $i, $started ) = @{ delete $running{$pid} };
+                $results[$i] =
+                  $self->ReadJobResult( $dir, $i,
+                    Time::HiRes::time() - $started, "exited with status $?" );
+            }
+            next;
+        }
+
+        # Kill the children that hang past their timeout
+        if ( $timeout > 0 ) {
+            foreach my $pid ( keys %running ) {
+                my ( $i, $started ) = @{ $running{$pid} };
+                my $elapsed = Time::HiRes::time() - $started;
+                next if ( $elapsed < $timeout + 60 );
+                kill( "KILL", -$pid );
+                waitpid( $pid, 0 );
+                delete $running{$pid};
+                $results[$i] =
+                  $self->ReadJobResult( $dir, $i, $elapsed,
+                    "timed out after $timeout seconds" );
+            }
+        }
+        Time::HiRes::sleep(0.1);
+    }
+    return @results;
+}
+
+#-------------------------------------------------------------------------
+#  ReadJobResult
+#
+#  Read the result and the log that a child process left behind
+#
+#   Params:
+#       dir                 - the temporary directory
+#       i                   - the index of the job
+#       elapsed             - seconds the child ran
+#       error               - the error to report if there is no result
+#
+#-------------------------------------------------------------------------
+sub ReadJobResult {
+    my ( $self, $dir, $i, $elapsed, $error ) = @_;
+
+    my $result = eval { Storable::retrieve("$dir/$i.result") };
+    if ( !defined $result ) {
+        $result = { values => [], error => "check $error\n" };
+    }
+    $result->{elapsed} = $elapsed;
+    $result->{output}  = "";
+    if ( open( my $log, "<", "$dir/$i.log" ) ) {
+        local $/;
+        $result->{output} = <$log>;
+        close($log);
+    }
+    return $result;
+}
+
+#-------------------------------------------------------------------------
+#  SaveCheckResult
+#
+#  Report the result of checking one schedule and save its new state
+#
+#   Params:
+#       projectName
+#       scheduleName
+#       result              - values as returned by CheckOneSchedule, and
+#                             the error if the check failed
+#
+#   Returns:
+#       error, skipped, nothing, waiting or execute
+#
+#-------------------------------------------------------------------------
+sub SaveCheckResult {
+    my ( $self, $projectName, $scheduleName, $result ) = @_;
+
+    my ( $bNewSource, $bQuietPeriodMet, $scmTag, $previousTag ) =
+      @{ $result->{values} };
+
+    if ( $result->{error} ) {
+        print "Error checking schedule $projectName:$scheduleName: "
+          . $result->{error} . "\n";
+        return "error";
+    }
+    elsif ( !defined $bNewSource ) {
+        print "Warning: An ElectricSentry schedule was skipped.\n";
+        return "skipped";
+    }
+    elsif ( !$bNewSource ) {
+
+        # No new sources - no change to status
+        print " (nothing new)\n\n";
+        return "nothing";
+    }
+    elsif ( !$bQuietPeriodMet ) {
+        $self->SaveProjectandSchedule( $projectName, $scheduleName,
+            "WaitingForQuiet" );
+        print " (waiting for quiet time)\n\n";
+        return "waiting";
+    }
+    else {
+        $self->SaveProjectandSchedule( $projectName, $scheduleName,
+            "Execute\n$scmTag\n$previousTag" );
+        print " (ready to execute)\n\n";
+        return "execute";
+    }
+}
+
+#-------------------------------------------------------------------------
+#  reconnect
+#
+#  Give a child process its own Commander handle, and forget the SCM
+#  drivers loaded with the handle of the parent
+#
+#-------------------------------------------------------------------------
+sub reconnect {
+    my $self = shift;
+
+    my $cmdr =
+      new ElectricCommander("$ENV{COMMANDER_SERVER}:$ENV{COMMANDER_PORT}");
+    $cmdr->abortOnError(0);
+    $self->{_cmdr}  = $cmdr;
+    $self->{_ecscm} = new ECSCM::Base::Driver($cmdr);
+
+    %::gSentryLoadedPluginsByConfig = ();
+    %::gSentryLoadedSCMsByConfig    = ();
+}
+
+#-------------------------------------------------------------------------
+#  CheckOneSchedule
+#
+#  Check the sources tree associated and compare it with the last attempted
+#  build to detect changes.  It will determine which SCM system is
+#  configured for
+#  client view.
+#
+#   Params:
+#       projectName
+#       scheduleName
+#
+#   Returns:
+#       A list containg:
+#           bNewSource          - 1 if new sources exist
+#           bQuietPeriodMet     - 1 if the last change is old enough
+#           scmTag              - a string describing the state of the
+#                                 sources in the SCM system
+#           previousTag         - the previous saved state of the SCM system
+#
+#-------------------------------------------------------------------------
+sub CheckOneSchedule {
+    my ( $self, $projectName, $scheduleName ) = @_;
+
+    my $check = $self->PrepareCheck( $projectName, $scheduleName );
+    if ( !defined $check->{key} ) {
+        print $check->{note} if ( defined $check->{note} );
+        return @{ $check->{values} };
+    }
+    return $self->EvaluateCheck( $check,
+        $self->ProbeSCM( $check->{scmConfig}, $check->{args} ) );
+}
+
+#-------------------------------------------------------------------------
+#  PrepareCheck
+#
+#  Read what is needed to check one schedule: its trigger settings, the
+#  last attempted snapshot and the SCM driver for its configuration.
+#
+#   Params:
+#       projectName
+#       scheduleName
+#       touched             - 1 if a webhook queued the schedule
+#
+#   Returns:
+#       A hash ref with
+#           args                - the arguments for getSCMTag
+#           scmConfig           - the SCM configuration
+#           lastAttempted       - the previous saved state of the SCM system
+#           key                 - the probe key; schedules with the same
+#                                 key share one getSCMTag call
+#           state               - the saved state of the schedule, see
+#                                 GetScheduleState
+#       or, if the schedule cannot or need not be probed, with
+#           values              - the result of the check
+#           note                - an optional message for the log
+#           notDue              - 1 if the schedule is probed less often
+#                                 and its next probe is not due yet
+#
+#-------------------------------------------------------------------------
+sub PrepareCheck {
+    my ( $self, $projectName, $scheduleName, $touched ) = @_;
+
+    my %state = $self->GetScheduleState( $projectName, $scheduleName );
+    my $lastAttempted = $state{LastAttemptedSnapshot};
+
+    # Schedules without recent changes are probed less often
+    my $wait = $touched ? 0 : $self->PollWait( \%state );
+    if ( $wait > 0 ) {
+        return {
+            values => [ 0, 0, "", "" ],
+            note   => sprintf( " (no recent changes, next probe in %d minutes)",
+                int( ( $wait + 59 ) / 60 ) ),
+            notDue => 1
+        };
+    }
+
+    # get all args from trigger schedule
     my $tCfg =
       new ElectricSentry::TriggerCfg( $self->getCmdr(), $projectName,
         $scheduleName );
@@ -602,6 +1626,11 @@ sub CheckOneSchedule {
     if (!%Args) {
         die "could not get properties on trigger schedule";
     }
+
+    # The schedule may have been disabled since it was indexed
+    if ( !defined $Args{'TriggerFlag'} || $Args{'TriggerFlag'} ne "$::gTriggerValue" ) {
+        return { values => [ 0, 0, "", "" ], note => " (trigger is disabled)" };
+    }
     my $scmArgs = \%Args;
 
     # Determine the SCM plugin and driver for this SCM configuration
@@ -609,22 +1638,300 @@ sub CheckOneSchedule {
     my ( $scmPlugin, $scmDriver, $scm ) = $self->loadSCMSystem($scmConfig);
     $self->getECSCM->debug("SCM driver=$scmPlugin   Configuration=$scmConfig");
 
+    if ( !defined $scmDriver ) {
+        warn "Could not load driver $scmDriver";
+        return { values => [ undef, undef, undef, undef ] };
+    }
+
     # add global flags in case the driver needs them
     #
     $scmArgs->{LASTATTEMPTED} = $lastAttempted;
 
-    my $changesetNumber = undef;
-    my $changeTimeStamp = undef;
+    # Schedules share a probe only if the driver says which arguments
+    # select the repository and branch to poll
+    my $key;
+    my @probeArgs = ();
+    @probeArgs = $scm->getSCMTagProbeArgs()
+      if ( $scm->can("getSCMTagProbeArgs") );
+    if ( scalar @probeArgs && defined $probeArgs[0] ) {
+        $key = join( "\n",
+            $scmConfig,
+            map { "$_=" . ( defined $scmArgs->{$_} ? $scmArgs->{$_} : "" ) }
+              sort @probeArgs );
+    }
+    else {
+        $key = join( "\n", $scmConfig, $projectName, $scheduleName );
+    }
+
+    return {
+        args          => $scmArgs,
+        scmConfig     => $scmConfig,
+        lastAttempted => $lastAttempted,
+        key           => $key,
+        state         => \%state
+    };
+}
+
+#-------------------------------------------------------------------------
+#  PollWait
+#
+#  How long a schedule waits for its next probe. A schedule is probed on
+#  every run while its recent probes find changes (HitRate), and after
+#  that waits an eighth of the time since its last change, at most
+#  PollMaxMinutes.
+#
+#   Params:
+#       state               - the saved state of the schedule
+#
+#   Returns:
+#       seconds until the next probe, 0 if it is due
+#
+#-------------------------------------------------------------------------
+
+# a schedule waits for its next probe 1/gSentryPollIdleDivisor of the time
+# since it last changed, unless at least gSentryPollHotRate of its recent
+# probes found changes
+$::gSentryPollIdleDivisor = 8;
+$::gSentryPollHotRate     = 0.2;
+
+sub PollWait {
+    my ( $self, $state ) = @_;
+
+    my $maxMinutes = $self->GetPollMaxMinutes();
+    return 0 unless ($maxMinutes);
+
+    my $lastProbed  = $state->{LastProbed};
+    my $lastChanged = $state->{LastChanged};
+    return 0 unless ( defined $lastProbed && $lastProbed =~ /^\d+$/ );
+    $lastChanged = $lastProbed
+      unless ( defined $lastChanged && $lastChanged =~ /^\d+$/ );
+    my $hitRate = $state->{HitRate};
+    return 0
+      if ( defined $hitRate
+        && $hitRate =~ /^[\d.]+$/
+        && $hitRate >= $::gSentryPollHotRate );
+
+    my $now      = time();
+    my $interval = ( $now - $lastChanged ) / $::gSentryPollIdleDivisor;
+    $interval = $maxMinutes * 60 if ( $interval > $maxMinutes * 60 );
+    my $wait = $lastProbed + $interval - $now;
+    return $wait > 0 ? $wait : 0;
+}
+
+#-------------------------------------------------------------------------
+#  SavePollStats
+#
+#  Record when a schedule was probed, whether the probe found changes and
+#  the share of its recent probes that did, for PollWait. The values are
+#  kept until FlushPollStats writes them all in batches.
+#
+#   Params:
+#       projectName
+#       scheduleName
+#       check               - as returned by PrepareCheck
+#       result              - values as returned by EvaluateCheck, and
+#                             the error if the check failed
+#
+#-------------------------------------------------------------------------
+
+# how much the latest probe counts in HitRate
+$::gSentryPollHitWeight = 0.1;
+
+# how many schedules FlushPollStats writes per batch
+$::gSentryPollStatsChunkSize = 200;
+
+sub SavePollStats {
+    my ( $self, $projectName, $scheduleName, $check, $result ) = @_;
+
+    return unless ( $self->GetPollMaxMinutes() );
+    return if ( $result->{error} || !defined $result->{values}[0] );
 
+    my $state = $check->{state} || {};
+    my $hit   = $result->{values}[0] ? 1 : 0;
+    my $hitRate = $state->{HitRate};
+    $hitRate = 0 unless ( defined $hitRate && $hitRate =~ /^[\d.]+$/ );
+    $hitRate =
+      $hitRate * ( 1 - $::gSentryPollHitWeight ) +
+      $hit * $::gSentryPollHitWeight;
+
+    my $now    = time();
+    my %values = (
+        LastProbed => $now,
+        HitRate    => sprintf( "%.3f", $hitRate )
+    );
+    $values{LastChanged} = $now
+      if ( $hit
+        || $check->{touched}
+        || !defined $state->{LastChanged}
+        || $state->{LastChanged} eq "" );
+    push(
+        @{ $self->{_pollStats} },
+        [
+            $self->GetScheduleCfg( $projectName, $scheduleName ),
+            \%values
+        ]
+    );
+}
+
+#-------------------------------------------------------------------------
+#  FlushPollStats
+#
+#  Write the values SavePollStats kept, up to gSentryPollStatsChunkSize
+#  schedules per batch
+#
+#   Returns:
+#       The number of requests made
+#
+#-------------------------------------------------------------------------
+sub FlushPollStats {
+    my $self = shift;
+
+    my $pending  = $self->{_pollStats} || [];
+    my $requests = 0;
+    while ( scalar @$pending ) {
+        my $batch = $self->getCmdr()->newBatch();
+        foreach my $stats ( splice( @$pending, 0, $::gSentryPollStatsChunkSize ) )
+        {
+            my ( $cfg, $values ) = @$stats;
+            $cfg->setInBatch( $batch, %$values );
+        }
+        $batch->submit();
+        $requests++;
+    }
+    return $requests;
+}
+
+#-------------------------------------------------------------------------
+#  GetPollMaxMinutes
+#
+#  The PollMaxMinutes setting, 0 if schedules are probed on every run
+#
+#-------------------------------------------------------------------------
+sub GetPollMaxMinutes {
+    my $self = shift;
+
+    my %settings   = $self->GetSentrySettings();
+    my $maxMinutes = $settings{PollMaxMinutes};
+    return 0 unless ( defined $maxMinutes && $maxMinutes =~ /^\d+$/ );
+    return $maxMinutes;
+}
+
+#-------------------------------------------------------------------------
+#  ProbeSCM
+#
+#  Ask the SCM system for the state of the sources
+#
+#   Params:
+#       scmConfig           - name of the SCM Configuration
+#       args                - the arguments for getSCMTag
+#
+#   Returns:
+#       changesetNumber, changeTimeStamp as returned by getSCMTag
+#
+#-------------------------------------------------------------------------
+sub ProbeSCM {
+    my ( $self, $scmConfig, $args ) = @_;
+
+    my ( $scmPlugin, $scmDriver, $scm ) = $self->loadSCMSystem($scmConfig);
     if ( !defined $scmDriver ) {
         warn "Could not load driver $scmDriver";
+        return ( undef, undef );
     }
-    else {
 
-        # get the numeric change tag and the time it last changed
-        # (for some SCM's this may be the same value)
-        ( $changesetNumber, $changeTimeStamp ) = $scm->getSCMTag($scmArgs);
+    # get the numeric change tag and the time it last changed
+    # (for some SCM's this may be the same value)
+    return $scm->getSCMTag($args);
+}
+
+#-------------------------------------------------------------------------
+#  SetProbeDeadline
+#
+#  Make RunCommand stop the SCM commands of a probe, with every process
+#  they started, once the probe has run for the check timeout. A probe
+#  that is abandoned by RunTimed instead would leave its command running.
+#
+#   Params:
+#       scmConfig           - name of the SCM Configuration
+#       timeout             - seconds from now, 0 for no deadline
+#
+#-------------------------------------------------------------------------
+
+# how long the SCM command of a probe gets to stop after the check timeout
+$::gSentryProbeStopSeconds = 15;
+
+sub SetProbeDeadline {
+    my ( $self, $scmConfig, $timeout ) = @_;
+
+    my ( undef, undef, $scm ) = $self->loadSCMSystem($scmConfig);
+    return unless ( defined $scm && $scm->can('setCommandDeadline') );
+    $scm->setCommandDeadline( $timeout > 0 ? time() + $timeout : 0 );
+}
+
+#-------------------------------------------------------------------------
+#  ProbeWithRetry
+#
+#  ProbeSCM, retried with exponential backoff while it fails. A probe
+#  that ran out of time, or whose SCM command was stopped by its
+#  commandTimeout, is not retried; it fails right away so that the
+#  circuit breaker counts it.
+#
+#   Params:
+#       scmConfig           - name of the SCM Configuration
+#       args                - the arguments for getSCMTag
+#       settings            - as returned by GetProbeSettings
+#
+#   Returns:
+#       changesetNumber, changeTimeStamp as returned by getSCMTag
+#
+#-------------------------------------------------------------------------
+sub ProbeWithRetry {
+    my ( $self, $scmConfig, $args, $settings ) = @_;
+
+    my $attempt = 0;
+    while (1) {
+        my @values = eval { $self->ProbeSCM( $scmConfig, $args ) };
+        my $error = $@;
+        die $error if ( $error =~ /^timed out after/ );
+        my ( undef, undef, $scm ) = $self->loadSCMSystem($scmConfig);
+        if ( defined $scm
+            && $scm->can('CommandTimedOut')
+            && $scm->CommandTimedOut() )
+        {
+            die "the SCM command of $scmConfig timed out\n";
+        }
+        return @values
+          if ( !$error && defined $values[0] && defined $values[1] );
+
+        if ( $attempt >= $settings->{retries} ) {
+            die $error if ($error);
+            return @values;
+        }
+        my $delay = $settings->{backoff} * 2**$attempt;
+        $attempt++;
+        print "getSCMTag failed for $scmConfig, retry $attempt of "
+          . "$settings->{retries} in $delay seconds\n";
+        sleep($delay);
     }
+}
+
+#-------------------------------------------------------------------------
+#  EvaluateCheck
+#
+#  Compare the state of the sources with the last attempted build
+#
+#   Params:
+#       check               - as returned by PrepareCheck
+#       changesetNumber     - as returned by getSCMTag
+#       changeTimeStamp     - as returned by getSCMTag
+#
+#   Returns:
+#       The same list as CheckOneSchedule
+#
+#-------------------------------------------------------------------------
+sub EvaluateCheck {
+    my ( $self, $check, $changesetNumber, $changeTimeStamp ) = @_;
+
+    my $lastAttempted = $check->{lastAttempted};
 
     #  undef return from getSCMTag signifies an error
     #    either the configuration was bad, or the command returned an error
@@ -653,7 +1960,7 @@ sub CheckOneSchedule {
 
         # Enforce a quiet time if one exists
         $bQuietPeriodMet = 1;
-        my $quietTimeMinutes = $Args{'QuietTimeMinutes'};
+        my $quietTimeMinutes = $check->{args}{'QuietTimeMinutes'};
         $quietTimeMinutes = "5" unless ( length($quietTimeMinutes) > 0 );
         if (   $quietTimeMinutes > 0
             && defined $changeTimeStamp
@@ -752,6 +2059,169 @@ sub loadSCMSystem {
 
 }
 
+#-------------------------------------------------------------------------
+#  Health of the SCM configurations
+#
+#  Once the probes of an SCM configuration have failed CircuitFailures
+#  times in a row, the configuration is not probed again for
+#  CircuitOpenMinutes and its schedules are skipped with a warning. After
+#  that one probe is let through: if it succeeds the configuration is
+#  healthy again, if not it waits another CircuitOpenMinutes.
+#
+#  The records are kept between runs in
+#       /server/ECSCM/sentryConfigHealth/<scmConfig>/failures
+#       /server/ECSCM/sentryConfigHealth/<scmConfig>/openUntil
+#       /server/ECSCM/sentryConfigHealth/<scmConfig>/lastError
+#
+#-------------------------------------------------------------------------
+$::gSentryConfigHealthPath = "/server/ECSCM/sentryConfigHealth";
+%::gSentryConfigHealth     = ();
+
+sub LoadConfigHealth {
+    my $self = shift;
+
+    %::gSentryConfigHealth = ();
+    my ( $success, $xPath ) = $self->getECSCM()->InvokeCommander(
+        { SuppressLog => 1, IgnoreError => 1 },
+        "getProperties", { path => $::gSentryConfigHealthPath, recurse => 1 } );
+    return unless ($success);
+
+    foreach my $cfgNode ( $xPath->findnodes('//response/propertySheet/property') ) {
+        my $scmConfig = $xPath->findvalue( 'propertyName', $cfgNode );
+        my %health = ( failures => 0, openUntil => 0, lastError => "" );
+        foreach my $node ( $xPath->findnodes( 'propertySheet/property', $cfgNode ) ) {
+            $health{ $xPath->findvalue( 'propertyName', $node ) } =
+              $xPath->findvalue( 'value', $node )->string_value;
+        }
+        $::gSentryConfigHealth{"$scmConfig"} = \%health;
+    }
+}
+
+#-------------------------------------------------------------------------
+#  AllowProbe
+#
+#  Whether an SCM configuration may be probed now. Only the first probe
+#  after the circuit has been open long enough is let through.
+#
+#-------------------------------------------------------------------------
+sub AllowProbe {
+    my ( $self, $scmConfig ) = @_;
+
+    my $health = $::gSentryConfigHealth{$scmConfig};
+    return 1 if ( !defined $health || !$health->{openUntil} );
+    return 0 if ( $health->{openUntil} > time() || $health->{halfOpen} );
+    $health->{halfOpen} = 1;
+    print "Trying SCM configuration $scmConfig again\n";
+    return 1;
+}
+
+#-------------------------------------------------------------------------
+#  SkippedProbe
+#
+#  The result of a probe that was not run because the circuit of its SCM
+#  configuration is open
+#
+#-------------------------------------------------------------------------
+sub SkippedProbe {
+    my ( $self, $scmConfig ) = @_;
+
+    return { values => [], error => "", elapsed => 0, output => "",
+        skipped => 1 };
+}
+
+#-------------------------------------------------------------------------
+#  CircuitMessage
+#
+#  Why the schedules of an SCM configuration are not checked
+#
+#-------------------------------------------------------------------------
+sub CircuitMessage {
+    my ( $self, $scmConfig ) = @_;
+
+    my $health = $::gSentryConfigHealth{$scmConfig};
+    if ( $health->{openUntil} <= time() ) {
+        return "SCM configuration $scmConfig has failed $health->{failures} "
+          . "times in a row and is being tried again with another schedule, "
+          . "not checking this one";
+    }
+    return "SCM configuration $scmConfig has failed $health->{failures} "
+      . "times in a row, not checking its schedules until "
+      . scalar( localtime( $health->{openUntil} ) )
+      . ". Last error: $health->{lastError}";
+}
+
+#-------------------------------------------------------------------------
+#  RecordProbe
+#
+#  Update the health of an SCM configuration with the result of a probe
+#
+#   Params:
+#       scmConfig           - name of the SCM Configuration
+#       probe               - the result, as returned by RunTimed
+#       settings            - as returned by GetProbeSettings
+#
+#-------------------------------------------------------------------------
+sub RecordProbe {
+    my ( $self, $scmConfig, $probe, $settings ) = @_;
+
+    my $health = $::gSentryConfigHealth{$scmConfig};
+    my ( $changesetNumber, $changeTimeStamp ) = @{ $probe->{values} };
+    if ( !$probe->{error} && defined $changesetNumber && defined $changeTimeStamp ) {
+        if ( defined $health && ( $health->{failures} || $health->{openUntil} ) ) {
+            print "SCM configuration $scmConfig is working again\n"
+              if ( $health->{openUntil} );
+            $::gSentryConfigHealth{$scmConfig} =
+              { failures => 0, openUntil => 0, lastError => "", dirty => 1 };
+        }
+        return;
+    }
+
+    $health = { failures => 0, openUntil => 0, lastError => "" }
+      unless ( defined $health );
+    $::gSentryConfigHealth{$scmConfig} = $health;
+    $health->{failures}++;
+    $health->{lastError} =
+      $probe->{error} ? $probe->{error} : "getSCMTag returned no result";
+    $health->{lastError} =~ s/\s+$//;
+    $health->{dirty} = 1;
+    if ( $health->{halfOpen} || $health->{failures} >= $settings->{failures} ) {
+        $health->{openUntil} = time() + $settings->{openMinutes} * 60;
+        print "Warning: SCM configuration $scmConfig has failed "
+          . "$health->{failures} times in a row, its schedules will not be "
+          . "checked until "
+          . scalar( localtime( $health->{openUntil} ) ) . "\n";
+    }
+}
+
+#-------------------------------------------------------------------------
+#  SaveConfigHealth
+#
+#  Write the health records that changed, and drop the healthy ones
+#
+#-------------------------------------------------------------------------
+sub SaveConfigHealth {
+    my $self = shift;
+
+    my @dirty = grep { $::gSentryConfigHealth{$_}{dirty} }
+      sort keys %::gSentryConfigHealth;
+    return unless (@dirty);
+
+    my $batch = $self->getCmdr()->newBatch();
+    foreach my $scmConfig (@dirty) {
+        my $health = $::gSentryConfigHealth{$scmConfig};
+        my $path   = "$::gSentryConfigHealthPath/$scmConfig";
+        if ( !$health->{failures} ) {
+            $batch->deleteProperty($path);
+            next;
+        }
+        foreach my $name (qw(failures openUntil lastError)) {
+            $batch->setProperty( "$path/$name", "$health->{$name}" );
+        }
+        delete $health->{dirty};
+    }
+    $batch->submit();
+}
+
 
 sub executeSchedule {
     my ($self, $projectName, $scheduleName) = @_;
@@ -806,11 +2276,21 @@ sub executeProcedures {
     my $startedCount = 0;
     my $exitCode     = 0;
 
+    $self->RenewLease();
     my $jCfg =
       new ElectricSentry::JobCfg( $self->getCmdr(), $ENV{COMMANDER_JOBID}, "",
         "" );
     my %sched = $jCfg->getAllSchedules();
 
+    # In event mode, the events of a schedule are consumed once its job
+    # is started
+    my $queue;
+    my %queued;
+    if ( $self->IsEventMode() ) {
+        $queue  = new ElectricSentry::WorkQueue( $self->getCmdr() );
+        %queued = $queue->getAll();
+    }
+
     foreach my $entry ( sort keys %sched ) {
         my $projectName  = $sched{$entry}{project};
         my $scheduleName = $sched{$entry}{schedule};
@@ -821,6 +2301,20 @@ sub executeProcedures {
             my $snapshot         = $1;
             my $previousSnapshot = $2;
 
+            # In shard mode, a member that did not see this instance join
+            # the ring yet may own the schedule too. The one that saved
+            # the snapshot first runs it.
+            $self->RenewLease();
+            my $attempted =
+              $self->IsShardMode()
+              ? $self->GetLastAttempted( $projectName, $scheduleName )
+              : undef;
+            if ( defined $attempted && $attempted eq $snapshot ) {
+                print "Another sentry instance has already started "
+                  . "'$scheduleName' in '$projectName' for this change.\n";
+                next;
+            }
+
             #  Save the Snapshot first, so that the procedure can access it
             $self->SetLastAttempted( $projectName, $scheduleName, $snapshot );
 
@@ -832,6 +2326,9 @@ sub executeProcedures {
                   . "'$scheduleName' schedule in the "
                   . "'$projectName' project.\n";
                 $startedCount++;
+                $queue->consume( $projectName, $scheduleName,
+                    $queued{$projectName}{$scheduleName}{events} )
+                  if ( defined $queue && $queued{$projectName}{$scheduleName} );
             }
             else {
 
@@ -871,7 +2368,12 @@ sub executeProcedures {
     if ( $readyCount == 0 ) {
         print "ElectricSentry did not start any procedures.\n";
     }
-    exit $exitCode if ($exitCode);
+    $self->CountMetric( "ready",   $readyCount );
+    $self->CountMetric( "started", $startedCount );
+    if ($exitCode) {
+        $self->EndPhase("error");
+        exit $exitCode;
+    }
 }
 
 #-------------------------------------------------------------------------
@@ -894,16 +2396,10 @@ sub executeProcedures {
 #-------------------------------------------------------------------------
 sub SetLastAttempted {
     my ( $self, $projectName, $scheduleName, $snapshot ) = @_;
-    my ( $sentryProjectName, $sentryScheduleName ) =
-      $self->ECSentryGetProjectAndScheduleNames();
 
 #print "setting last attempted to [$snapshot]\n";
-#print "[$sentryProjectName] [$sentryScheduleName] [$projectName] [$scheduleName]\n";
 
-    my $cfg = new ElectricSentry::ScheduleCfg(
-        $self->getCmdr(), $sentryProjectName, $sentryScheduleName,
-        $projectName,     $scheduleName
-    );
+    my $cfg = $self->GetScheduleCfg( $projectName, $scheduleName );
 
     # Set up quiet time from the schedule
     my $last = $cfg->setLastAttempted("$snapshot");
@@ -926,22 +2422,110 @@ sub SetLastAttempted {
 sub GetLastAttempted {
     my ( $self, $projectName, $scheduleName ) = @_;
 
+    my %state = $self->GetScheduleState( $projectName, $scheduleName );
+    return ( $state{LastAttemptedSnapshot} );
+}
+
+#-------------------------------------------------------------------------
+#   GetScheduleState
+#
+#       Read what ElectricSentry saved about a trigger schedule with one
+#       request: LastAttemptedSnapshot, and the LastProbed, LastChanged
+#       and HitRate used by PollWait
+#
+# Arguments:
+#      projectName      -   name of the project that contains the schedule
+#      scheduleName     -   name of the trigger schedule
+#
+#-------------------------------------------------------------------------
+sub GetScheduleState {
+    my ( $self, $projectName, $scheduleName ) = @_;
+
+    my $cfg = $self->GetScheduleCfg( $projectName, $scheduleName );
+    my %state = $cfg->getAll();
+
+    # A schedule new to shard mode starts from what this instance saw
+    if ( $self->IsShardMode() && !length $state{LastAttemptedSnapshot} ) {
+        my ( $sentryProjectName, $sentryScheduleName ) =
+          $self->ECSentryGetProjectAndScheduleNames();
+        $state{LastAttemptedSnapshot} = new ElectricSentry::ScheduleCfg(
+            $self->getCmdr(), $sentryProjectName, $sentryScheduleName,
+            $projectName,     $scheduleName
+        )->getLastAttempted();
+    }
+    return %state;
+}
+
+#-------------------------------------------------------------------------
+#   GetScheduleCfg
+#
+#       The Sentry settings of a trigger schedule. In shard mode they are
+#       shared by the sentry schedules of the project, so that a schedule
+#       that moves to another instance is not seen as changed.
+#
+# Arguments:
+#      projectName      -   name of the project that contains the schedule
+#      scheduleName     -   name of the trigger schedule
+#
+#-------------------------------------------------------------------------
+sub GetScheduleCfg {
+    my ( $self, $projectName, $scheduleName ) = @_;
+
     my ( $sentryProjectName, $sentryScheduleName ) =
       $self->ECSentryGetProjectAndScheduleNames();
-    my $cfg = new ElectricSentry::ScheduleCfg(
+    if ( $self->IsShardMode() ) {
+        return ElectricSentry::ScheduleCfg->newShared( $self->getCmdr(),
+            $sentryProjectName, $projectName, $scheduleName );
+    }
+    return new ElectricSentry::ScheduleCfg(
         $self->getCmdr(), $sentryProjectName, $sentryScheduleName,
         $projectName,     $scheduleName
     );
+}
+
+#-------------------------------------------------------------------------
+# Cleanup
+#
+#  Only the cycle that holds the lease deletes old jobs. Every cycle
+#  gives up its lease at the end.
+#-------------------------------------------------------------------------
+sub cleanup {
+    my $self = shift;
+
+    my ($role) = $self->GetLeaseRole();
+    if ( $role ne "owner" ) {
+        $self->ReleaseLease();
+        print "Old sentry jobs are deleted by the cycle that holds the lease\n";
+        return;
+    }
 
-    # Set up quiet time from the schedule
-    my $last = $cfg->getLastAttempted();
-    return ($last);
+    eval { $self->CleanupOldJobs(); };
+    my $error = $@;
+    $self->ReleaseLease();
+    die $error if ($error);
 }
 
 #-------------------------------------------------------------------------
-# Cleanup
+#  CleanupOldJobs
+#
+#  Delete the completed jobs of this sentry schedule and their
+#  workspaces, oldest first. Jobs are read and deleted in batches, and
+#  workspaces are removed CleanupParallelism at a time. Once
+#  CleanupBudgetSeconds are used up the cleanup stops and the next run
+#  carries on from the cursor saved in
+#  /server/ECSCM/sentryCleanupCursor/<proj>/<sched>. The cursor is the
+#  createTime of the last job deleted followed by the ids of the jobs
+#  deleted with that createTime, so that jobs created at the same time
+#  are neither skipped nor read twice. The cursor never moves past a job
+#  that could not be deleted: the cleanup stops there and the next run
+#  tries that job again.
 #-------------------------------------------------------------------------
-sub cleanup {
+$::gSentryCleanupCursorPath  = "/server/ECSCM/sentryCleanupCursor";
+$::gSentryCleanupBudget      = 60;
+$::gSentryCleanupParallelism = 4;
+$::gSentryCleanupChunkSize   = 100;
+
+sub CleanupOldJobs {
     my $self = shift;
     my ( $sentryProjectName, $sentryScheduleName, $sentryProcedureName ) =
       $self->ECSentryGetProjectAndScheduleNames();
@@ -957,9 +2541,6 @@ sub cleanup {
         return;
     }
 
-    # Check for the OS Type
-    my $osIsWindows = $^O =~ /MSWin/;
-
     #  Find all previous runs of this job
     my @filterList;
     push(
@@ -1011,51 +2592,253 @@ sub cleanup {
         );
     }
 
-    # Run the Query
+    # Carry on after the last job the previous run looked at
+    my ( $budget, $parallelism ) = $self->GetCleanupSettings();
+    my $cursorPath =
+      "$::gSentryCleanupCursorPath/$sentryProjectName/$sentryScheduleName";
     my ( $success, $xPath ) =
-      $self->getECSCM()->InvokeCommander( { SuppressLog => 1 },
-        "findObjects", "job", { numObjects => "500", filter => \@filterList } );
+      $self->getECSCM()
+      ->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 },
+        "getProperty", $cursorPath );
+    my $savedCursor = $success ? $xPath->findvalue('//value')->string_value : "";
+    my ( $cursorTime, $cursorIds ) = split( / /, $savedCursor, 2 );
+    $cursorTime = "" unless ( defined $cursorTime );
+    my %seen = map { $_ => 1 } split( /,/, $cursorIds || "" );
+
+    my $start   = Time::HiRes::time();
+    my $deleted = 0;
+    while (1) {
+        if ( $budget > 0 && Time::HiRes::time() - $start >= $budget ) {
+            print "Cleanup stopped after $budget seconds, "
+              . "the next run carries on from there\n";
+            last;
+        }
 
-    # Loop over all returned jobs
-    my $nodeset = $xPath->find('//job');
-    foreach my $node ( $nodeset->get_nodelist ) {
+        my @filter = @filterList;
+        if ( length $cursorTime ) {
+            push(
+                @filter,
+                {
+                    "propertyName" => "createTime",
+                    "operator"     => "greaterOrEqual",
+                    "operand1"     => "$cursorTime"
+                }
+            );
+        }
 
-        #  Find the workspaces (there can be more than one if some steps
-        #  were configured to use a different workspace
-        my $jobId   = $xPath->findvalue( 'jobId',   $node );
-        my $jobName = $xPath->findvalue( 'jobName', $node );
+        # The jobs already seen come first; read enough for a full chunk
+        # of new ones
+        my $count = $::gSentryCleanupChunkSize + scalar keys %seen;
         my ( $success, $xPath ) =
-          $self->getECSCM()
-          ->InvokeCommander( { SuppressLog => 1 }, "getJobInfo", $jobId );
-        my $wsNodeset = $xPath->find('//job/workspace');
-        foreach my $wsNode ( $wsNodeset->get_nodelist ) {
+          $self->getECSCM()->InvokeCommander(
+            { SuppressLog => 1 },
+            "findObjects", "job",
+            {
+                numObjects => $count,
+                maxIds     => $count,
+                filter     => \@filter,
+                sort => [ { propertyName => "createTime", order => "ascending" } ]
+            }
+          );
+        last unless ($success);
+
+        my @found = $xPath->findnodes('//response/object/job');
+        my @jobs =
+          grep { !$seen{ $_->findvalue('jobId')->string_value } } @found;
+        if ( scalar @jobs ) {
+            my %deletedIds =
+              map { $_ => 1 } $self->CleanupJobs( \@jobs, $parallelism );
+            $deleted += scalar keys %deletedIds;
+
+            # Move the cursor past the jobs that are gone, up to the first
+            # one that could not be deleted
+            my $failed = 0;
+            foreach my $job (@jobs) {
+                my $jobId = $job->findvalue('jobId')->string_value;
+                if ( !$deletedIds{$jobId} ) {
+                    $failed = 1;
+                    last;
+                }
+                my $createTime = $job->findvalue('createTime')->string_value;
+                if ( $createTime ne $cursorTime ) {
+                    $cursorTime = $createTime;
+                    %seen       = ();
+                }
+                $seen{$jobId} = 1;
+            }
+
+            # The next run tries the failed job again
+            if ($failed) {
+                print "Cleanup stopped at a job that could not be deleted, "
+                  . "the next run tries again from there\n";
+                last;
+            }
+        }
+
+        # Caught up: the next run starts over with the oldest job
+        if ( scalar @jobs < $::gSentryCleanupChunkSize ) {
+            $cursorTime = "";
+            %seen       = ();
+            last;
+        }
+    }
+
+    my $cursor =
+      length $cursorTime
+      ? join( " ", $cursorTime, join( ",", sort keys %seen ) )
+      : "";
+    $cursor =~ s/ $//;
+    if ( $cursor ne $savedCursor ) {
+        if ( length $cursor ) {
+            $self->getCmdr()->setProperty( $cursorPath, $cursor );
+        }
+        else {
+            $self->getECSCM()
+              ->InvokeCommander( { SuppressLog => 1, IgnoreError => 1 },
+                "deleteProperty", $cursorPath );
+        }
+    }
+    $self->CountMetric( "deleted", $deleted );
+    printf( "Deleted %d jobs in %.3fs\n", $deleted, Time::HiRes::time() - $start );
+}
+
+#-------------------------------------------------------------------------
+#  GetCleanupSettings
+#
+#  Read how long the cleanup may run (CleanupBudgetSeconds) and how many
+#  workspaces it deletes at once (CleanupParallelism) from the global
+#  Sentry settings.
+#
+#   Returns:
+#       budget in seconds (0 for no limit), parallelism
+#
+#-------------------------------------------------------------------------
+sub GetCleanupSettings {
+    my $self = shift;
+
+    my %settings = $self->GetSentrySettings();
+
+    my $budget = $settings{CleanupBudgetSeconds};
+    $budget = $::gSentryCleanupBudget
+      unless ( defined $budget && $budget =~ /^\d+$/ );
+
+    my $parallelism = $settings{CleanupParallelism};
+    $parallelism = $::gSentryCleanupParallelism
+      unless ( defined $parallelism && $parallelism =~ /^\d+$/ );
+    $parallelism = 1 if ( $parallelism < 1 );
+
+    return ( $budget, $parallelism );
+}
+
+#-------------------------------------------------------------------------
+#  CleanupJobs
+#
+#  Delete a batch of jobs and their workspaces. The workspaces of all
+#  jobs are read with one request and removed in child processes,
+#  parallelism at a time; the jobs are then deleted with one request.
+#
+#   Params:
+#       jobs                - ref to a list of job nodes from findObjects
+#       parallelism         - how many children delete workspaces at once
+#
+#   Returns:
+#       The ids of the jobs that were deleted
+#
+#-------------------------------------------------------------------------
+sub CleanupJobs {
+    my ( $self, $jobs, $parallelism ) = @_;
+
+    # Check for the OS Type
+    my $osIsWindows = $^O =~ /MSWin/;
+
+    #  Find the workspaces (there can be more than one if some steps
+    #  were configured to use a different workspace
+    my $batch = $self->getCmdr()->newBatch();
+    my @infoIds =
+      map { $batch->getJobInfo( $_->findvalue('jobId')->string_value ) } @$jobs;
+    eval { $batch->submit(); };
+    if ($@) {
+        print "Could not read the workspaces of jobs: $@";
+        return ();
+    }
 
+    my @workspaces;
+    foreach my $infoId (@infoIds) {
+        foreach my $wsNode ( $batch->findnodes( $infoId, 'job/workspace' ) ) {
             my $workspace;
             if ($osIsWindows) {
-                $workspace = $xPath->findvalue( './winUNC', $wsNode );
+                $workspace = $wsNode->findvalue('winUNC')->string_value;
                 $workspace =~ s/\/\//\\\\/g;
             }
             else {
-                $workspace = $xPath->findvalue( './unix', $wsNode );
+                $workspace = $wsNode->findvalue('unix')->string_value;
             }
 
             # Delete the workspace (after checking its name as a sanity test)
             # look for "job_[nnn|UUID]"
             if ( $workspace =~ /[-_][\d]+$|[-_][0-9a-f]{8}(?:-[0-9a-f]{4}){4}[0-9a-f]{8}$/ ) {
-                use File::Path;
+                push( @workspaces, $workspace );
+            }
+        }
+    }
 
-                rmtree( [$workspace] ) unless ( $ENV{SENTRY_SIMULATE_DELETE} );
+    # Split the workspaces among the children
+    my @groups = ();
+    my $count  = $parallelism;
+    $count = 1 if ($osIsWindows);
+    for my $i ( 0 .. $#workspaces ) {
+        push( @{ $groups[ $i % $count ] }, $workspaces[$i] );
+    }
+    my @removals = map {
+        my $group = $_;
+        sub {
+            File::Path::rmtree($group) unless ( $ENV{SENTRY_SIMULATE_DELETE} );
+            return scalar @$group;
+        }
+    } @groups;
+    my @results;
+    if ( scalar @removals > 1 ) {
+        @results = $self->RunInParallel( \@removals, $parallelism, 0 );
+    }
+    else {
+        @results = map { $self->RunTimed( 0, $_ ) } @removals;
+    }
+    for my $i ( 0 .. $#groups ) {
+        foreach my $workspace ( @{ $groups[$i] } ) {
+            if ( $results[$i]{error} ) {
+                print "Could not delete workspace $workspace: "
+                  . "$results[$i]{error}";
+            }
+            else {
                 print "Deleted workspace - $workspace\n";
             }
         }
+    }
 
-        # Delete the job
-
-        my ( $success, $xPath ) =
-          $self->getECSCM()
-          ->InvokeCommander( { SuppressLog => 1 }, "deleteJob", $jobId );
-        print "Deleted job - $jobName\n";
+    # Delete the jobs, and check the result of each request: some of them
+    # may fail while the others go through
+    $batch = $self->getCmdr()->newBatch();
+    my @requestIds =
+      map { $batch->deleteJob( $_->findvalue('jobId')->string_value ) } @$jobs;
+    my $result = eval { $batch->submit() };
+    if ( !defined $result ) {
+        print "Could not delete jobs: " . ( $@ || "no response\n" );
+        return ();
+    }
+    my @deleted;
+    for my $i ( 0 .. $#$jobs ) {
+        my $jobName = $jobs->[$i]->findvalue('jobName')->string_value;
+        if ( $result->exists("//response[\@requestId='$requestIds[$i]']") ) {
+            print "Deleted job - $jobName\n";
+            push( @deleted, $jobs->[$i]->findvalue('jobId')->string_value );
+        }
+        else {
+            print "Could not delete job - $jobName: "
+              . $result->findvalue("//error[\@requestId='$requestIds[$i]']/message")
+              . "\n";
+        }
     }
+    return @deleted;
 }
 
 #-------------------------------------------------------------------------
@@ -1170,8 +2953,510 @@ sub ECSentryGetProjectAndScheduleNames {
 
 }
 
+#-------------------------------------------------------------------------
+#   runPhase
+#
+#   Run a step of the sentry job (findSentrySchedules, checkforRunningJobs,
+#   checkforNewSources, executeProcedures or cleanup), timing it and
+#   saving what it counted with CountMetric and ObserveProbe
+#
+#   Params:
+#       phase   - the name of the method to run
+#-------------------------------------------------------------------------
+sub runPhase {
+    my ( $self, $phase ) = @_;
+
+    $self->StartPhase($phase);
+    my @returned = eval { $self->$phase() };
+    my $error = $@;
+    $self->EndPhase( $error ? "error" : "ok" );
+    die $error if ($error);
+    return @returned;
+}
+
+#-------------------------------------------------------------------------
+#   StartPhase
+#
+#   Start timing and counting a phase
+#-------------------------------------------------------------------------
+sub StartPhase {
+    my ( $self, $phase ) = @_;
+
+    $self->{_phase} = {
+        name     => $phase,
+        start    => Time::HiRes::time(),
+        counters => {},
+        probes   => []
+    };
+}
+
+#-------------------------------------------------------------------------
+#   CountMetric
+#
+#   Add to a counter of the current phase
+#
+#   Params:
+#       name    - e.g. probes
+#       count   - how much to add, 1 if not given
+#-------------------------------------------------------------------------
+sub CountMetric {
+    my ( $self, $name, $count ) = @_;
+
+    return unless ( defined $self->{_phase} );
+    $self->{_phase}{counters}{$name} += defined $count ? $count : 1;
+}
+
+#-------------------------------------------------------------------------
+#   ObserveProbe
+#
+#   Record how long a getSCMTag call took
+#
+#   Params:
+#       name    - the schedule the call was made for, project:schedule
+#       seconds
+#-------------------------------------------------------------------------
+sub ObserveProbe {
+    my ( $self, $name, $seconds ) = @_;
+
+    return unless ( defined $self->{_phase} );
+    push( @{ $self->{_phase}{probes} }, [ $name, $seconds ] );
+}
+
+#-------------------------------------------------------------------------
+#   EndPhase
+#
+#   Save the time and the counters of the current phase. Every step writes
+#   its own phase to /myJob/sentryPhaseMetrics without reading anything.
+#   The Cleanup step, which always runs last, puts the phases of all steps
+#   together: as JSON in /myJob/sentryMetrics and in Prometheus text
+#   format in sentryMetrics.prom in the job workspace. getSCMTag calls go
+#   into a histogram, and the slowest of them are kept with the names of
+#   their schedules.
+#
+#   Params:
+#       status  - ok or error
+#-------------------------------------------------------------------------
+
+# the upper bounds of the getSCMTag histogram buckets, in seconds
+@::gSentryProbeBuckets = ( 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 );
+
+# how many of the slowest getSCMTag calls are kept
+$::gSentrySlowProbes = 10;
+
+$::gSentryMetricsFile = "sentryMetrics.prom";
+
+# the step that puts the metrics of all steps together
+$::gSentryMetricsLastPhase = "cleanup";
+
+sub EndPhase {
+    my ( $self, $status ) = @_;
+
+    my $phase = delete $self->{_phase};
+    return unless ( defined $phase );
+
+    my $metrics = {
+        seconds =>
+          0 + sprintf( "%.3f", Time::HiRes::time() - $phase->{start} ),
+        status   => $status,
+        counters => $phase->{counters}
+    };
+    $metrics->{getSCMTag} = $self->MergeProbes( undef, $phase->{probes} )
+      if ( scalar @{ $phase->{probes} } );
+    $self->{_phaseMetrics}{ $phase->{name} } = $metrics;
+
+    my $path = "/jobs/$ENV{COMMANDER_JOBID}";
+    if ( $phase->{name} ne $::gSentryMetricsLastPhase ) {
+        $self->getCmdr()->setProperty( "$path/sentryPhaseMetrics/$phase->{name}",
+            JSON::encode_json($metrics) );
+        return;
+    }
+
+    # Read the phases of the earlier steps, which ran in other processes
+    my ( $success, $xPath ) = $self->getECSCM()->InvokeCommander(
+        { SuppressLog => 1, IgnoreError => 1 },
+        "getProperties", { path => "$path/sentryPhaseMetrics" } );
+    if ($success) {
+        foreach my $node ( $xPath->findnodes('//response/propertySheet/property') ) {
+            my $name = $xPath->findvalue( 'propertyName', $node )->string_value;
+            next if ( exists $self->{_phaseMetrics}{$name} );
+            my $saved = eval {
+                JSON::decode_json( $xPath->findvalue( 'value', $node )->string_value );
+            };
+            $self->{_phaseMetrics}{$name} = $saved if ( ref $saved eq "HASH" );
+        }
+    }
+
+    my $job = { phases => {}, seconds => 0 };
+    foreach my $name ( keys %{ $self->{_phaseMetrics} } ) {
+        my %saved = %{ $self->{_phaseMetrics}{$name} };
+        my $histogram = delete $saved{getSCMTag};
+        $job->{phases}{$name} = \%saved;
+        $job->{seconds} += $saved{seconds};
+        $job->{getSCMTag} = $self->MergeProbes( $job->{getSCMTag}, [], $histogram )
+          if ( defined $histogram );
+    }
+    $job->{seconds} = 0 + sprintf( "%.3f", $job->{seconds} );
+
+    $self->getCmdr()->setProperty( "$path/sentryMetrics", JSON::encode_json($job) );
+    $self->WritePrometheusMetrics($job);
+}
+
+#-------------------------------------------------------------------------
+#   MergeProbes
+#
+#   Add getSCMTag calls, and the histogram of another phase, to a histogram
+#
+#   Params:
+#       histogram   - the histogram to add to, undef for a new one
+#       probes      - [ name, seconds ] of each call
+#       other       - a histogram to add, optional
+#
+#   Returns:
+#       the histogram
+#-------------------------------------------------------------------------
+sub MergeProbes {
+    my ( $self, $histogram, $probes, $other ) = @_;
+
+    $histogram ||= {
+        buckets => [ map { 0 } @::gSentryProbeBuckets ],
+        count   => 0,
+        sum     => 0,
+        slowest => []
+    };
+    my @slowest = @{ $histogram->{slowest} };
+    foreach my $probe (@$probes) {
+        my $seconds = $probe->[1];
+        for my $i ( 0 .. $#::gSentryProbeBuckets ) {
+            $histogram->{buckets}[$i]++
+              if ( $seconds <= $::gSentryProbeBuckets[$i] );
+        }
+        $histogram->{count}++;
+        $histogram->{sum} += $seconds;
+        push( @slowest, [ $probe->[0], 0 + sprintf( "%.3f", $seconds ) ] );
+    }
+    if ( defined $other ) {
+        for my $i ( 0 .. $#::gSentryProbeBuckets ) {
+            $histogram->{buckets}[$i] += $other->{buckets}[$i] || 0;
+        }
+        $histogram->{count} += $other->{count};
+        $histogram->{sum}   += $other->{sum};
+        push( @slowest, @{ $other->{slowest} } );
+    }
+    $histogram->{sum} = 0 + sprintf( "%.3f", $histogram->{sum} );
+
+    @slowest = sort { $b->[1] <=> $a->[1] } @slowest;
+    splice( @slowest, $::gSentrySlowProbes )
+      if ( scalar @slowest > $::gSentrySlowProbes );
+    $histogram->{slowest} = \@slowest;
+    return $histogram;
+}
+
+
+#-------------------------------------------------------------------------
+#   WritePrometheusMetrics
+#
+#   Write the metrics of the job in Prometheus text format to
+#   sentryMetrics.prom in the job workspace
+#
+#   Params:
+#       metrics - the metrics as saved by EndPhase
+#-------------------------------------------------------------------------
+sub WritePrometheusMetrics {
+    my ( $self, $metrics ) = @_;
+
+    my ( $sentryProjectName, $sentryScheduleName ) =
+      $self->ECSentryGetProjectAndScheduleNames();
+    my $label = sub {
+        my $value = shift;
+        $value =~ s/([\\"])/\\$1/g;
+        $value =~ s/\n/\\n/g;
+        return "\"$value\"";
+    };
+    my $sentry = "sentry=" . $label->("$sentryProjectName:$sentryScheduleName");
+
+    my @lines = ();
+    push( @lines,
+        "# HELP ecscm_sentry_cycle_seconds Time spent in the steps of the ElectricSentry job",
+        "# TYPE ecscm_sentry_cycle_seconds gauge",
+        "ecscm_sentry_cycle_seconds{$sentry} $metrics->{seconds}",
+        "# HELP ecscm_sentry_phase_seconds Time spent in a step of the ElectricSentry job",
+        "# TYPE ecscm_sentry_phase_seconds gauge" );
+    my @phases = sort keys %{ $metrics->{phases} };
+    foreach my $name (@phases) {
+        push( @lines,
+            "ecscm_sentry_phase_seconds{$sentry,phase=\"$name\"} "
+              . $metrics->{phases}{$name}{seconds} );
+    }
+    push( @lines,
+        "# HELP ecscm_sentry_phase_failed Whether a step of the ElectricSentry job failed",
+        "# TYPE ecscm_sentry_phase_failed gauge" );
+    foreach my $name (@phases) {
+        push( @lines,
+            "ecscm_sentry_phase_failed{$sentry,phase=\"$name\"} "
+              . ( $metrics->{phases}{$name}{status} eq "ok" ? 0 : 1 ) );
+    }
+    push( @lines,
+        "# HELP ecscm_sentry_phase_count What a step of the ElectricSentry job counted",
+        "# TYPE ecscm_sentry_phase_count gauge" );
+    foreach my $name (@phases) {
+        my $counters = $metrics->{phases}{$name}{counters};
+        foreach my $counter ( sort keys %$counters ) {
+            push( @lines,
+                "ecscm_sentry_phase_count{$sentry,phase=\"$name\","
+                  . "name=\"$counter\"} $counters->{$counter}" );
+        }
+    }
+
+    my $histogram = $metrics->{getSCMTag};
+    if ( defined $histogram ) {
+        push( @lines,
+            "# HELP ecscm_sentry_getscmtag_seconds Time of the getSCMTag calls of the ElectricSentry job",
+            "# TYPE ecscm_sentry_getscmtag_seconds histogram" );
+        for my $i ( 0 .. $#::gSentryProbeBuckets ) {
+            push( @lines,
+                "ecscm_sentry_getscmtag_seconds_bucket{$sentry,"
+                  . "le=\"$::gSentryProbeBuckets[$i]\"} "
+                  . ( $histogram->{buckets}[$i] || 0 ) );
+        }
+        push( @lines,
+            "ecscm_sentry_getscmtag_seconds_bucket{$sentry,le=\"+Inf\"} "
+              . $histogram->{count},
+            "ecscm_sentry_getscmtag_seconds_sum{$sentry} $histogram->{sum}",
+            "ecscm_sentry_getscmtag_seconds_count{$sentry} $histogram->{count}",
+            "# HELP ecscm_sentry_getscmtag_slowest_seconds The slowest getSCMTag calls of the ElectricSentry job",
+            "# TYPE ecscm_sentry_getscmtag_slowest_seconds gauge" );
+        foreach my $probe ( @{ $histogram->{slowest} } ) {
+            push( @lines,
+                "ecscm_sentry_getscmtag_slowest_seconds{$sentry,schedule="
+                  . $label->( $probe->[0] ) . "} $probe->[1]" );
+        }
+    }
+
+    # Replace the file in one go, so that a scraper never reads half of it
+    my $file = $::gSentryMetricsFile;
+    $file = File::Spec->catfile( $ENV{COMMANDER_WORKSPACE}, $file )
+      if ( $ENV{COMMANDER_WORKSPACE} );
+    if ( open( my $fh, ">", "$file.tmp" ) ) {
+        print $fh join( "\n", @lines ) . "\n";
+        close($fh);
+        rename( "$file.tmp", $file )
+          or print "Warning: could not write $file: $!\n";
+    }
+    else {
+        print "Warning: could not write $file.tmp: $!\n";
+    }
+}
+
+#-------------------------------------------------------------------------
+#   IsEventMode
+#
+#   Whether ElectricSentry runs in event mode, i.e. SentryMode is "event"
+#
+#   Params:
+#       mode    - the SentryMode setting, if it has been read already
+#-------------------------------------------------------------------------
+
+# how many event mode runs go by between polls of every schedule, unless
+# the EventPollCycles setting says otherwise
+$::gSentryEventPollCycles = 10;
+
+sub IsEventMode {
+    my ( $self, $mode ) = @_;
+
+    if ( !defined $self->{_sentryMode} ) {
+        if ( !defined $mode ) {
+            my ( $sentryProjectName, $sentryScheduleName ) =
+              $self->ECSentryGetProjectAndScheduleNames();
+            my $gCfg =
+              new ElectricSentry::GlobalCfg( $self->getCmdr(),
+                $sentryProjectName, $sentryScheduleName );
+            $mode = $gCfg->getSentryMode();
+        }
+        $self->{_sentryMode} = defined $mode ? $mode : "";
+    }
+    return $self->{_sentryMode} eq "event";
+}
+
+#-------------------------------------------------------------------------
+#   IsShardMode
+#
+#   Whether this sentry schedule shares the schedules with the other
+#   sentry schedules of its project, i.e. ShardMode is "auto"
+#
+#   Params:
+#       mode    - the ShardMode setting, if it has been read already
+#-------------------------------------------------------------------------
+sub IsShardMode {
+    my ( $self, $mode ) = @_;
+
+    if ( !defined $self->{_shardMode} ) {
+        if ( !defined $mode ) {
+            my %settings = $self->GetSentrySettings();
+            $mode = $settings{ShardMode};
+        }
+        $self->{_shardMode} = defined $mode ? $mode : "";
+    }
+    return $self->{_shardMode} eq "auto";
+}
+
+#-------------------------------------------------------------------------
+#   AcquireLease
+#
+#   Take the lease of this sentry schedule (ElectricSentry::Lease), so
+#   that one cycle at a time works on its schedules. A cycle that starts
+#   while the previous one holds the lease is skipped or, with
+#   OverlapMode "unclaimed", takes the guest slot and only looks at the
+#   schedules the previous one did not claim. The role is saved on the
+#   job for the later steps.
+#
+#   Returns:
+#       owner, guest or skip
+#-------------------------------------------------------------------------
+
+# how long a cycle holds its lease without renewing it, unless the
+# LeaseMinutes setting says otherwise
+$::gSentryLeaseMinutes = 15;
+
+sub AcquireLease {
+    my $self = shift;
+
+    my ( $sentryProjectName, $sentryScheduleName ) =
+      $self->ECSentryGetProjectAndScheduleNames();
+    my %settings = $self->GetSentrySettings();
+    my $jobId    = $ENV{COMMANDER_JOBID};
+    my $lease =
+      new ElectricSentry::Lease( $self->getCmdr(), $sentryProjectName,
+        $sentryScheduleName );
+
+    my @counters = ("cycles");
+    my $role     = "owner";
+    my $holder   = "";
+    my ( $result, $owner ) =
+      $lease->acquire( "owner", $jobId, $self->GetLeaseSeconds() );
+    if ( $result eq "takeover" ) {
+        print "Took over a lease that was not renewed in time\n";
+        push( @counters, "takeovers" );
+    }
+    elsif ( $result eq "" ) {
+        push( @counters, "overlapped" );
+        $role   = "skip";
+        $holder = defined $owner ? $owner : "";
+        if ( defined $settings{OverlapMode}
+            && lc( $settings{OverlapMode} ) eq "unclaimed" )
+        {
+            my ($guest) =
+              $lease->acquire( "guest", $jobId, $self->GetLeaseSeconds() );
+            $role = "guest" if ( $guest ne "" );
+        }
+        if ( $role eq "skip" ) {
+            push( @counters, "skipped" );
+            print "Sentry job $holder is still running, skipping this cycle\n";
+        }
+        else {
+            print "Sentry job $holder is still running, "
+              . "looking only at the schedules it did not claim\n";
+        }
+    }
+    $lease->count(@counters);
+
+    my $batch = $self->getCmdr()->newBatch();
+    $batch->setProperty( "/jobs/$jobId/sentryLease",       $role );
+    $batch->setProperty( "/jobs/$jobId/sentryLeaseHolder", $holder );
+    $batch->submit();
+
+    $self->{_leaseRole}    = $role;
+    $self->{_leaseHolder}  = $holder;
+    $self->{_leaseRenewed} = time();
+    return $role;
+}
+
+#-------------------------------------------------------------------------
+#   GetLeaseRole
+#
+#   The role AcquireLease gave this job, and the job that held the lease
+#   if it was not this one. A job without a role, e.g. one started
+#   before leases, is the owner.
+#-------------------------------------------------------------------------
+sub GetLeaseRole {
+    my $self = shift;
+
+    if ( !defined $self->{_leaseRole} ) {
+        my $jobId   = $ENV{COMMANDER_JOBID};
+        my $batch   = $self->getCmdr()->newBatch();
+        my $roleId  = $batch->getProperty("/jobs/$jobId/sentryLease");
+        my $ownerId = $batch->getProperty("/jobs/$jobId/sentryLeaseHolder");
+        $batch->submit();
+        my $role = $batch->findvalue( $roleId, 'property/value' );
+        $self->{_leaseRole}   = "$role" ne "" ? "$role" : "owner";
+        $self->{_leaseHolder} =
+          "" . $batch->findvalue( $ownerId, 'property/value' );
+    }
+    return ( $self->{_leaseRole}, $self->{_leaseHolder} );
+}
+
+#-------------------------------------------------------------------------
+#   RenewLease
+#
+#   Extend the lease this job holds, at most once a minute
+#-------------------------------------------------------------------------
+sub RenewLease {
+    my $self = shift;
+
+    my ($role) = $self->GetLeaseRole();
+    return if ( $role eq "skip" );
+    return
+      if ( defined $self->{_leaseRenewed}
+        && time() - $self->{_leaseRenewed} < 60 );
+
+    my ( $sentryProjectName, $sentryScheduleName ) =
+      $self->ECSentryGetProjectAndScheduleNames();
+    my $held =
+      new ElectricSentry::Lease( $self->getCmdr(), $sentryProjectName,
+        $sentryScheduleName )
+      ->renew( $role eq "guest" ? "guest" : "owner",
+        $ENV{COMMANDER_JOBID}, $self->GetLeaseSeconds() );
+    print "Warning: the lease of this cycle expired and was taken over "
+      . "by another sentry job\n"
+      unless ($held);
+    $self->{_leaseRenewed} = time();
+}
+
+#-------------------------------------------------------------------------
+#   ReleaseLease
+#
+#   Give up the lease this job holds
+#-------------------------------------------------------------------------
+sub ReleaseLease {
+    my $self = shift;
+
+    my ($role) = $self->GetLeaseRole();
+    return if ( $role eq "skip" );
+
+    my ( $sentryProjectName, $sentryScheduleName ) =
+      $self->ECSentryGetProjectAndScheduleNames();
+    new ElectricSentry::Lease( $self->getCmdr(), $sentryProjectName,
+        $sentryScheduleName )
+      ->release( $role eq "guest" ? "guest" : "owner", $ENV{COMMANDER_JOBID} );
+}
+
+#-------------------------------------------------------------------------
+#   GetLeaseSeconds
+#
+#   How long a lease is held without a renewal (LeaseMinutes)
+#-------------------------------------------------------------------------
+sub GetLeaseSeconds {
+    my $self = shift;
+
+    my %settings = $self->GetSentrySettings();
+    my $minutes  = $settings{LeaseMinutes};
+    $minutes = $::gSentryLeaseMinutes
+      unless ( defined $minutes && $minutes =~ /^\d+$/ && $minutes > 0 );
+    return $minutes * 60;
+}
+
 #-------------------------------------------------------------------------
 #   A private function used to maintain a set of schedules that are set up for Sentry
+#   The state is written when the step flushes the JobCfg store
 #
 #   Params:
 #       projectName
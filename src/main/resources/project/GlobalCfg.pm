@@ -46,6 +46,10 @@ sub set {
     my ($self, $setting, $name) = @_;
     return $self->setCol("ElectricSentrySettings", "$setting", "$name");
 }
+sub getAll {
+    my ($self) = @_;
+    return $self->getRow("ElectricSentrySettings");
+}
 
 
 ####################################################################
@@ -73,4 +77,283 @@ sub setSaveJobs {
     my ($self, $name) = @_;
     return $self->set("SaveJobs", "$name");
 }
+
+####################################################################
+# IndexCycle
+#    The number of runs since the schedule index was created
+####################################################################
+sub getIndexCycle {
+    my ($self) = @_;
+    return $self->get("IndexCycle");
+}
+sub setIndexCycle {
+    my ($self, $name) = @_;
+    return $self->set("IndexCycle", "$name");
+}
+
+####################################################################
+# IndexReconcileCycles
+#    How many runs go by between full scans of the schedules
+####################################################################
+sub getIndexReconcileCycles {
+    my ($self) = @_;
+    return $self->get("IndexReconcileCycles");
+}
+sub setIndexReconcileCycles {
+    my ($self, $name) = @_;
+    return $self->set("IndexReconcileCycles", "$name");
+}
+
+####################################################################
+# IndexWatermark
+#    The newest schedule modifyTime seen by this instance
+####################################################################
+sub getIndexWatermark {
+    my ($self) = @_;
+    return $self->get("IndexWatermark");
+}
+sub setIndexWatermark {
+    my ($self, $name) = @_;
+    return $self->set("IndexWatermark", "$name");
+}
+
+####################################################################
+# RebuildIndex
+#    Set to force a full scan on the next run
+####################################################################
+sub getRebuildIndex {
+    my ($self) = @_;
+    return $self->get("RebuildIndex");
+}
+sub setRebuildIndex {
+    my ($self, $name) = @_;
+    return $self->set("RebuildIndex", "$name");
+}
+
+####################################################################
+# NonDefaultProjects
+#    The projects monitored by other Sentry instances, one per line
+####################################################################
+sub getNonDefaultProjects {
+    my ($self) = @_;
+    return $self->get("NonDefaultProjects");
+}
+sub setNonDefaultProjects {
+    my ($self, $name) = @_;
+    return $self->set("NonDefaultProjects", "$name");
+}
+
+####################################################################
+# Parallelism
+#    How many schedules are checked for new sources at once
+####################################################################
+sub getParallelism {
+    my ($self) = @_;
+    return $self->get("SentryParallelism");
+}
+sub setParallelism {
+    my ($self, $name) = @_;
+    return $self->set("SentryParallelism", "$name");
+}
+
+####################################################################
+# CheckTimeout
+#    How many seconds checking one schedule may take
+####################################################################
+sub getCheckTimeout {
+    my ($self) = @_;
+    return $self->get("CheckTimeoutSeconds");
+}
+sub setCheckTimeout {
+    my ($self, $name) = @_;
+    return $self->set("CheckTimeoutSeconds", "$name");
+}
+
+####################################################################
+# CompactJobState
+#    Keep the schedule states of a sentry job in one JSON property
+####################################################################
+sub getCompactJobState {
+    my ($self) = @_;
+    return $self->get("CompactJobState");
+}
+sub setCompactJobState {
+    my ($self, $name) = @_;
+    return $self->set("CompactJobState", "$name");
+}
+
+####################################################################
+# SentryMode
+#    "event" to look only at the schedules in the work queue
+####################################################################
+sub getSentryMode {
+    my ($self) = @_;
+    return $self->get("SentryMode");
+}
+sub setSentryMode {
+    my ($self, $name) = @_;
+    return $self->set("SentryMode", "$name");
+}
+
+####################################################################
+# EventPollCycles
+#    How many event mode runs go by between polls of every schedule
+####################################################################
+sub getEventPollCycles {
+    my ($self) = @_;
+    return $self->get("EventPollCycles");
+}
+sub setEventPollCycles {
+    my ($self, $name) = @_;
+    return $self->set("EventPollCycles", "$name");
+}
+
+####################################################################
+# ProbeRetries
+#    How many times a failed getSCMTag probe is retried
+####################################################################
+sub getProbeRetries {
+    my ($self) = @_;
+    return $self->get("ProbeRetries");
+}
+sub setProbeRetries {
+    my ($self, $name) = @_;
+    return $self->set("ProbeRetries", "$name");
+}
+
+####################################################################
+# ProbeBackoffSeconds
+#    How long to wait before the first retry; each retry waits twice
+#    as long as the one before
+####################################################################
+sub getProbeBackoff {
+    my ($self) = @_;
+    return $self->get("ProbeBackoffSeconds");
+}
+sub setProbeBackoff {
+    my ($self, $name) = @_;
+    return $self->set("ProbeBackoffSeconds", "$name");
+}
+
+####################################################################
+# CircuitFailures
+#    How many failed probes in a row stop the probes of an SCM
+#    configuration
+####################################################################
+sub getCircuitFailures {
+    my ($self) = @_;
+    return $self->get("CircuitFailures");
+}
+sub setCircuitFailures {
+    my ($self, $name) = @_;
+    return $self->set("CircuitFailures", "$name");
+}
+
+####################################################################
+# CircuitOpenMinutes
+#    How long the probes of a failing SCM configuration are stopped
+####################################################################
+sub getCircuitOpenMinutes {
+    my ($self) = @_;
+    return $self->get("CircuitOpenMinutes");
+}
+sub setCircuitOpenMinutes {
+    my ($self, $name) = @_;
+    return $self->set("CircuitOpenMinutes", "$name");
+}
+
+####################################################################
+# CleanupBudgetSeconds
+#    How long the cleanup of old sentry jobs may run in one cycle
+####################################################################
+sub getCleanupBudget {
+    my ($self) = @_;
+    return $self->get("CleanupBudgetSeconds");
+}
+sub setCleanupBudget {
+    my ($self, $name) = @_;
+    return $self->set("CleanupBudgetSeconds", "$name");
+}
+
+####################################################################
+# CleanupParallelism
+#    How many workspaces of old sentry jobs are deleted at once
+####################################################################
+sub getCleanupParallelism {
+    my ($self) = @_;
+    return $self->get("CleanupParallelism");
+}
+sub setCleanupParallelism {
+    my ($self, $name) = @_;
+    return $self->set("CleanupParallelism", "$name");
+}
+
+####################################################################
+# ShardMode
+#    "auto" to share the CI schedules with the other sentry schedules
+#    of the project that are in shard mode
+####################################################################
+sub getShardMode {
+    my ($self) = @_;
+    return $self->get("ShardMode");
+}
+sub setShardMode {
+    my ($self, $name) = @_;
+    return $self->set("ShardMode", "$name");
+}
+
+####################################################################
+# ShardTimeoutMinutes
+#    How long a sentry schedule keeps its share without running
+####################################################################
+sub getShardTimeout {
+    my ($self) = @_;
+    return $self->get("ShardTimeoutMinutes");
+}
+sub setShardTimeout {
+    my ($self, $name) = @_;
+    return $self->set("ShardTimeoutMinutes", "$name");
+}
+
+####################################################################
+# LeaseMinutes
+#    How long a sentry cycle holds its lease without renewing it
+####################################################################
+sub getLeaseMinutes {
+    my ($self) = @_;
+    return $self->get("LeaseMinutes");
+}
+sub setLeaseMinutes {
+    my ($self, $name) = @_;
+    return $self->set("LeaseMinutes", "$name");
+}
+
+####################################################################
+# OverlapMode
+#    What a sentry cycle does while the previous one still runs:
+#    "skip", or "unclaimed" to look at the schedules the previous
+#    cycle did not claim
+####################################################################
+sub getOverlapMode {
+    my ($self) = @_;
+    return $self->get("OverlapMode");
+}
+sub setOverlapMode {
+    my ($self, $name) = @_;
+    return $self->set("OverlapMode", "$name");
+}
+
+####################################################################
+# PollMaxMinutes
+#    The longest a schedule without changes goes between probes,
+#    empty or 0 to probe every schedule on every run
+####################################################################
+sub getPollMaxMinutes {
+    my ($self) = @_;
+    return $self->get("PollMaxMinutes");
+}
+sub setPollMaxMinutes {
+    my ($self, $name) = @_;
+    return $self->set("PollMaxMinutes", "$name");
+}
 1;
@@ -5,10 +5,29 @@
 # This config models the Sentry settings saved on the sentry
 # job itself
 #
+# The states of all schedules, and the settings discovery found for
+# them, are read once per step into %::gSentryJobStore and changes
+# are kept there until flush is called. Each step of the sentry job
+# calls flush when it is done.
+#
+# A job either keeps one property per schedule
+#   /jobs/#/SentrySchedules/proj/sched
+#   /jobs/#/SentryScheduleSettings/proj/sched/setting
+# or, if it was started with compact state, one JSON property
+#   /jobs/#/SentryState
+#
 ####################################################################
 package ElectricSentry::JobCfg;
 @ISA = (ElectricCommander::PropDB);
 require ElectricCommander::PropDB;
+use JSON;
+
+# per job: { states => {proj}{sched}, settings => {proj}{sched}{setting},
+#           dirty => {proj}{sched}, compact }
+%::gSentryJobStore = ();
+
+# how many properties are written with one batch request
+$::gSentryJobFlushChunkSize = 500;
 
 
 ####################################################################
@@ -29,8 +48,10 @@ sub new {
     my $proj  = shift;
     my $sched = shift;
 
-    # set the database 
+    # set the database
     my($self) = ElectricCommander::PropDB->new($cmdr,"/jobs/$jobid/SentrySchedules");
+    $self->{_cmdr} = $cmdr;
+    $self->{_jobid} = $jobid;
     $self->{_proj} = $proj;
     $self->{_sched} = $sched;
     bless ($self, $class);
@@ -42,12 +63,16 @@ sub new {
 ####################################################################
 sub get {
     my ($self, $setting) = @_;
-    
-    return $self->getCol($self->{_proj}, "$setting");
+
+    my $store = $self->load();
+    return $store->{states}{$self->{_proj}}{"$setting"};
 }
 sub set {
     my ($self, $setting, $name) = @_;
-    return $self->setCol($self->{_proj}, "$setting", "$name");
+
+    my $store = $self->load();
+    $store->{states}{$self->{_proj}}{"$setting"} = "$name";
+    $store->{dirty}{$self->{_proj}}{"$setting"} = 1;
 }
 
 
@@ -64,6 +89,25 @@ sub setState {
     return $self->set($self->{_sched}, "$state");
 }
 
+####################################################################
+# Setting
+#    A setting of the schedule found during discovery, e.g.
+#    runDuplicates
+####################################################################
+sub getSetting {
+    my ($self, $setting) = @_;
+
+    my $store = $self->load();
+    return $store->{settings}{$self->{_proj}}{$self->{_sched}}{"$setting"};
+}
+sub setSetting {
+    my ($self, $setting, $value) = @_;
+
+    my $store = $self->load();
+    $store->{settings}{$self->{_proj}}{$self->{_sched}}{"$setting"} = "$value";
+    $store->{dirty}{$self->{_proj}}{$self->{_sched}} = 1;
+}
+
 ####################################################################
 # getAllSchedules
 #    Load a hash with all of the schedules stored
@@ -72,22 +116,135 @@ sub setState {
 sub getAllSchedules() {
     my $self = shift;
     my %ret;
-    
-    # get all projects (row in table)
-    my %projs = $self->getRows();
+
+    my $store = $self->load();
     my $count=1;
     # for each project
-    foreach my $proj (sort keys %projs) {
-        # get all schedules (cell)
-        my %scheds = $self->getRow("$proj");
-        foreach my $sched (sort keys %scheds) {
+    foreach my $proj (sort keys %{$store->{states}}) {
+        my $scheds = $store->{states}{$proj};
+        foreach my $sched (sort keys %$scheds) {
             # store value of proj/sched pair
             $ret{$count}{project}=$proj;
             $ret{$count}{schedule}=$sched;
-            $ret{$count}{value}=$scheds{$sched};
+            $ret{$count}{value}=$scheds->{$sched};
+            $ret{$count}{settings}=$store->{settings}{$proj}{$sched} || {};
             $count++;
         }
     }
     return %ret;
 }
+
+####################################################################
+# setCompact
+#    Keep the states of this job in one JSON property. Only takes
+#    effect before the first flush of the job.
+####################################################################
+sub setCompact {
+    my ($self, $compact) = @_;
+
+    my $store = $self->load();
+    $store->{compact} = $compact ? 1 : 0;
+}
+
+####################################################################
+# load
+#    Read the states of all schedules with one batch request,
+#    unless this step has read them already
+####################################################################
+sub load {
+    my ($self) = @_;
+
+    my $store = $::gSentryJobStore{$self->{_jobid}};
+    return $store if (defined $store);
+
+    $store = { states => {}, settings => {}, dirty => {}, compact => 0 };
+    $::gSentryJobStore{$self->{_jobid}} = $store;
+
+    my $batch = $self->{_cmdr}->newBatch();
+    my $compactId = $batch->getProperty("/jobs/$self->{_jobid}/SentryState");
+    my $sheetId = $batch->getProperties(
+        { path => "/jobs/$self->{_jobid}/SentrySchedules", recurse => 1 });
+    my $settingsId = $batch->getProperties(
+        { path => "/jobs/$self->{_jobid}/SentryScheduleSettings", recurse => 1 });
+    $batch->submit();
+
+    my $json = $batch->findvalue($compactId, 'property/value');
+    if ("$json" ne "") {
+        $store->{compact} = 1;
+        my $saved = eval { decode_json("$json") };
+        if (ref $saved eq "HASH") {
+            $store->{states} = $saved->{states} || {};
+            $store->{settings} = $saved->{settings} || {};
+        }
+        return $store;
+    }
+
+    foreach my $projNode ($batch->findnodes($sheetId, 'propertySheet/property')) {
+        my $proj = $projNode->findvalue('propertyName');
+        foreach my $schedNode ($projNode->findnodes('propertySheet/property')) {
+            my $sched = $schedNode->findvalue('propertyName');
+            $store->{states}{"$proj"}{"$sched"} =
+                $schedNode->findvalue('value')->string_value;
+        }
+    }
+    foreach my $projNode ($batch->findnodes($settingsId, 'propertySheet/property')) {
+        my $proj = $projNode->findvalue('propertyName');
+        foreach my $schedNode ($projNode->findnodes('propertySheet/property')) {
+            my $sched = $schedNode->findvalue('propertyName');
+            foreach my $settingNode ($schedNode->findnodes('propertySheet/property')) {
+                my $setting = $settingNode->findvalue('propertyName');
+                $store->{settings}{"$proj"}{"$sched"}{"$setting"} =
+                    $settingNode->findvalue('value')->string_value;
+            }
+        }
+    }
+    return $store;
+}
+
+####################################################################
+# flush
+#    Write the states and settings changed since the last flush
+#
+# Returns
+#    the number of requests made
+####################################################################
+sub flush {
+    my ($self) = @_;
+
+    my $store = $self->load();
+    return 0 unless (scalar keys %{$store->{dirty}});
+
+    my $requests = 0;
+    if ($store->{compact}) {
+        $self->{_cmdr}->setProperty("/jobs/$self->{_jobid}/SentryState",
+            encode_json({ states => $store->{states},
+                          settings => $store->{settings} }));
+        $requests++;
+    }
+    else {
+        my @paths;
+        foreach my $proj (sort keys %{$store->{dirty}}) {
+            foreach my $sched (sort keys %{$store->{dirty}{$proj}}) {
+                push(@paths, [ "/jobs/$self->{_jobid}/SentrySchedules/$proj/$sched",
+                    $store->{states}{$proj}{$sched} ])
+                    if (defined $store->{states}{$proj}{$sched});
+                my $settings = $store->{settings}{$proj}{$sched} || {};
+                foreach my $setting (sort keys %$settings) {
+                    push(@paths, [ "/jobs/$self->{_jobid}/SentryScheduleSettings/$proj/$sched/$setting",
+                        $settings->{$setting} ]);
+                }
+            }
+        }
+        while (scalar @paths) {
+            my $batch = $self->{_cmdr}->newBatch();
+            foreach my $path (splice(@paths, 0, $::gSentryJobFlushChunkSize)) {
+                $batch->setProperty($path->[0], $path->[1]);
+            }
+            $batch->submit();
+            $requests++;
+        }
+    }
+    $store->{dirty} = {};
+    return $requests;
+}
 1;
@@ -0,0 +1,230 @@
+####################################################################
+#
+# ElectricSentry::Lease
+#
+# The leases that keep the cycles of a sentry schedule (or, in
+# shard mode, of a shard) from working on the same schedules at
+# the same time.
+#
+#   /server/ECSCM/sentryLease/<sentryProj>/<sentrySched>/<slot>
+#
+# A slot holds "<jobId> <expires>". The "owner" slot is held by the
+# cycle that works on all schedules; the "guest" slot by a cycle that
+# started while the owner was still running and only works on the
+# schedules the owner did not claim. A slot is taken with
+# createProperty, which fails if another job holds it, and renewed
+# by its job as it goes. A slot whose job stopped renewing it can be
+# taken over once it expires. A takeover creates
+# takeovers/<slot>-<jobId>-<expires> for the lease it replaces in the
+# same transaction, so of the jobs that found the same expired lease
+# only one takes it over.
+#
+# The counts of cycles, overlapping cycles, skipped cycles and
+# takeovers are kept next to the slots, in stats/<counter>.
+#
+####################################################################
+package ElectricSentry::Lease;
+
+$::gSentryLeasePath = "/server/ECSCM/sentryLease";
+
+####################################################################
+# Object constructor for ElectricSentry::Lease
+#
+# Inputs
+#   cmdr         = a previously initialized ElectricCommander handle
+#   sentryProj   = The sentry project
+#            i.e. Electric Cloud
+#   sentrySched  = The sentry schedule
+#            i.e. SentryMonitor
+####################################################################
+sub new {
+    my ($class, $cmdr, $sentryProj, $sentrySched) = @_;
+
+    my $self = {
+        _cmdr => $cmdr,
+        _path => "$::gSentryLeasePath/$sentryProj/$sentrySched",
+    };
+    bless ($self, $class);
+    return $self;
+}
+
+sub getCmdr {
+    my ($self) = @_;
+    return $self->{_cmdr};
+}
+
+####################################################################
+# holder
+#    The job that holds a slot
+#
+# Returns
+#    jobId, expires (seconds since the epoch), or nothing if the
+#    slot is free
+####################################################################
+sub holder {
+    my ($self, $slot) = @_;
+
+    my $xPath = $self->getCmdr()->getProperty("$self->{_path}/$slot");
+    return () if (!defined $xPath || $xPath->findvalue('//error/code') ne "");
+    my ($jobId, $expires) =
+        split(" ", $xPath->findvalue('//value')->string_value);
+    return () unless (defined $jobId && $jobId ne "");
+    return ($jobId, defined $expires ? $expires : 0);
+}
+
+####################################################################
+# acquire
+#    Take a slot for a job, unless another job holds it and has
+#    renewed it in time
+#
+# Inputs
+#   slot      = owner or guest
+#   jobId     = the job taking the slot
+#   seconds   = how long the slot is held without a renewal
+#
+# Returns
+#    result   - "acquired", "held" if the job holds it already,
+#               "takeover" if it expired, or "" if it is taken
+#    holder   - the job that holds the slot
+####################################################################
+sub acquire {
+    my ($self, $slot, $jobId, $seconds) = @_;
+
+    return ("acquired", $jobId) if ($self->create($slot, $jobId, $seconds));
+
+    my ($holder, $expires) = $self->holder($slot);
+    if (defined $holder && $holder eq $jobId) {
+        $self->renew($slot, $jobId, $seconds);
+        return ("held", $jobId);
+    }
+    if (!defined $holder) {
+
+        # Released since create failed
+        return ("acquired", $jobId) if ($self->create($slot, $jobId, $seconds));
+        ($holder) = $self->holder($slot);
+    }
+    elsif ($expires < time()) {
+        return ("takeover", $jobId)
+            if ($self->takeover($slot, $holder, $expires, $jobId, $seconds));
+        ($holder) = $self->holder($slot);
+    }
+    return ("", $holder);
+}
+
+####################################################################
+# takeover
+#    Replace an expired lease. The marker for the expired lease, the
+#    delete and the create run in one transaction, which fails as a
+#    whole if another job took over the same lease first.
+#
+# Inputs
+#   slot      = owner or guest
+#   holder    = the job whose lease expired
+#   expires   = when it expired, as read from the slot
+#   jobId     = the job taking the slot
+#   seconds   = how long the slot is held without a renewal
+#
+# Returns
+#    1 if the job now holds the slot
+####################################################################
+sub takeover {
+    my ($self, $slot, $holder, $expires, $jobId, $seconds) = @_;
+
+    my $batch = $self->getCmdr()->newBatch("single");
+    $batch->createProperty("$self->{_path}/takeovers/$slot-$holder-$expires",
+        { value => $jobId });
+    $batch->deleteProperty("$self->{_path}/$slot");
+    $batch->createProperty("$self->{_path}/$slot",
+        { value => "$jobId " . (time() + $seconds) });
+    eval { $batch->submit(); };
+
+    my ($current) = $self->holder($slot);
+    return 0 unless (defined $current && $current eq $jobId);
+    $self->prune();
+    return 1;
+}
+
+####################################################################
+# prune
+#    Drop the takeover markers of leases that expired more than a
+#    day ago; no job still acts on those
+####################################################################
+sub prune {
+    my ($self) = @_;
+
+    my $xPath = $self->getCmdr()->getProperties(
+        { path => "$self->{_path}/takeovers" });
+    return if (!defined $xPath || $xPath->findvalue('//error/code') ne "");
+
+    my @old;
+    foreach my $node ($xPath->findnodes('//propertySheet/property/propertyName')) {
+        my $name = $node->string_value;
+        push(@old, $name)
+            if ($name =~ /-(\d+)$/ && $1 < time() - 86400);
+    }
+    return unless (scalar @old);
+    my $batch = $self->getCmdr()->newBatch();
+    foreach my $name (@old) {
+        $batch->deleteProperty("$self->{_path}/takeovers/$name");
+    }
+    $batch->submit();
+}
+
+####################################################################
+# create
+#    Create a slot, failing if it exists
+####################################################################
+sub create {
+    my ($self, $slot, $jobId, $seconds) = @_;
+
+    my $xPath = $self->getCmdr()->createProperty("$self->{_path}/$slot",
+        { value => "$jobId " . (time() + $seconds) });
+    return (defined $xPath && $xPath->findvalue('//error/code') eq "");
+}
+
+####################################################################
+# renew
+#    Extend the slot held by a job, unless another job took it over
+#
+# Returns
+#    1 if the job still holds the slot
+####################################################################
+sub renew {
+    my ($self, $slot, $jobId, $seconds) = @_;
+
+    my ($holder) = $self->holder($slot);
+    return 0 unless (defined $holder && $holder eq $jobId);
+    $self->getCmdr()->setProperty("$self->{_path}/$slot",
+        "$jobId " . (time() + $seconds));
+    return 1;
+}
+
+####################################################################
+# release
+#    Free a slot, if the job still holds it
+####################################################################
+sub release {
+    my ($self, $slot, $jobId) = @_;
+
+    my ($holder) = $self->holder($slot);
+    return unless (defined $holder && $holder eq $jobId);
+    $self->getCmdr()->deleteProperty("$self->{_path}/$slot");
+}
+
+####################################################################
+# count
+#    Add to the cycle counters with one request
+#
+# Inputs
+#   counters  = list of counter names, e.g. cycles, overlapped
+####################################################################
+sub count {
+    my ($self, @counters) = @_;
+
+    my $batch = $self->getCmdr()->newBatch();
+    foreach my $counter (@counters) {
+        $batch->incrementProperty("$self->{_path}/stats/$counter", 1);
+    }
+    $batch->submit();
+}
+1;
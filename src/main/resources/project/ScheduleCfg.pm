@@ -29,6 +29,32 @@ sub new {
     my($self) = ElectricCommander::PropDB->new($cmdr,"/projects/$sentryProj/schedules/$sentrySched/$proj");
     $self->{_sched} = $sched;
     $self->{_proj}  = $proj;
+    $self->{_path}  = "/projects/$sentryProj/schedules/$sentrySched/$proj/$sched";
+
+    bless ($self, $class);
+    return $self;
+}
+
+####################################################################
+# Object constructor for the settings of a schedule that the sentry
+# schedules of a project share in shard mode, so that a schedule
+# keeps its state when it moves to another sentry schedule
+#
+# Inputs
+#   cmdr        = a previously initialized ElectricCommander handle
+#   sentryProj  = The sentry project
+#        i.e. Electric Cloud
+#   proj        = a project that holds the sched to run
+#   sched       = the sched to run for this trigger
+####################################################################
+sub newShared {
+    my ($class, $cmdr, $sentryProj, $proj, $sched) = @_;
+
+    # set the database 
+    my($self) = ElectricCommander::PropDB->new($cmdr,"/projects/$sentryProj/ElectricSentryShards/$proj");
+    $self->{_sched} = $sched;
+    $self->{_proj}  = $proj;
+    $self->{_path}  = "/projects/$sentryProj/ElectricSentryShards/$proj/$sched";
 
     bless ($self, $class);
     return $self;
@@ -46,6 +72,27 @@ sub set {
     my ($self, $setting, $name) = @_;
     return $self->setCol($self->{_sched}, "$setting", "$name");
 }
+sub getAll {
+    my ($self) = @_;
+    return $self->getRow($self->{_sched});
+}
+
+####################################################################
+# setInBatch
+#    Add the writes of some settings to a batch, so that the settings
+#    of many schedules are saved with one request
+#
+# Inputs
+#   batch     = a batch from newBatch
+#   values    = hash of setting => value
+####################################################################
+sub setInBatch {
+    my ($self, $batch, %values) = @_;
+
+    foreach my $setting (sort keys %values) {
+        $batch->setProperty("$self->{_path}/$setting", "$values{$setting}");
+    }
+}
 
 
 
@@ -62,4 +109,44 @@ sub setLastAttempted {
     return $self->set("LastAttemptedSnapshot", "$name");
 }
 
+####################################################################
+# LastChanged
+#    When a probe last found new sources, in seconds since the epoch
+####################################################################
+sub getLastChanged {
+    my ($self) = @_;
+    return $self->get("LastChanged");
+}
+sub setLastChanged {
+    my ($self, $name) = @_;
+    return $self->set("LastChanged", "$name");
+}
+
+####################################################################
+# LastProbed
+#    When the SCM system was last asked about the schedule, in
+#    seconds since the epoch
+####################################################################
+sub getLastProbed {
+    my ($self) = @_;
+    return $self->get("LastProbed");
+}
+sub setLastProbed {
+    my ($self, $name) = @_;
+    return $self->set("LastProbed", "$name");
+}
+
+####################################################################
+# HitRate
+#    The share of recent probes that found new sources
+####################################################################
+sub getHitRate {
+    my ($self) = @_;
+    return $self->get("HitRate");
+}
+sub setHitRate {
+    my ($self, $name) = @_;
+    return $self->set("HitRate", "$name");
+}
+
 1;
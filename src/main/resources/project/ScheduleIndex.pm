@@ -0,0 +1,141 @@
+####################################################################
+#
+# ElectricSentry::ScheduleIndex
+#
+# An index of the schedules that are set up for Sentry, kept in
+# a property sheet so that ElectricSentry does not have to scan
+# every schedule on the server on every run.
+#
+#   /server/ECSCM/sentryScheduleIndex/schedules/<proj>/<sched>
+#
+# Each entry holds a copy of the settings Sentry needs from the
+# schedule's ec_customEditorData. Entries are written by the
+# ElectricSentry procedure as it discovers schedules and by the
+# new CI schedule form; ElectricSentry rebuilds them periodically.
+#
+####################################################################
+package ElectricSentry::ScheduleIndex;
+
+$::gSentryIndexPath = "/server/ECSCM/sentryScheduleIndex";
+
+# the settings copied from ec_customEditorData into an entry
+@::gSentryIndexColumns = qw(scmConfig QuietTimeMinutes runDuplicates);
+
+# how many ElectricSentry runs go by between full scans, unless the
+# IndexReconcileCycles setting says otherwise
+$::gSentryIndexReconcileCycles = 10;
+
+####################################################################
+# Object constructor for ElectricSentry::ScheduleIndex
+#
+# Inputs
+#   cmdr   = a previously initialized ElectricCommander handle
+####################################################################
+sub new {
+    my ($class, $cmdr) = @_;
+
+    my $self = {
+        _cmdr => $cmdr,
+        _path => $::gSentryIndexPath,
+    };
+    bless ($self, $class);
+    return $self;
+}
+
+sub getCmdr {
+    my ($self) = @_;
+    return $self->{_cmdr};
+}
+
+####################################################################
+# getAll
+#    Read the whole index with one request
+#
+# Returns
+#    exists  - 0 if the index has never been built
+#    entries - hash ref of {project}{schedule}{setting}
+####################################################################
+sub getAll {
+    my ($self) = @_;
+
+    my %entries;
+    my $xPath = $self->getCmdr()->getProperties(
+        { path => "$self->{_path}/schedules", recurse => 1 });
+    if (!defined $xPath || $xPath->findvalue('//error/code') ne "") {
+        return (0, \%entries);
+    }
+
+    my $projNodes = $xPath->find('//response/propertySheet/property');
+    foreach my $projNode ($projNodes->get_nodelist) {
+        my $proj = $xPath->findvalue('propertyName', $projNode);
+        my $schedNodes = $xPath->find('propertySheet/property', $projNode);
+        foreach my $schedNode ($schedNodes->get_nodelist) {
+            my $sched = $xPath->findvalue('propertyName', $schedNode);
+            my %settings;
+            my $colNodes = $xPath->find('propertySheet/property', $schedNode);
+            foreach my $colNode ($colNodes->get_nodelist) {
+                my $col = $xPath->findvalue('propertyName', $colNode);
+                $settings{"$col"} = $xPath->findvalue('value', $colNode)->string_value;
+            }
+            $entries{"$proj"}{"$sched"} = \%settings;
+        }
+    }
+    return (1, \%entries);
+}
+
+####################################################################
+# putEntry
+#    Add or update the entry of a schedule
+#
+# Inputs
+#   proj      = the project of the schedule
+#   sched     = the schedule
+#   settings  = hash ref of the schedule's ec_customEditorData
+####################################################################
+sub putEntry {
+    my ($self, $proj, $sched, $settings) = @_;
+
+    foreach my $col (@::gSentryIndexColumns) {
+        my $value = defined $settings->{$col} ? $settings->{$col} : "";
+        $self->getCmdr()->setProperty(
+            "$self->{_path}/schedules/$proj/$sched/$col", "$value");
+    }
+}
+
+####################################################################
+# removeEntry
+#    Remove the entry of a schedule
+####################################################################
+sub removeEntry {
+    my ($self, $proj, $sched) = @_;
+
+    $self->getCmdr()->deleteProperty("$self->{_path}/schedules/$proj/$sched");
+}
+
+####################################################################
+# isSameEntry
+#    Check whether an entry already holds the given settings
+####################################################################
+sub isSameEntry {
+    my ($self, $entry, $settings) = @_;
+
+    return 0 if (!defined $entry);
+    foreach my $col (@::gSentryIndexColumns) {
+        my $old = defined $entry->{$col}    ? $entry->{$col}    : "";
+        my $new = defined $settings->{$col} ? $settings->{$col} : "";
+        return 0 if ("$old" ne "$new");
+    }
+    return 1;
+}
+
+####################################################################
+# markBuilt
+#    Record when the index was last rebuilt from a full scan
+####################################################################
+sub markBuilt {
+    my ($self) = @_;
+
+    $self->getCmdr()->setProperty("$self->{_path}/lastRebuilt",
+        scalar(localtime()));
+}
+1;
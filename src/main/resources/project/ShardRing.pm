@@ -0,0 +1,179 @@
+####################################################################
+#
+# ElectricSentry::ShardRing
+#
+# The sentry schedules of a project that share the CI schedules
+# between them (ShardMode "auto"). Each member keeps a heartbeat in
+#
+#   /server/ECSCM/sentryShards/<sentryProj>/<sentrySched>
+#
+# with the time of its last run, the host it ran on and the number
+# of CI schedules it owns. A CI schedule belongs to the live member
+# with the highest hash of member and schedule name (rendezvous
+# hashing), so when a member comes or goes only the schedules it
+# owned, or will own, move.
+#
+####################################################################
+package ElectricSentry::ShardRing;
+use Digest::MD5 ();
+use Sys::Hostname ();
+
+$::gSentryShardPath = "/server/ECSCM/sentryShards";
+
+# how long a member stays in the ring without a heartbeat, unless the
+# ShardTimeoutMinutes setting says otherwise
+$::gSentryShardTimeoutMinutes = 10;
+
+####################################################################
+# Object constructor for ElectricSentry::ShardRing
+#
+# Inputs
+#   cmdr           = a previously initialized ElectricCommander handle
+#   sentryProj     = The sentry project
+#            i.e. Electric Cloud
+#   sentrySched    = The sentry schedule of this instance
+#            i.e. SentryMonitor
+#   timeoutMinutes = how long a member lives without a heartbeat
+####################################################################
+sub new {
+    my ($class, $cmdr, $sentryProj, $sentrySched, $timeoutMinutes) = @_;
+
+    $timeoutMinutes = $::gSentryShardTimeoutMinutes
+        unless (defined $timeoutMinutes && $timeoutMinutes =~ /^\d+$/
+            && $timeoutMinutes > 0);
+    my $self = {
+        _cmdr    => $cmdr,
+        _path    => "$::gSentryShardPath/$sentryProj",
+        _self    => $sentrySched,
+        _timeout => $timeoutMinutes * 60,
+        _members => [ $sentrySched ],
+    };
+    bless ($self, $class);
+    return $self;
+}
+
+sub getCmdr {
+    my ($self) = @_;
+    return $self->{_cmdr};
+}
+
+####################################################################
+# getAll
+#    Read the heartbeats of all members with one request
+#
+# Returns
+#    hash of {member}{heartbeat, host, schedules}
+####################################################################
+sub getAll {
+    my ($self) = @_;
+
+    my %members;
+    my $xPath = $self->getCmdr()->getProperties(
+        { path => $self->{_path}, recurse => 1 });
+    return %members
+        if (!defined $xPath || $xPath->findvalue('//error/code') ne "");
+
+    my $memberNodes = $xPath->find('//response/propertySheet/property');
+    foreach my $memberNode ($memberNodes->get_nodelist) {
+        my $member = $xPath->findvalue('propertyName', $memberNode);
+        my %entry;
+        my $colNodes = $xPath->find('propertySheet/property', $memberNode);
+        foreach my $colNode ($colNodes->get_nodelist) {
+            my $col = $xPath->findvalue('propertyName', $colNode);
+            $entry{"$col"} = $xPath->findvalue('value', $colNode)->string_value;
+        }
+        $members{"$member"} = \%entry;
+    }
+    return %members;
+}
+
+####################################################################
+# refresh
+#    Find the live members, this instance always among them, and
+#    drop the members whose heartbeat has run out
+#
+# Returns
+#    the names of the live members
+####################################################################
+sub refresh {
+    my ($self) = @_;
+
+    my %members = $self->getAll();
+    my %live = ( $self->{_self} => 1 );
+    my @stale;
+    foreach my $member (keys %members) {
+        next if ($member eq $self->{_self});
+        my $heartbeat = $members{$member}{heartbeat};
+        if (defined $heartbeat && $heartbeat =~ /^\d+$/
+            && time() - $heartbeat < $self->{_timeout}) {
+            $live{$member} = 1;
+        }
+        else {
+            push(@stale, $member);
+        }
+    }
+
+    if (scalar @stale) {
+        my $batch = $self->getCmdr()->newBatch();
+        foreach my $member (@stale) {
+            $batch->deleteProperty("$self->{_path}/$member");
+        }
+        $batch->submit();
+    }
+
+    $self->{_members} = [ sort keys %live ];
+    return @{$self->{_members}};
+}
+
+####################################################################
+# owner
+#    The member that owns a CI schedule
+####################################################################
+sub owner {
+    my ($self, $proj, $sched) = @_;
+
+    my ($owner, $best);
+    foreach my $member (@{$self->{_members}}) {
+        my $hash = Digest::MD5::md5_hex("$member\n$proj\n$sched");
+        if (!defined $best || $hash gt $best) {
+            ($owner, $best) = ($member, $hash);
+        }
+    }
+    return $owner;
+}
+
+####################################################################
+# isMine
+#    Whether this instance owns a CI schedule
+####################################################################
+sub isMine {
+    my ($self, $proj, $sched) = @_;
+    return $self->owner($proj, $sched) eq $self->{_self};
+}
+
+####################################################################
+# heartbeat
+#    Record that this instance is alive. Called before refresh, so
+#    that members reading the ring after this point count it.
+####################################################################
+sub heartbeat {
+    my ($self) = @_;
+
+    my $entry = "$self->{_path}/$self->{_self}";
+    my $batch = $self->getCmdr()->newBatch();
+    $batch->setProperty("$entry/heartbeat", time());
+    $batch->setProperty("$entry/host", Sys::Hostname::hostname());
+    $batch->submit();
+}
+
+####################################################################
+# setSchedules
+#    Record how many CI schedules this instance owns
+####################################################################
+sub setSchedules {
+    my ($self, $schedules) = @_;
+
+    $self->getCmdr()->setProperty(
+        "$self->{_path}/$self->{_self}/schedules", "$schedules");
+}
+1;
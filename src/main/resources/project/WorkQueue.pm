@@ -0,0 +1,135 @@
+####################################################################
+#
+# ElectricSentry::WorkQueue
+#
+# The schedules that ElectricSentry has to look at in event mode,
+# kept in a property sheet so that events survive between runs.
+#
+#   /server/ECSCM/sentryWorkQueue/<proj>/<sched>
+#
+# Each entry records where the last event came from (webhook or
+# poll), when it arrived and how many events were received since
+# the schedule was last looked at. Webhooks and ElectricSentry
+# polls add entries. Once the schedule has nothing new or a job was
+# started for it, ElectricSentry consumes the events it read. An
+# entry whose events drop to 0 is left in place and skipped, so that
+# an event added meanwhile is never deleted with it.
+#
+####################################################################
+package ElectricSentry::WorkQueue;
+
+$::gSentryWorkQueuePath = "/server/ECSCM/sentryWorkQueue";
+
+####################################################################
+# Object constructor for ElectricSentry::WorkQueue
+#
+# Inputs
+#   cmdr   = a previously initialized ElectricCommander handle
+####################################################################
+sub new {
+    my ($class, $cmdr) = @_;
+
+    my $self = {
+        _cmdr => $cmdr,
+        _path => $::gSentryWorkQueuePath,
+    };
+    bless ($self, $class);
+    return $self;
+}
+
+sub getCmdr {
+    my ($self) = @_;
+    return $self->{_cmdr};
+}
+
+####################################################################
+# getAll
+#    Read the whole queue with one request
+#
+# Returns
+#    hash of {project}{schedule}{source, received, events}, for the
+#    entries with events left
+####################################################################
+sub getAll {
+    my ($self) = @_;
+
+    my %entries;
+    my $xPath = $self->getCmdr()->getProperties(
+        { path => $self->{_path}, recurse => 1 });
+    return %entries
+        if (!defined $xPath || $xPath->findvalue('//error/code') ne "");
+
+    my $projNodes = $xPath->find('//response/propertySheet/property');
+    foreach my $projNode ($projNodes->get_nodelist) {
+        my $proj = $xPath->findvalue('propertyName', $projNode);
+        my $schedNodes = $xPath->find('propertySheet/property', $projNode);
+        foreach my $schedNode ($schedNodes->get_nodelist) {
+            my $sched = $xPath->findvalue('propertyName', $schedNode);
+            my %entry;
+            my $colNodes = $xPath->find('propertySheet/property', $schedNode);
+            foreach my $colNode ($colNodes->get_nodelist) {
+                my $col = $xPath->findvalue('propertyName', $colNode);
+                $entry{"$col"} = $xPath->findvalue('value', $colNode)->string_value;
+            }
+            next if (!defined $entry{events} || $entry{events} <= 0);
+            $entries{"$proj"}{"$sched"} = \%entry;
+        }
+    }
+    return %entries;
+}
+
+####################################################################
+# addEvent
+#    Add an event for a schedule
+#
+# Inputs
+#   proj      = the project of the schedule
+#   sched     = the schedule
+#   source    = where the event came from, webhook or poll
+####################################################################
+sub addEvent {
+    my ($self, $proj, $sched, $source) = @_;
+
+    my $entry = "$self->{_path}/$proj/$sched";
+    my $batch = $self->getCmdr()->newBatch();
+    $batch->setProperty("$entry/source", "$source");
+    $batch->setProperty("$entry/received", time());
+    $batch->incrementProperty("$entry/events", 1);
+    $batch->submit();
+}
+
+####################################################################
+# consume
+#    Take the events read by getAll off the entry of a schedule.
+#    Events added since the read stay queued.
+#
+# Inputs
+#   proj      = the project of the schedule
+#   sched     = the schedule
+#   events    = the events count getAll returned for the entry
+#
+# Returns
+#    the number of events left
+####################################################################
+sub consume {
+    my ($self, $proj, $sched, $events) = @_;
+
+    return 0 if (!defined $events || $events !~ /^\d+$/ || $events == 0);
+    my $xPath = $self->getCmdr()->incrementProperty(
+        "$self->{_path}/$proj/$sched/events", -$events);
+    return 0
+        if (!defined $xPath || $xPath->findvalue('//error/code') ne "");
+    my $left = $xPath->findvalue('//value')->string_value;
+    return ($left > 0) ? $left : 0;
+}
+
+####################################################################
+# remove
+#    Remove the entry of a schedule that is no longer monitored
+####################################################################
+sub remove {
+    my ($self, $proj, $sched) = @_;
+
+    $self->getCmdr()->deleteProperty("$self->{_path}/$proj/$sched");
+}
+1;
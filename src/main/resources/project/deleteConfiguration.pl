@@ -6,5 +6,7 @@ my $ec = new ElectricCommander();
 
 my $projName = "@PLUGIN_KEY@-@PLUGIN_VERSION@";
 $ec->deleteProperty("/projects/$projName/scm_cfgs/$[config]");
+# invalidate the configuration list cached by ecscm.cgi
+$ec->incrementProperty("/projects/$projName/scm_cfgs_cache/revision", 1);
 $ec->deleteCredential($projName, "$[config]");
 eval { $ec->deleteCredential($projName, "$[config]_webhookSecret") };
@@ -129,6 +129,13 @@ if ($promoteAction eq 'promote') {
             $batch->setProperty($disabledByDemotePropertyPath, 1);
         };
     }
+    # stop draining queued webhook launches; queueing one enables it again
+    my $queueSchedule = $commander->getSchedule($sentryProject, 'ECSCM-WebhookQueue');
+    if ($queueSchedule->findvalue('//code') eq '') {
+        $batch->modifySchedule($sentryProject, 'ECSCM-WebhookQueue', {
+            scheduleDisabled => 1
+        });
+    }
     # remove tab
     $view->remove(["Administration", "Source Control"]);
 }
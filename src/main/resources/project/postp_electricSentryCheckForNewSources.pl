@@ -8,5 +8,10 @@
         pattern => q{Error: Return\s+\(.*\) from RunCommand.},
         action =>
             q{incValue("errors");diagnostic("non zero exit from external command", "error", 0,1);},
+    },
+    {   id      => "ElectricSentry-checkNewSourcesCatchTimeouts",
+        pattern => q{Error: Timeout\s+\(.*\) from RunCommand.},
+        action =>
+            q{incValue("errors");diagnostic("external command timed out", "error", 0,1);},
     }
 );
\ No newline at end of file
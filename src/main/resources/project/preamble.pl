@@ -24,6 +24,10 @@ loadPerlCodeFromProperty("/myProject/scm_driver/ECSCM::Base::Driver");
 loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::TriggerCfg");
 loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::ScheduleCfg");
 loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::JobCfg");
+loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::ScheduleIndex");
+loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::WorkQueue");
+loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::ShardRing");
+loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::Lease");
 loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::GlobalCfg");
 loadPerlCodeFromProperty("/myProject/scm_driver/ElectricSentry::Driver");
 
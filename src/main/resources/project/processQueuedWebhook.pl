@@ -20,6 +20,15 @@ use strict;
 use warnings;
 use File::Path;
 
+# The queue of delayed webhook launches and the schedule that drains it,
+# see queueLaunch in processWebHookSchedules.pl
+use constant {
+    DELAY_QUEUE => '/server/ECSCM/webhookDelayQueue',
+    DRAINER_PROJECT => 'Electric Cloud',
+    DRAINER_SCHEDULE => 'ECSCM-WebhookQueue',
+    LAUNCH_CHUNK_SIZE => 50,
+};
+
 
 sub new {
     my ($class, $ec) = @_;
@@ -36,6 +45,15 @@ sub processQueue {
     my ($self) = @_;
 
     my $projectName = $self->getParameter('projectName');
+
+    # Run from the ECSCM-WebhookQueue schedule
+    unless ($projectName) {
+        $self->drainQueue();
+        $self->cleanup();
+        return;
+    }
+
+    # Run from a one-time schedule queued by an older version
     my $scheduleName = $self->getParameter('scheduleName');
     my $webhookData = $self->getParameter('webhookData');
 
@@ -45,6 +63,112 @@ sub processQueue {
 }
 
 
+# Launches the queued launches that are due, earliest first
+sub drainQueue {
+    my ($self) = @_;
+
+    my $entries = $self->readQueue();
+    my $now = time();
+    my @due = sort { $a->{due} <=> $b->{due} } grep { $_->{due} <= $now } @$entries;
+    $self->info(scalar(@$entries) . " queued launches, " . scalar(@due) . " due");
+
+    my $left = @$entries - @due;
+    while (my @chunk = splice(@due, 0, LAUNCH_CHUNK_SIZE)) {
+        # Read each entry again and remove it in the same request, so that
+        # a webhook that came in since the queue was read is not lost
+        my $batch = $self->ec->newBatch();
+        my %ids = ();
+        for my $entry (@chunk) {
+            $ids{$entry->{path}} = $batch->getProperties({path => $entry->{path}});
+            $batch->deleteProperty($entry->{path});
+        }
+        $batch->submit();
+
+        for my $entry (@chunk) {
+            my %props = ();
+            for my $node ($batch->findnodes($ids{$entry->{path}}, 'propertySheet/property')) {
+                $props{$node->findvalue('propertyName')->string_value} = $node->findvalue('value')->string_value;
+            }
+            next unless defined $props{due};
+
+            # Pushed back in the meantime
+            if ($props{due} > $now) {
+                $self->requeue($entry->{path}, \%props);
+                $left++;
+                next;
+            }
+            eval {
+                $self->launch($entry->{projectName}, $entry->{scheduleName}, $props{webhookData}, \%props);
+                1;
+            } or do {
+                my $err = $@;
+                $self->info("Failed to launch schedule $entry->{projectName}:$entry->{scheduleName}: $err");
+            };
+        }
+    }
+
+    # Stop running every minute while there is nothing to launch. A webhook
+    # queued while the schedule is disabled enables it again; check once
+    # more in case one came in just before.
+    unless ($left) {
+        $self->ec->modifySchedule({
+            projectName => DRAINER_PROJECT,
+            scheduleName => DRAINER_SCHEDULE,
+            scheduleDisabled => 1,
+        });
+        if (@{$self->readQueue()}) {
+            $self->ec->modifySchedule({
+                projectName => DRAINER_PROJECT,
+                scheduleName => DRAINER_SCHEDULE,
+                scheduleDisabled => 0,
+            });
+        }
+        else {
+            $self->info("The queue is empty, disabled schedule " . DRAINER_PROJECT . ':' . DRAINER_SCHEDULE);
+        }
+    }
+}
+
+
+sub readQueue {
+    my ($self) = @_;
+
+    my @entries = ();
+    my $xpath;
+    eval {
+        $xpath = $self->ec->getProperties({path => DELAY_QUEUE, recurse => 1});
+        1;
+    } or return \@entries;
+
+    for my $projectNode ($xpath->findnodes('//response/propertySheet/property')) {
+        my $projectName = $projectNode->findvalue('propertyName')->string_value;
+        for my $scheduleNode ($projectNode->findnodes('propertySheet/property')) {
+            my $scheduleName = $scheduleNode->findvalue('propertyName')->string_value;
+            my $due = $scheduleNode->findvalue('propertySheet/property[propertyName="due"]/value')->string_value;
+            next if $due eq '';
+            push @entries, {
+                projectName => $projectName,
+                scheduleName => $scheduleName,
+                path => DELAY_QUEUE . "/$projectName/$scheduleName",
+                due => $due,
+            };
+        }
+    }
+    return \@entries;
+}
+
+
+sub requeue {
+    my ($self, $path, $props) = @_;
+
+    my $batch = $self->ec->newBatch();
+    for my $name (sort keys %$props) {
+        $batch->setProperty("$path/$name", $props->{$name});
+    }
+    $batch->submit();
+}
+
+
 sub getParameter {
     my ($self, $paramName) = @_;
 
@@ -53,16 +177,23 @@ sub getParameter {
 
 
 sub launch {
-    my ($self, $projectName, $scheduleName, $webhookData) = @_;
+    my ($self, $projectName, $scheduleName, $webhookData, $queued) = @_;
 
-    my $schedule = $self->ec->getSchedule({
-        projectName => $projectName,
-        scheduleName => $scheduleName
-    });
+    my ($procedureName, $pipelineName, $releaseName);
+    if ($queued) {
+        ($procedureName, $pipelineName, $releaseName) =
+            map { defined $_ ? $_ : '' } @$queued{qw(procedureName pipelineName releaseName)};
+    }
+    else {
+        my $schedule = $self->ec->getSchedule({
+            projectName => $projectName,
+            scheduleName => $scheduleName
+        });
 
-    my $procedureName = $schedule->findvalue('//procedureName')->string_value;
-    my $pipelineName = $schedule->findvalue('//pipelineName')->string_value;
-    my $releaseName = $schedule->findvalue('//releaseName')->string_value;
+        $procedureName = $schedule->findvalue('//procedureName')->string_value;
+        $pipelineName = $schedule->findvalue('//pipelineName')->string_value;
+        $releaseName = $schedule->findvalue('//releaseName')->string_value;
+    }
 
     my $result;
     my $what;
@@ -103,6 +234,15 @@ sub launch {
 sub cleanup {
     my ($self) = @_;
 
+    eval {
+        $self->cleanJobs(DRAINER_PROJECT, DRAINER_SCHEDULE);
+        1;
+    } or do {
+        my $err = $@;
+        $self->info("Failed to clean up jobs: $err");
+    };
+
+    # One-time schedules queued by older versions
     my @filters = ({
         propertyName => 'scheduleName',
         operator => 'like',
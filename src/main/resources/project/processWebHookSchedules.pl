@@ -38,6 +38,15 @@ use Digest::MD5 qw(md5_hex);
 use File::Path;
 use Encode qw(encode);
 
+# The default ElectricSentry instance and its work queue
+use constant {
+    SENTRY_PROJECT => 'Electric Cloud',
+    SENTRY_SCHEDULE => 'ECSCM-SentryMonitor',
+    SENTRY_QUEUE => '/server/ECSCM/sentryWorkQueue',
+    COALESCE_SECONDS => '/server/ECSCM/webhookCoalesceSeconds',
+    WEBHOOK_STATS => '/server/ECSCM/webhookStats',
+};
+
 
 sub new {
     my ($class, %params) = @_;
@@ -73,15 +82,46 @@ sub processSchedules {
     unless(@$schedules) {
         $self->logger->info("No schedules were found for the provided search parameters");
     }
+
+    # Webhooks for the same schedule that come in within its coalescing
+    # window are folded into one launch with the latest webhook data
+    my $stats = {received => 0, coalesced => 0, launched => 0};
+    my @pending = ();
+    eval {
+        $self->prefetchRunning($schedules);
+        1;
+    } or do {
+        $self->logger->error("Cannot look up running jobs of the schedules, checking them one by one: $@");
+    };
     for my $schedule (@$schedules) {
+        $stats->{received}++;
         eval {
-            $schedule->launch($self->{webhookData});
+            my $window = $schedule->getParameter('ec_coalesceSeconds', $self->defaultCoalesceSeconds);
+            if (!$window) {
+                $stats->{launched}++ if $schedule->launch($self->{webhookData});
+            }
+            elsif ($schedule->addPending($self->{webhookData}, $window)) {
+                $self->logger->info("Launching schedule " . $schedule->name . " in $window seconds");
+                push @pending, {schedule => $schedule, window => $window, due => time() + $window};
+            }
+            else {
+                $self->logger->info("A launch of schedule " . $schedule->name . " is pending, the webhook is folded into it");
+                $stats->{coalesced}++;
+            }
             1;
         } or do {
             my $err = $@;
             $self->logger->error("Failed to launch schedule " . $schedule->name . ", error: $err");
         };
     }
+    $self->launchPending(\@pending, $stats);
+    $self->saveStats($stats);
+
+    # CI schedules are not launched here: ElectricSentry checks them for
+    # new sources, applying their quiet time and runDuplicates settings
+    if ($self->{sentrySchedules} && @{$self->{sentrySchedules}}) {
+        $self->queueSentryEvents($self->{sentrySchedules});
+    }
 
     unless ($self->{skipCleanup}) {
         $self->cleanup();
@@ -92,6 +132,50 @@ sub processSchedules {
 sub findSchedules {
     my ($self) = @_;
 
+    my $searchParams = decode_json($self->{rawSearchParams});
+    my $index = EC::ECSCM::WebhookIndex->new($self->ec);
+    my $candidates = eval { $index->findCandidates($searchParams) };
+    unless ($candidates) {
+        $self->logger->error("Cannot use the webhook schedule index, scanning all schedules: $@");
+        return $self->scanSchedules();
+    }
+    $self->logger->info("Found " . scalar(@$candidates) . " candidate schedules with " . $index->requests . " requests");
+
+    my $retval = [];
+    my $stale = 0;
+    for my $entry (@$candidates) {
+        my $schedule = EC::ECSCM::Schedule->fromEntry($entry, $self->ec);
+        if ($entry->{triggerType} eq 'webhook') {
+            unless ($schedule->isWebhookSchedule()) {
+                $stale = 1;
+                next;
+            }
+            if ($schedule->matches($searchParams)) {
+                push @$retval, $schedule;
+                next;
+            }
+        }
+        else {
+            next unless $self->isSentryEventMode();
+            if ($schedule->matchesSentry($searchParams)) {
+                push @{$self->{sentrySchedules}}, $schedule;
+                next;
+            }
+        }
+        $self->logger->info($schedule->name . ' does not match search parameters');
+
+        # The index has not seen the latest change of the schedule
+        $stale = 1 unless $schedule->paramsMatch($schedule->{params} || {}, $searchParams);
+    }
+    $index->requestRebuild() if $stale;
+    return $retval;
+}
+
+
+# Reads every schedule on the server, used when the index cannot be read
+sub scanSchedules {
+    my ($self) = @_;
+
     my $chunkSize = 10;
     my $start = 0;
 
@@ -115,7 +199,12 @@ sub findSchedules {
 
 
             unless($schedule->isWebhookSchedule()) {
-                $self->logger->debug("Not a webhook schedule: " . $schedule->name);
+                if ($self->isSentryEventMode() && $schedule->matchesSentry($searchParams)) {
+                    push @{$self->{sentrySchedules}}, $schedule;
+                }
+                else {
+                    $self->logger->debug("Not a webhook schedule: " . $schedule->name);
+                }
                 next;
             }
 
@@ -135,6 +224,229 @@ sub logger {
 }
 
 
+# The coalescing window of schedules that do not set ec_coalesceSeconds
+sub defaultCoalesceSeconds {
+    my ($self) = @_;
+
+    unless (defined $self->{defaultCoalesceSeconds}) {
+        my $seconds = 0;
+        eval {
+            $seconds = $self->ec->getProperty(COALESCE_SECONDS)->findvalue('//value')->string_value;
+            1;
+        };
+        $self->{defaultCoalesceSeconds} = $seconds =~ /^\d+$/ ? $seconds + 0 : 0;
+    }
+    return $self->{defaultCoalesceSeconds};
+}
+
+
+# Waits out the coalescing window of the schedules this job has to launch
+# and launches each of them once. Events that come in while a schedule is
+# launched are launched after another window.
+sub launchPending {
+    my ($self, $pending, $stats) = @_;
+
+    while (@$pending) {
+        @$pending = sort { $a->{due} <=> $b->{due} } @$pending;
+        my $next = shift @$pending;
+        my $schedule = $next->{schedule};
+        my $wait = $next->{due} - time();
+        sleep($wait) if $wait > 0;
+
+        my $events = 0;
+        eval {
+            my $webhookData;
+            ($webhookData, $events) = $schedule->takePending();
+            # Jobs may have started or finished during the window
+            delete $schedule->{running};
+            $self->logger->info("Launching schedule " . $schedule->name . " for $events webhook events");
+            $stats->{launched}++ if $schedule->launch($webhookData);
+            1;
+        } or do {
+            my $err = $@;
+            $self->logger->error("Failed to launch schedule " . $schedule->name . ", error: $err");
+        };
+
+        my $left = $events ? eval { $schedule->releasePending($events) } || 0 : 0;
+        if ($left > 0) {
+            push @$pending, {%$next, due => time() + $next->{window}};
+        }
+    }
+}
+
+
+# Finds out with one job query and one flowRuntime query which of the
+# schedules are running, so that EC::ECSCM::Schedule::alreadyRunning does
+# not have to ask for each of them
+sub prefetchRunning {
+    my ($self, $schedules) = @_;
+
+    return unless @$schedules;
+
+    my %byProject = ();
+    for my $schedule (@$schedules) {
+        push @{$byProject{$schedule->projectName}}, $schedule->scheduleName;
+    }
+
+    my @jobFilter = ();
+    my @runtimeFilter = ();
+    for my $projectName (sort keys %byProject) {
+        my @scheduleNames = @{$byProject{$projectName}};
+        my $project = {propertyName => 'projectName', operator => 'equals', operand1 => $projectName};
+        push @jobFilter, {operator => 'and', filter => [
+            $project,
+            {operator => 'or', filter => [
+                map { {propertyName => 'scheduleName', operator => 'equals', operand1 => $_} } @scheduleNames
+            ]},
+        ]};
+        push @runtimeFilter, {operator => 'and', filter => [
+            $project,
+            {operator => 'or', filter => [
+                map { {propertyName => 'liveSchedule', operator => 'equals', operand1 => $_} } @scheduleNames
+            ]},
+        ]};
+        # A pipeline in another project refers to the schedule by path
+        push @runtimeFilter, map {
+            {propertyName => 'liveSchedule', operator => 'equals', operand1 => "/projects/$projectName/schedules/$_"}
+        } @scheduleNames;
+    }
+
+    my %running = ();
+    my @jobs = $self->findAll('job', [
+        {propertyName => 'status', operator => 'notEqual', operand1 => 'completed'},
+        {operator => 'or', filter => \@jobFilter},
+    ]);
+    for my $job (@jobs) {
+        $running{$job->findvalue('projectName')->string_value . "\n" . $job->findvalue('scheduleName')->string_value} = 1;
+    }
+
+    my @runtimes = $self->findAll('flowRuntime', [
+        {propertyName => 'completed', operator => 'notEqual', operand1 => '1'},
+        {operator => 'or', filter => \@runtimeFilter},
+    ]);
+    for my $runtime (@runtimes) {
+        my $liveSchedule = $runtime->findvalue('liveSchedule')->string_value;
+        if ($liveSchedule =~ m{^/projects/(.+)/schedules/(.+)$}) {
+            $running{"$1\n$2"} = 1;
+        }
+        else {
+            $running{$runtime->findvalue('projectName')->string_value . "\n$liveSchedule"} = 1;
+        }
+    }
+
+    for my $schedule (@$schedules) {
+        $schedule->{running} = $running{$schedule->projectName . "\n" . $schedule->scheduleName} ? 1 : 0;
+    }
+    $self->logger->info("Looked up running jobs of " . scalar(@$schedules) . " schedules: "
+        . scalar(@jobs) . " jobs, " . scalar(@runtimes) . " pipeline runs");
+}
+
+
+# findObjects, a page at a time
+sub findAll {
+    my ($self, $objectType, $filter) = @_;
+
+    my $pageSize = 500;
+    my $firstResult = 0;
+    my @nodes = ();
+    while (1) {
+        my $xpath = $self->ec->findObjects($objectType, {
+            filter => $filter,
+            firstResult => $firstResult,
+            maxIds => $pageSize,
+            numObjects => $pageSize,
+        });
+        my @page = $xpath->findnodes("//response/object/$objectType");
+        push @nodes, @page;
+        last if @page < $pageSize;
+        $firstResult += @page;
+    }
+    return @nodes;
+}
+
+
+sub saveStats {
+    my ($self, $stats) = @_;
+
+    eval {
+        for my $name (sort keys %$stats) {
+            $self->ec->setProperty("/myJob/webhookEvents/$name", $stats->{$name});
+            $self->ec->incrementProperty(WEBHOOK_STATS . "/$name", $stats->{$name}) if $stats->{$name};
+        }
+        1;
+    } or do {
+        $self->logger->error("Cannot save the webhook event counts: $@");
+    };
+    $self->logger->info("Webhook events: $stats->{received} received, $stats->{coalesced} coalesced, $stats->{launched} launched");
+}
+
+
+# ElectricSentry takes events from webhooks when its SentryMode is "event".
+# Only the default sentry schedule, Electric Cloud:ECSCM-SentryMonitor, is
+# looked at: its mode decides whether CI schedules are queued, whichever
+# sentry schedule monitors them, and it is the one started for them.
+sub isSentryEventMode {
+    my ($self) = @_;
+
+    unless (defined $self->{sentryEventMode}) {
+        my $mode = '';
+        eval {
+            $mode = $self->ec->getProperty('/projects/' . SENTRY_PROJECT . '/schedules/'
+                . SENTRY_SCHEDULE . '/ElectricSentrySettings/SentryMode')
+                ->findvalue('//value')->string_value;
+            1;
+        };
+        $self->{sentryEventMode} = $mode eq 'event' ? 1 : 0;
+    }
+    return $self->{sentryEventMode};
+}
+
+
+sub queueSentryEvents {
+    my ($self, $schedules) = @_;
+
+    for my $schedule (@$schedules) {
+        my $entry = SENTRY_QUEUE . '/' . $schedule->projectName . '/' . $schedule->scheduleName;
+        eval {
+            # The same writes as ElectricSentry::WorkQueue::addEvent
+            my $batch = $self->ec->newBatch();
+            $batch->setProperty("$entry/source", 'webhook');
+            $batch->setProperty("$entry/received", time());
+            $batch->incrementProperty("$entry/events", 1);
+            $batch->submit();
+            $self->logger->info("Queued schedule " . $schedule->name . " for ElectricSentry");
+            1;
+        } or do {
+            my $err = $@;
+            $self->logger->error("Failed to queue schedule " . $schedule->name . ", error: $err");
+        };
+    }
+
+    # Start ElectricSentry now rather than on its next run, unless it is
+    # running already
+    my $running = $self->ec->findObjects('job', {filter => [
+        {propertyName => 'projectName', operator => 'equals', operand1 => SENTRY_PROJECT},
+        {propertyName => 'scheduleName', operator => 'equals', operand1 => SENTRY_SCHEDULE},
+        {propertyName => 'status', operator => 'notEqual', operand1 => 'completed'},
+    ]});
+    if ($running->findnodes('//job')) {
+        $self->logger->info("ElectricSentry is running, it will pick up the queued schedules");
+        return;
+    }
+    eval {
+        $self->ec->runProcedure({
+            projectName => SENTRY_PROJECT,
+            scheduleName => SENTRY_SCHEDULE,
+        });
+        $self->logger->info("Started ElectricSentry from " . SENTRY_PROJECT . ':' . SENTRY_SCHEDULE);
+        1;
+    } or do {
+        my $err = $@;
+        $self->logger->error("Failed to start ElectricSentry, the queued schedules wait for its next run: $err");
+    };
+}
+
+
 sub prettyJson {
     my ($object) = @_;
 
@@ -207,13 +519,438 @@ sub deleteWorkspace {
 
 
 
+1;
+
+
+package EC::ECSCM::WebhookIndex;
+use strict;
+use warnings;
+use JSON;
+use Digest::MD5 qw(md5_hex);
+use Encode qw(encode);
+
+# An index of the webhook schedules (and of the CI schedules ElectricSentry
+# polls) by the values of their ec_customEditorData parameters, so that a
+# webhook finds its schedules without reading every schedule on the server.
+#
+#   state                             JSON {generation, previous, builtAt,
+#                                     watermark}
+#   recent                            JSON list of schedules modified since
+#                                     the generation was built
+#   rebuildRequested                  set when the index was found stale
+#   rebuildLock                       "<gen> <time>" while a webhook
+#                                     rebuilds the index
+#   generations/<gen>/values/<param>/<md5 of value>
+#                                     JSON list of schedules with the value
+#   generations/<gen>/wildcard/<param>
+#                                     JSON list of schedules with '*'
+#
+# A generation is written in full before the state points at it, so a
+# webhook never sees a half built index. Only the webhook holding
+# rebuildLock rebuilds. The generation the state pointed at before stays
+# as the previous one for webhooks that read the old state; older
+# generations, including any left by a rebuild that did not finish, are
+# deleted by the next rebuild. Candidates found in the index are still
+# checked against their live parameters before they are launched.
+use constant {
+    INDEX_PATH => '/server/ECSCM/webhookScheduleIndex',
+    REBUILD_MINUTES => 60,
+    LOCK_MINUTES => 30,
+    CHUNK_SIZE => 1000,
+    WRITE_CHUNK_SIZE => 500,
+};
+
+# Parameters that configure the trigger itself rather than select a schedule
+my %notSearchable = map { $_ => 1 } qw(TriggerFlag QuietTimeMinutes runDuplicates scmConfig);
+
+# Keeps the generations built by one process apart
+my $rebuilds = 0;
+
+
+sub new {
+    my ($class, $ec) = @_;
+
+    my $self = { ec => $ec, requests => 0 };
+    return bless $self, $class;
+}
+
+sub ec {
+    return shift->{ec};
+}
+
+sub requests {
+    return shift->{requests};
+}
+
+
+# Returns the schedules that have every search parameter value, or '*', as
+# index entries {projectName, scheduleName, procedureName, pipelineName,
+# releaseName, triggerType}
+sub findCandidates {
+    my ($self, $searchParams) = @_;
+
+    my @names = sort grep { !ref $searchParams->{$_} } keys %$searchParams;
+    @names or die "No plain search parameters to look up";
+
+    my $batch = $self->ec->newBatch();
+    my $stateId = $batch->getProperty(INDEX_PATH . '/state');
+    my $recentId = $batch->getProperty(INDEX_PATH . '/recent');
+    my $rebuildId = $batch->getProperty(INDEX_PATH . '/rebuildRequested');
+    $batch->submit();
+    $self->{requests}++;
+
+    my $state = decodeValue($batch->findvalue($stateId, 'property/value'), {});
+    my $recent = decodeValue($batch->findvalue($recentId, 'property/value'), []);
+    my $rebuild = $batch->findvalue($rebuildId, 'property/value')->string_value;
+
+    my @rebuilt;
+    if (!$state->{generation} || $rebuild
+        || time() - ($state->{builtAt} || 0) > REBUILD_MINUTES * 60) {
+        @rebuilt = $self->rebuild($state);
+    }
+    if (@rebuilt) {
+        ($state, $recent) = @rebuilt;
+    }
+    else {
+        # Another webhook is rebuilding; use the current generation
+        $state->{generation} or die "The webhook schedule index is being built";
+        $recent = $self->refresh($state, $recent);
+    }
+
+    my $generation = INDEX_PATH . "/generations/$state->{generation}";
+    $batch = $self->ec->newBatch();
+    my %ids;
+    for my $name (@names) {
+        $ids{$name} = [
+            $batch->getProperty("$generation/values/$name/" . valueKey($searchParams->{$name})),
+            $batch->getProperty("$generation/wildcard/$name"),
+        ];
+    }
+    $batch->submit();
+    $self->{requests}++;
+
+    # Schedules modified since the generation was built are matched on
+    # their recent entry only
+    my %recentKeys = map { entryKey($_) => 1 } @$recent;
+    my %candidates;
+    my $first = 1;
+    for my $name (@names) {
+        my %found;
+        for my $id (@{$ids{$name}}) {
+            for my $entry (@{decodeValue($batch->findvalue($id, 'property/value'), [])}) {
+                $found{entryKey($entry)} = $entry unless $recentKeys{entryKey($entry)};
+            }
+        }
+        for my $entry (@$recent) {
+            my $value = $entry->{params}{$name};
+            next unless defined $value;
+            $found{entryKey($entry)} = $entry
+                if $value eq '*' || $value eq $searchParams->{$name};
+        }
+        if ($first) {
+            %candidates = %found;
+            $first = 0;
+        }
+        else {
+            delete $candidates{$_} for grep { !$found{$_} } keys %candidates;
+        }
+    }
+    return [ map { $candidates{$_} } sort keys %candidates ];
+}
+
+
+# Asks the next webhook to rebuild the index, e.g. when a candidate no
+# longer matches its indexed values
+sub requestRebuild {
+    my ($self) = @_;
+
+    eval {
+        $self->ec->setProperty(INDEX_PATH . '/rebuildRequested', 1);
+        $self->{requests}++;
+        1;
+    };
+}
+
+
+# Returns the new state and recent list, or nothing if another webhook
+# holds the rebuild lock
+sub rebuild {
+    my ($self, $oldState) = @_;
+
+    my $generation = time() . "-$$-" . ++$rebuilds;
+    return unless $self->lock($generation);
+
+    my ($state, $recent) = eval { $self->build($oldState, $generation) };
+    my $err = $@;
+    eval {
+        $self->ec->deleteProperty(INDEX_PATH . '/rebuildLock');
+        $self->{requests}++;
+        1;
+    };
+    die $err unless $state;
+    return ($state, $recent);
+}
+
+
+# Takes the rebuild lock. A lock older than LOCK_MINUTES was left by a
+# webhook that died; it is dropped so that the next webhook can rebuild.
+sub lock {
+    my ($self, $generation) = @_;
+
+    my $path = INDEX_PATH . '/rebuildLock';
+    my $taken = eval {
+        $self->ec->createProperty($path, {value => "$generation " . time()});
+        1;
+    };
+    $self->{requests}++;
+    return 1 if $taken;
+
+    eval {
+        my $value = $self->ec->getProperty($path)->findvalue('//value')->string_value;
+        $self->{requests}++;
+        my (undef, $since) = split(/ /, $value);
+        if (!$since || time() - $since > LOCK_MINUTES * 60) {
+            $self->ec->deleteProperty($path);
+            $self->{requests}++;
+        }
+        1;
+    };
+    return 0;
+}
+
+
+# The generations stored in the index
+sub generations {
+    my ($self) = @_;
+
+    my @generations;
+    eval {
+        my $xpath = $self->ec->getProperties({path => INDEX_PATH . '/generations'});
+        @generations = map { $_->string_value }
+            $xpath->findnodes('//propertySheet/property/propertyName');
+        1;
+    };
+    $self->{requests}++;
+    return @generations;
+}
+
+
+sub build {
+    my ($self, $oldState, $generation) = @_;
+
+    # Everything but the generation readers may still use goes once the
+    # new one is in place
+    my @obsolete = grep { !$oldState->{generation} || $_ ne $oldState->{generation} }
+        $self->generations();
+
+    my $schedules = $self->scan([]);
+    my %buckets;
+    my $watermark = '';
+    for my $schedule (@$schedules) {
+        $watermark = $schedule->{modifyTime} if $schedule->{modifyTime} gt $watermark;
+        my $entry = entryOf($schedule);
+        next unless $entry;
+        for my $name (keys %{$schedule->{params}}) {
+            next if $notSearchable{$name};
+            my $value = $schedule->{params}{$name};
+            my $path = $value eq '*' ? "wildcard/$name" : "values/$name/" . valueKey($value);
+            push @{$buckets{$path}}, $entry;
+        }
+    }
+
+    my @paths = sort keys %buckets;
+    while (@paths) {
+        my $batch = $self->ec->newBatch();
+        for my $path (splice(@paths, 0, WRITE_CHUNK_SIZE)) {
+            $batch->setProperty(INDEX_PATH . "/generations/$generation/$path",
+                encode_json($buckets{$path}));
+        }
+        $batch->submit();
+        $self->{requests}++;
+    }
+
+    my $state = {
+        generation => $generation,
+        previous => $oldState->{generation},
+        builtAt => time(),
+        watermark => $watermark,
+    };
+    my $batch = $self->ec->newBatch();
+    $batch->setProperty(INDEX_PATH . '/state', encode_json($state));
+    $batch->setProperty(INDEX_PATH . '/recent', encode_json([]));
+    $batch->deleteProperty(INDEX_PATH . '/rebuildRequested');
+    $batch->submit();
+    $self->{requests}++;
+
+    if (@obsolete) {
+        $batch = $self->ec->newBatch();
+        $batch->deleteProperty(INDEX_PATH . "/generations/$_") for @obsolete;
+        $batch->submit();
+        $self->{requests}++;
+    }
+
+    EC::Plugin::Logger->getInstance->info("Rebuilt the webhook schedule index from "
+        . scalar(@$schedules) . " schedules, " . scalar(keys %buckets) . " values");
+    return ($state, []);
+}
+
+
+# Moves the schedules modified since the last look into the recent list
+sub refresh {
+    my ($self, $state, $recent) = @_;
+
+    my $schedules = $self->scan([{
+        propertyName => 'modifyTime',
+        operator => 'greaterOrEqual',
+        operand1 => $state->{watermark},
+    }]);
+    return $recent unless @$schedules;
+
+    my %byKey = map { entryKey($_) => $_ } @$recent;
+    my $watermark = $state->{watermark};
+    for my $schedule (@$schedules) {
+        $watermark = $schedule->{modifyTime} if $schedule->{modifyTime} gt $watermark;
+        # A schedule that no longer triggers keeps an entry without
+        # parameters, which hides its older indexed entry
+        my $entry = entryOf($schedule) || {
+            projectName => $schedule->{projectName},
+            scheduleName => $schedule->{scheduleName},
+        };
+        $entry->{params} = { %{$schedule->{params}} } if $entry->{triggerType};
+        $byKey{entryKey($entry)} = $entry;
+    }
+    return [ values %byKey ] if $watermark eq $state->{watermark};
+
+    $recent = [ map { $byKey{$_} } sort keys %byKey ];
+    $state->{watermark} = $watermark;
+    eval {
+        my $batch = $self->ec->newBatch();
+        $batch->setProperty(INDEX_PATH . '/recent', encode_json($recent));
+        $batch->setProperty(INDEX_PATH . '/state', encode_json($state));
+        $batch->submit();
+        $self->{requests}++;
+        1;
+    } or do {
+        EC::Plugin::Logger->getInstance->error("Cannot update the webhook schedule index: $@");
+    };
+    return $recent;
+}
+
+
+# Reads the schedules matching the filter with their trigger settings
+sub scan {
+    my ($self, $filter) = @_;
+
+    my @select = (
+        {propertyName => 'ec_customEditorData', recurse => 1},
+        {propertyName => 'ec_triggerType'},
+    );
+    my $xpath = $self->ec->findObjects('schedule', {
+        filter => $filter,
+        numObjects => CHUNK_SIZE,
+        select => \@select,
+    });
+    $self->{requests}++;
+
+    my @ids = map { $_->string_value } $xpath->findnodes('//response/objectId');
+    my @schedules;
+    my $processed = 0;
+    while ($processed < @ids) {
+        if ($processed) {
+            my $last = $processed + CHUNK_SIZE - 1;
+            $last = $#ids if $last > $#ids;
+            $xpath = $self->ec->getObjects({objectId => [ @ids[$processed .. $last] ], select => \@select});
+            $self->{requests}++;
+        }
+        my $count = 0;
+        for my $node ($xpath->findnodes('//response/object[schedule]')) {
+            my %params;
+            for my $param ($xpath->findnodes('property[propertyName="ec_customEditorData"]/propertySheet/property', $node)) {
+                $params{$xpath->findvalue('propertyName', $param)->string_value} =
+                    $xpath->findvalue('value', $param)->string_value;
+            }
+            push @schedules, {
+                projectName => $xpath->findvalue('schedule/projectName', $node)->string_value,
+                scheduleName => $xpath->findvalue('schedule/scheduleName', $node)->string_value,
+                procedureName => $xpath->findvalue('schedule/procedureName', $node)->string_value,
+                pipelineName => $xpath->findvalue('schedule/pipelineName', $node)->string_value,
+                releaseName => $xpath->findvalue('schedule/releaseName', $node)->string_value,
+                modifyTime => $xpath->findvalue('schedule/modifyTime', $node)->string_value,
+                triggerType => $xpath->findvalue('property[propertyName="ec_triggerType"]/value', $node)->string_value,
+                params => \%params,
+            };
+            $count++;
+        }
+        last unless $count;
+        $processed += $count;
+    }
+    return \@schedules;
+}
+
+
+# The index entry of a webhook schedule or of a CI schedule, or undef for
+# any other schedule
+sub entryOf {
+    my ($schedule) = @_;
+
+    my $triggerType;
+    if ($schedule->{triggerType} eq 'webhook') {
+        $triggerType = 'webhook';
+    }
+    elsif (($schedule->{params}{TriggerFlag} || '') eq '2') {
+        $triggerType = 'sentry';
+    }
+    return undef unless $triggerType;
+
+    return {
+        projectName => $schedule->{projectName},
+        scheduleName => $schedule->{scheduleName},
+        procedureName => $schedule->{procedureName},
+        pipelineName => $schedule->{pipelineName},
+        releaseName => $schedule->{releaseName},
+        triggerType => $triggerType,
+    };
+}
+
+sub entryKey {
+    my ($entry) = @_;
+    return "$entry->{projectName}\n$entry->{scheduleName}";
+}
+
+sub valueKey {
+    my ($value) = @_;
+    return md5_hex(encode('UTF-8', $value));
+}
+
+sub decodeValue {
+    my ($value, $default) = @_;
+
+    $value = "$value";
+    return $default if $value eq '';
+    my $decoded = eval { decode_json($value) };
+    return ref $decoded eq ref $default ? $decoded : $default;
+}
+
+
+
 1;
 
 
 package EC::ECSCM::Schedule;
 use strict;
 use warnings;
-use DateTime;
+
+# Pending webhook launches, /server/ECSCM/webhookPending/<proj>/<sched>
+#   webhookData  - the data of the latest webhook
+#   events       - the number of webhooks not launched yet
+#   leaderSince  - when the job that launches them took over
+use constant {
+    PENDING_PATH => '/server/ECSCM/webhookPending',
+    PENDING_GRACE_SECONDS => 300,
+    DELAY_QUEUE => '/server/ECSCM/webhookDelayQueue',
+    DRAINER_PROJECT => 'Electric Cloud',
+    DRAINER_SCHEDULE => 'ECSCM-WebhookQueue',
+};
 
 
 sub new {
@@ -236,6 +973,22 @@ sub new {
     return bless $self, $class;
 }
 
+# A schedule found in EC::ECSCM::WebhookIndex
+sub fromEntry {
+    my ($class, $entry, $ec) = @_;
+
+    my $self = {
+        scheduleName => $entry->{scheduleName},
+        projectName => $entry->{projectName},
+        ec => $ec,
+        procedureName => $entry->{procedureName} || '',
+        pipelineName => $entry->{pipelineName} || '',
+        releaseName => $entry->{releaseName} || '',
+    };
+
+    return bless $self, $class;
+}
+
 sub scheduleName { return shift->{scheduleName} }
 
 sub projectName { return shift->{projectName} }
@@ -281,6 +1034,52 @@ sub isWebhookSchedule {
 sub matches {
     my ($self, $searchParams) = @_;
 
+    my $scheduleParams = $self->getScheduleParams($searchParams);
+    unless($scheduleParams && $self->paramsMatch($scheduleParams, $searchParams)) {
+        return 0;
+    }
+
+    my $triggerFlag = $scheduleParams->{TriggerFlag};
+    unless(defined $triggerFlag) {
+        $self->logger->error("Schedule " . $self->name . ' does not have TriggerFlag field');
+        return 0;
+    }
+
+    if ($triggerFlag == 0) {
+        $self->logger->info('Schedule ' . $self->name . ' is disabled');
+        return 0;
+    }
+
+    if ($triggerFlag != 3) {
+        $self->logger->error('Schedule ' . $self->name . " is invalid: TriggerFlag = $triggerFlag");
+        return 0;
+    }
+
+    $self->logger->info("Schedule " . $self->name . " matches the webhook");
+    return 1;
+}
+
+
+# The same match for a CI schedule polled by ElectricSentry (TriggerFlag 2)
+sub matchesSentry {
+    my ($self, $searchParams) = @_;
+
+    my $scheduleParams = $self->getScheduleParams($searchParams);
+    unless($scheduleParams && ($scheduleParams->{TriggerFlag} || '') eq '2') {
+        return 0;
+    }
+    unless($self->paramsMatch($scheduleParams, $searchParams)) {
+        return 0;
+    }
+
+    $self->logger->info("CI schedule " . $self->name . " matches the webhook");
+    return 1;
+}
+
+
+sub getScheduleParams {
+    my ($self, $searchParams) = @_;
+
     unless(scalar keys %$searchParams) {
         die "No search parameters are provided";
     }
@@ -305,10 +1104,13 @@ sub matches {
     };
 
     $self->logger->debug("Schedule " . $self->name . " parameters: " . JSON->new->utf8->pretty->encode($scheduleParams));
+    $self->{params} = $scheduleParams;
+    return $scheduleParams;
+}
 
-    unless($scheduleParams) {
-        return 0;
-    }
+
+sub paramsMatch {
+    my ($self, $scheduleParams, $searchParams) = @_;
 
     for my $paramName (keys %$searchParams) {
         my $paramValue = $searchParams->{$paramName};
@@ -326,24 +1128,6 @@ sub matches {
             return 0;
         }
     }
-
-    my $triggerFlag = $scheduleParams->{TriggerFlag};
-    unless(defined $triggerFlag) {
-        $self->logger->error("Schedule " . $self->name . ' does not have TriggerFlag field');
-        return 0;
-    }
-
-    if ($triggerFlag == 0) {
-        $self->logger->info('Schedule ' . $self->name . ' is disabled');
-        return 0;
-    }
-
-    if ($triggerFlag != 3) {
-        $self->logger->error('Schedule ' . $self->name . " is invalid: TriggerFlag = $triggerFlag");
-        return 0;
-    }
-
-    $self->logger->info("Schedule " . $self->name . " matches the webhook");
     return 1;
 }
 
@@ -372,6 +1156,9 @@ sub getParameter {
 sub alreadyRunning {
     my ($self) = @_;
 
+    # Looked up along with the other schedules of the webhook
+    return $self->{running} if defined $self->{running};
+
     my @filterList = ();
     push(
         @filterList,
@@ -425,6 +1212,63 @@ sub alreadyRunning {
 }
 
 
+sub pendingPath {
+    my ($self) = @_;
+    return PENDING_PATH . '/' . $self->projectName . '/' . $self->scheduleName;
+}
+
+# Records a webhook for the schedule. Returns 1 if this job launches the
+# schedule when the window is over, 0 if another job already does.
+sub addPending {
+    my ($self, $webhookData, $window) = @_;
+
+    my $path = $self->pendingPath;
+    # The data is written before the count, so that the job taking the
+    # events always finds data at least as new as the count
+    $self->ec->setProperty("$path/webhookData", $webhookData);
+    my $events = $self->ec->incrementProperty("$path/events", 1)->findvalue('//value')->string_value;
+    if ($events == 1) {
+        $self->ec->setProperty("$path/leaderSince", time());
+        return 1;
+    }
+
+    my $since = 0;
+    eval {
+        $since = $self->ec->getProperty("$path/leaderSince")->findvalue('//value')->string_value;
+        1;
+    };
+    if (time() - $since > $window * 2 + PENDING_GRACE_SECONDS) {
+        $self->logger->info("The pending launch of " . $self->name . " was abandoned, taking it over");
+        $self->ec->setProperty("$path/leaderSince", time());
+        return 1;
+    }
+    return 0;
+}
+
+# Returns the latest webhook data and the number of webhooks it stands for
+sub takePending {
+    my ($self) = @_;
+
+    my $path = $self->pendingPath;
+    my $events = $self->ec->getProperty("$path/events")->findvalue('//value')->string_value;
+    my $webhookData = $self->ec->getProperty("$path/webhookData")->findvalue('//value')->string_value;
+    return ($webhookData, $events);
+}
+
+# Marks the taken webhooks as launched. Returns the number of webhooks
+# that came in since they were taken.
+sub releasePending {
+    my ($self, $events) = @_;
+
+    my $path = $self->pendingPath;
+    my $left = $self->ec->incrementProperty("$path/events", -$events)->findvalue('//value')->string_value;
+    if ($left > 0) {
+        $self->ec->setProperty("$path/leaderSince", time());
+    }
+    return $left;
+}
+
+
 sub ensureProject {
     my ($self, $projectName, $description) = @_;
 
@@ -435,91 +1279,68 @@ sub ensureProject {
     };
 }
 
+# Queued launches wait in /server/ECSCM/webhookDelayQueue/<proj>/<sched>,
+# one entry per schedule. The ECSCM-WebhookQueue schedule runs
+# ProcessQueuedWebhook every minute while there are entries, and it
+# launches the ones that are due.
 sub queueLaunch {
     my ($self, $quietTimeMinutes, $webhookData) = @_;
 
-    # Creating one-time schedule to be launched in quietTimeMinutes from now
-    # Or updating if there is already one
-    my $scheduleProject = 'Electric Cloud';
-    my $projectDescription = 'Electric Cloud Procedures';
-    $self->ensureProject($scheduleProject, $projectDescription);
-
-    my $scheduleName = $self->projectName . '-' . $self->scheduleName . '-Webhook-Queue';
-    my $exists = 0;
+    my $entry = DELAY_QUEUE . '/' . $self->projectName . '/' . $self->scheduleName;
     my $attempts = 0;
     eval {
-        my $xpath = $self->ec->getSchedule({
-            projectName => $scheduleProject,
-            scheduleName => $scheduleName
-        });
-        $exists = 1;
+        $attempts = $self->ec->getProperty("$entry/attempts")->findvalue('//value')->string_value || 0;
+        1;
     };
 
-    my $timeZone = 'America/Los_Angeles';
-    my $now = DateTime->now(time_zone => $timeZone);
-    my $beginDate = $now->ymd;
-    my $endDate = $now->add(days => 1)->ymd;
-
-    my $startTime = $now->add(minutes => $quietTimeMinutes)->strftime('%H:%M');
-
-    my $actualParameter = [
-        {actualParameterName => 'ec_webhookData', value => $webhookData},
-        {actualParameterName => 'ec_scheduleName', value => $self->scheduleName},
-        {actualParameterName => 'ec_projectName', value => $self->projectName},
-        # {actualParameterName => 'ec_webhookPayload', value => 'todo'}, # maybe will be needed in future
-    ];
-
-
-    if ($exists) {
-        my $scheduleProperties = $self->ec->getProperties({
-            projectName => $scheduleProject,
-            scheduleName => $scheduleName,
-        });
-
-        my $props = {};
-        for my $node ($scheduleProperties->findnodes('//property')) {
-            $props->{ $node->findvalue('propertyName')->string_value } = $node->findvalue('value')->string_value;
-        }
-        $attempts = $props->{ec_attempts} || 0;
-        if ($props->{ec_launched} && $props->{ec_launched} eq 'true') {
-            # If it was launched, we don't count it
-            $attempts = 0;
-        }
-
-        $self->ec->deleteSchedule({
-            projectName => $scheduleProject,
-            scheduleName => $scheduleName,
-        });
-    }
-
     my $maxAttempts = $self->getParameter('ec_maxRetries') || 0;
     if ($maxAttempts && $attempts >= $maxAttempts) {
         $self->logger->info("Max attempts for queue reached, launching anyway");
+        eval { $self->ec->deleteProperty($entry); 1; };
         return 0;
     }
 
-    # Creating one-time schedule (will be cleaned later by the procedure ProcessQueuedWebhook)
+    # A webhook for a schedule that is queued already pushes its launch
+    # back and replaces the data
+    my $due = time() + $quietTimeMinutes * 60;
+    my $batch = $self->ec->newBatch();
+    $batch->setProperty("$entry/webhookData", $webhookData);
+    $batch->setProperty("$entry/procedureName", $self->procedureName);
+    $batch->setProperty("$entry/pipelineName", $self->pipelineName);
+    $batch->setProperty("$entry/releaseName", $self->releaseName);
+    $batch->setProperty("$entry/due", $due);
+    $batch->incrementProperty("$entry/attempts", 1);
+    $batch->submit();
+    $attempts++;
+
+    $self->ensureDrainer();
+    $self->logger->info("Queued launch for schedule " . $self->name . ", will be launched at " . localtime($due) . ", attempt $attempts");
+    return 1;
+}
+
+sub ensureDrainer {
+    my ($self) = @_;
+
+    my $enabled = eval {
+        $self->ec->modifySchedule({
+            projectName => DRAINER_PROJECT,
+            scheduleName => DRAINER_SCHEDULE,
+            scheduleDisabled => 0,
+        });
+        1;
+    };
+    return if $enabled;
+
+    $self->ensureProject(DRAINER_PROJECT, 'Electric Cloud Procedures');
     $self->ec->createSchedule({
-        projectName => $scheduleProject,
-        scheduleName => $scheduleName,
-        beginDate => $beginDate,
-        endDate => $endDate,
-        startTime => $startTime,
+        projectName => DRAINER_PROJECT,
+        scheduleName => DRAINER_SCHEDULE,
+        interval => 1,
+        intervalUnits => 'minutes',
         procedureName => '/plugins/@PLUGIN_KEY@/project/procedures/ProcessQueuedWebhook',
-        timeZone => $timeZone,
-        actualParameter => $actualParameter,
-        description => 'Queued webhook launch, created by $[/myProject/projectName]:$[/myProcedure/procedureName]',
-    });
-
-    $attempts ++;
-    $self->ec->setProperty({
-        propertyName => 'ec_attempts',
-        projectName => $scheduleProject,
-        scheduleName => $scheduleName,
-        value => $attempts
+        description => 'Launches queued webhook launches, created by $[/myProject/projectName]:$[/myProcedure/procedureName]',
     });
-    $self->logger->info("Created queued launch for schedule " . $self->name . ", will be launched at $startTime $timeZone, attempt $attempts");
-    return 1;
+    $self->logger->info("Created schedule " . DRAINER_PROJECT . ':' . DRAINER_SCHEDULE);
 }
 
 sub isFalse {
@@ -555,13 +1376,13 @@ sub launch {
         my $runDuplicates = $self->getParameter('ec_runDuplicates', '1');
         if(isFalse($runDuplicates) && $self->alreadyRunning()) {
             $self->logger->info("The schedule " . $self->name . ' is already running, will not run again');
-            return;
+            return 0;
         }
     }
 
     if ($queued) {
         $self->logger->info("The schedule has been postponed for $quietTime minutes");
-        return;
+        return 0;
     }
 
     my $result;
@@ -597,6 +1418,7 @@ sub launch {
         die "Schedule $projectName:$scheduleName lacks procedureName, pipelineName and releaseName";
     }
     $self->logger->info("Launched $what from the schedule $projectName:$scheduleName");
+    return 1;
 }
 
 
@@ -622,8 +1444,20 @@ use constant {
     TRACE => 2,
 };
 
+# The log property is written when this much is buffered, or when the
+# oldest buffered line is this old, and keeps only the last MAX bytes
+use constant {
+    PROPERTY_FLUSH_BYTES => 16 * 1024,
+    PROPERTY_FLUSH_SECONDS => 5,
+    PROPERTY_MAX_BYTES => 256 * 1024,
+};
+
 my $logger;
 
+END {
+    $logger->flush() if $logger;
+}
+
 sub getInstance {
     my ($class, $level, %param) = @_;
     unless($logger) {
@@ -669,7 +1503,9 @@ sub log_to_property {
     my ($self, $prop) = @_;
 
     if (defined $prop) {
+        $self->flush();
         $self->{log_to_property} = $prop;
+        delete $self->{stored};
     }
     else {
         return $self->{log_to_property};
@@ -715,15 +1551,54 @@ sub _log {
     }
 
     if ($self->{log_to_property}) {
-        my $prop = $self->{log_to_property};
+        for my $line (@lines) {
+            push @{$self->{buffer}}, $line;
+            $self->{buffered} += length($line) + 1;
+        }
+        $self->{bufferedSince} ||= time();
+        if ($self->{buffered} >= PROPERTY_FLUSH_BYTES
+            || time() - $self->{bufferedSince} >= PROPERTY_FLUSH_SECONDS) {
+            $self->flush();
+        }
+    }
+}
+
+
+# Appends the buffered lines to the log property. The property is read
+# once; after that the logger keeps its own copy of the tail.
+sub flush {
+    my ($self) = @_;
+
+    return unless $self->{log_to_property} && $self->{buffer} && @{$self->{buffer}};
+    my $prop = $self->{log_to_property};
+
+    unless (defined $self->{stored}) {
         my $value = "";
         eval {
             $value = $self->ec->getProperty($prop)->findvalue('//value')->string_value;
             1;
         };
-        unshift @lines, split("\n", $value);
-        $self->ec->setProperty($prop, join("\n", @lines));
+        $self->{stored} = $value;
     }
+    my $stored = join("\n", ($self->{stored} eq '' ? () : $self->{stored}), @{$self->{buffer}});
+    $self->{buffer} = [];
+    $self->{buffered} = 0;
+    $self->{bufferedSince} = 0;
+
+    if (length($stored) > PROPERTY_MAX_BYTES) {
+        $stored = substr($stored, -PROPERTY_MAX_BYTES);
+        # Drop the partial first line
+        $stored =~ s/^[^\n]*\n//;
+        $stored = "[... earlier lines dropped ...]\n$stored";
+    }
+    $self->{stored} = $stored;
+
+    eval {
+        $self->ec->setProperty($prop, $stored);
+        1;
+    } or do {
+        print "[ERROR] Cannot write the log to $prop: $@\n";
+    };
 }
 
 
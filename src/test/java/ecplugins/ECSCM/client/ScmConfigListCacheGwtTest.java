@@ -0,0 +1,120 @@
+
+// ScmConfigListCacheGwtTest.java --
+//
+// ScmConfigListCacheGwtTest.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2016 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import java.util.Set;
+
+import com.google.gwt.storage.client.Storage;
+
+public class ScmConfigListCacheGwtTest
+    extends ScmConfigListLoaderTestBase
+{
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Override public void gwtSetUp()
+    {
+        ScmConfigListCache.setTimeToLive(
+            ScmConfigListCache.DEFAULT_TIME_TO_LIVE);
+        ScmConfigListCache.invalidate();
+    }
+
+    @Override public void gwtTearDown()
+    {
+        ScmConfigListCache.setTimeToLive(
+            ScmConfigListCache.DEFAULT_TIME_TO_LIVE);
+        ScmConfigListCache.invalidate();
+    }
+
+    public void testStoreAndRestore()
+    {
+
+        // Store a parsed list, including a description that needs escaping
+        ScmConfigList configList = new ScmConfigList();
+
+        assertNull(configList.parseResponse(s_goodResponse));
+        configList.addConfig("config4", "pluginB", "two\tfields\nand \\ lines");
+        ScmConfigListCache.store("foo", "bar", configList);
+
+        // Restore it into an empty list
+        ScmConfigList restored = new ScmConfigList();
+
+        assertTrue(ScmConfigListCache.restore("foo", "bar", restored));
+
+        Set<String> configNames = restored.getConfigNames();
+
+        assertEquals(4, configNames.size());
+        assertEquals("pluginA", restored.getConfigPlugin("config1"));
+        assertEquals("Another pluginA configuration",
+            restored.getConfigDescription("config2"));
+        assertEquals("two\tfields\nand \\ lines",
+            restored.getConfigDescription("config4"));
+
+        // Other methods and editors are cached separately
+        assertFalse(ScmConfigListCache.restore("foo", null, new ScmConfigList()));
+        assertFalse(ScmConfigListCache.restore(null, "bar", new ScmConfigList()));
+    }
+
+    public void testMalformedEntry()
+    {
+        Storage storage = Storage.getSessionStorageIfSupported();
+
+        if (storage == null) {
+            return;
+        }
+
+        // A valid line followed by one written by a different version
+        storage.setItem("ECSCM.scmConfigList.list.foo.bar",
+            System.currentTimeMillis() + "\nconfig1\tpluginA\tdesc\nconfig2\n");
+
+        ScmConfigList configList = new ScmConfigList();
+
+        assertFalse(ScmConfigListCache.restore("foo", "bar", configList));
+        assertTrue(configList.isEmpty());
+    }
+
+    public void testEditorDefinition()
+    {
+        assertNull(ScmConfigListCache.getEditorDefinition("pluginA", "bar"));
+        ScmConfigListCache.putEditorDefinition("pluginA", "bar",
+            s_editorDefinitionA);
+        assertEquals(s_editorDefinitionA,
+            ScmConfigListCache.getEditorDefinition("pluginA", "bar"));
+        assertNull(ScmConfigListCache.getEditorDefinition("pluginA", "baz"));
+    }
+
+    public void testInvalidate()
+    {
+        ScmConfigList configList = new ScmConfigList();
+
+        assertNull(configList.parseResponse(s_goodResponse));
+        ScmConfigListCache.store(null, null, configList);
+        ScmConfigListCache.putEditorDefinition("pluginA", "bar",
+            s_editorDefinitionA);
+
+        // Nothing survives an invalidation
+        ScmConfigListCache.invalidate();
+        assertFalse(ScmConfigListCache.restore(null, null, new ScmConfigList()));
+        assertNull(ScmConfigListCache.getEditorDefinition("pluginA", "bar"));
+    }
+
+    public void testTimeToLive()
+    {
+        ScmConfigList configList = new ScmConfigList();
+
+        assertNull(configList.parseResponse(s_goodResponse));
+        ScmConfigListCache.store(null, null, configList);
+        assertTrue(ScmConfigListCache.restore(null, null, new ScmConfigList()));
+
+        // Expired entries are not served
+        ScmConfigListCache.setTimeToLive(0);
+        assertFalse(ScmConfigListCache.restore(null, null, new ScmConfigList()));
+    }
+}
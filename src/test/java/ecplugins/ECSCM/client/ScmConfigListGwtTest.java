@@ -125,6 +125,84 @@ public class ScmConfigListGwtTest
             m_configList.getConfigDescription(configName));
     }
 
+    public void testParseResponse_paged()
+    {
+
+        // Parse the first page
+        String error = m_configList.parseResponse("<response>"
+                + "  <cfgs>"
+                + "    <cfg>"
+                + "      <name>config1</name>"
+                + "      <plugin>pluginA</plugin>"
+                + "      <desc>pluginA configuration</desc>"
+                + "    </cfg>"
+                + "    <cfg>"
+                + "      <name>config2</name>"
+                + "      <plugin>pluginA</plugin>"
+                + "      <desc>Another pluginA configuration</desc>"
+                + "    </cfg>"
+                + "  </cfgs>"
+                + "  <page>"
+                + "    <offset>0</offset>"
+                + "    <limit>2</limit>"
+                + "    <total>3</total>"
+                + "    <more>1</more>"
+                + "  </page>"
+                + "</response>");
+
+        assertNull(error);
+        assertTrue(m_configList.hasMorePages());
+        assertEquals(2, m_configList.getLastPage()
+                                    .size());
+        assertEquals("config1", m_configList.getLastPage()
+                                            .get(0));
+
+        ValuedListBox lb = m_uiFactory.createValuedListBox();
+
+        m_configList.populateConfigListBox(lb, m_configList.getLastPage());
+        assertEquals(2, lb.getItemCount());
+
+        // Parse the last page and append it
+        error = m_configList.parseResponse("<response>"
+                + "  <cfgs>"
+                + "    <cfg>"
+                + "      <name>config3</name>"
+                + "      <plugin>pluginB</plugin>"
+                + "      <desc>pluginB configuration</desc>"
+                + "    </cfg>"
+                + "  </cfgs>"
+                + "  <page>"
+                + "    <offset>2</offset>"
+                + "    <limit>2</limit>"
+                + "    <total>3</total>"
+                + "    <more>0</more>"
+                + "  </page>"
+                + "</response>");
+
+        assertNull(error);
+        assertFalse(m_configList.hasMorePages());
+        assertEquals(1, m_configList.getLastPage()
+                                    .size());
+        assertEquals(3, m_configList.getConfigNames()
+                                    .size());
+
+        m_configList.populateConfigListBox(lb, m_configList.getLastPage());
+        assertEquals(3, lb.getItemCount());
+        assertEquals("config3", lb.getItemText(2));
+    }
+
+    public void testParseResponse_unpaged()
+    {
+
+        // A response without a page block is the whole list
+        String error = m_configList.parseResponse(s_goodResponse);
+
+        assertNull(error);
+        assertFalse(m_configList.hasMorePages());
+        assertEquals(3, m_configList.getLastPage()
+                                    .size());
+    }
+
     public void testPopulateConfigListBox()
     {
 
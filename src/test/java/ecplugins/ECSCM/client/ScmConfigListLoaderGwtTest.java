@@ -55,6 +55,9 @@ public class ScmConfigListLoaderGwtTest
         m_queryObject.setRequestManager(m_requestManager);
         m_cgiRequestProxy = new FakeCgiRequestProxy("ECSCM", "ecscm.cgi");
         m_configList      = new ScmConfigList();
+
+        // Every test starts without cached lists or editors
+        ScmConfigListCache.invalidate();
     }
 
     public void testLoad_getCfgList()
@@ -0,0 +1,148 @@
+
+// ScmFormTemplateGwtTest.java --
+//
+// ScmFormTemplateGwtTest.java is part of ElectricCommander.
+//
+// Copyright (c) 2005-2016 Electric Cloud, Inc.
+// All rights reserved.
+//
+
+package ecplugins.ECSCM.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import com.electriccloud.commander.gwt.client.ui.FormBuilder;
+
+public class ScmFormTemplateGwtTest
+    extends ScmConfigListLoaderTestBase
+{
+
+    //~ Instance fields --------------------------------------------------------
+
+    private ScmConfigList m_configList;
+
+    //~ Methods ----------------------------------------------------------------
+
+    @Override public void gwtSetUp()
+    {
+        m_configList = new ScmConfigList();
+        m_configList.parseResponse(s_goodResponse);
+        m_configList.setEditorDefinition("pluginA", s_editorDefinitionA);
+        m_configList.setEditorDefinition("pluginB", s_editorDefinitionB);
+    }
+
+    public void testAddRows()
+    {
+        FormBuilder fb = m_uiFactory.createFormBuilder();
+
+        m_configList.getFormTemplate("config1")
+                    .addRows(m_uiFactory, fb);
+
+        Collection<String> rowIds = fb.getRowIds();
+
+        assertEquals(2, rowIds.size());
+        assertTrue(rowIds.contains("field1"));
+        assertTrue(rowIds.contains("field2"));
+    }
+
+    public void testCheckboxValue()
+    {
+        FormBuilder fb = m_uiFactory.createFormBuilder();
+
+        m_configList.getFormTemplate("config3")
+                    .addRows(m_uiFactory, fb);
+
+        // Initially checked, so the form carries the checked value
+        assertEquals("1", fb.getValue("field1"));
+    }
+
+    public void testParsedOncePerPlugin()
+    {
+        FormBuilder fb         = m_uiFactory.createFormBuilder();
+        int         parseCount = ScmFormTemplate.getParseCount();
+        String[]    selections = {
+            "config1", "config3", "config2", "config3", "config1"
+        };
+
+        // Switch between SCM configurations the way the portals do
+        for (String configName : selections) {
+
+            for (String rowId : new ArrayList<String>(fb.getRowIds())) {
+                fb.removeRow(rowId);
+            }
+
+            m_configList.getFormTemplate(configName)
+                        .addRows(m_uiFactory, fb);
+
+            Collection<String> rowIds = fb.getRowIds();
+
+            assertEquals(2, rowIds.size());
+            assertTrue(rowIds.contains("field1"));
+            assertTrue(rowIds.contains("field2"));
+        }
+
+        // One parse for pluginA and one for pluginB
+        assertEquals(parseCount + 2, ScmFormTemplate.getParseCount());
+    }
+
+    public void testTemplatePerPlugin()
+    {
+        ScmFormTemplate template = m_configList.getFormTemplate("config1");
+
+        // Configurations of the same plugin share one template
+        assertSame(template, m_configList.getFormTemplate("config1"));
+        assertSame(template, m_configList.getFormTemplate("config2"));
+        assertNotSame(template, m_configList.getFormTemplate("config3"));
+    }
+
+    public void testNewEditorDefinition()
+    {
+        int             parseCount = ScmFormTemplate.getParseCount();
+        ScmFormTemplate template   = m_configList.getFormTemplate("config1");
+
+        m_configList.getFormTemplate("config1");
+        assertEquals(parseCount + 1, ScmFormTemplate.getParseCount());
+
+        // Replacing the definition drops the old template
+        m_configList.setEditorDefinition("pluginA", s_editorDefinitionB);
+        assertNotSame(template, m_configList.getFormTemplate("config1"));
+        assertEquals(parseCount + 2, ScmFormTemplate.getParseCount());
+    }
+
+    public void testOtherElementTypes()
+    {
+        FormBuilder     fb       = m_uiFactory.createFormBuilder();
+        ScmFormTemplate template = ScmFormTemplate.parse("<editor>"
+                    + "  <formElement>"
+                    + "    <type>entry</type>"
+                    + "    <label>Field #1</label>"
+                    + "    <property>field1</property>"
+                    + "  </formElement>"
+                    + "  <formElement>"
+                    + "    <type>radio</type>"
+                    + "    <label>Field #2</label>"
+                    + "    <property>field2</property>"
+                    + "    <option><name>One</name><value>1</value></option>"
+                    + "    <option><name>Two</name><value>2</value></option>"
+                    + "  </formElement>"
+                    + "</editor>");
+
+        // Types the template does not build itself are left to FormBuilder
+        template.addRows(m_uiFactory, fb);
+
+        Collection<String> rowIds = fb.getRowIds();
+
+        assertEquals(2, rowIds.size());
+        assertTrue(rowIds.contains("field1"));
+        assertTrue(rowIds.contains("field2"));
+    }
+
+    public void testNoEditorDefinition()
+    {
+        ScmConfigList configList = new ScmConfigList();
+
+        configList.parseResponse(s_goodResponse);
+        assertNull(configList.getFormTemplate("config1"));
+    }
+}